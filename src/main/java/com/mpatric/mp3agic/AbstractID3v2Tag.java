@@ -8,6 +8,7 @@ public abstract class AbstractID3v2Tag implements ID3v2 {
 	public static final String ID_IMAGE = "APIC";
 	public static final String ID_ENCODER = "TENC";
 	public static final String ID_URL = "WXXX";
+	public static final String ID_USER_TEXT = "TXXX";
 	public static final String ID_ARTIST_URL = "WOAR";
 	public static final String ID_COMMERCIAL_URL = "WCOM";
 	public static final String ID_COPYRIGHT_URL = "WCOP";
@@ -41,6 +42,7 @@ public abstract class AbstractID3v2Tag implements ID3v2 {
 	public static final String ID_IMAGE_OBSELETE = "PIC";
 	public static final String ID_ENCODER_OBSELETE = "TEN";
 	public static final String ID_URL_OBSELETE = "WXX";
+	public static final String ID_USER_TEXT_OBSELETE = "TXX";
 	public static final String ID_COPYRIGHT_OBSELETE = "TCR";
 	public static final String ID_ORIGINAL_ARTIST_OBSELETE = "TOA";
 	public static final String ID_BPM_OBSELETE = "TBP";
@@ -96,6 +98,7 @@ public abstract class AbstractID3v2Tag implements ID3v2 {
 	protected static final int COMPRESSION_BIT = 6;
 	protected static final int UNSYNCHRONISATION_BIT = 7;
 	protected static final int PADDING_LENGTH = 256;
+	protected static final int MAXIMUM_DATA_LENGTH = 0x0FFFFFFF;
 	private static final String ITUNES_COMMENT_DESCRIPTION = "iTunNORM";
 
 	protected boolean unsynchronisation = false;
@@ -219,6 +222,38 @@ public abstract class AbstractID3v2Tag implements ID3v2 {
 		return bytes;
 	}
 
+	/**
+	 * Packs the tag into exactly length bytes, with the space after the frames as padding, so
+	 * that it can overwrite a tag of that length in place.
+	 */
+	public byte[] toBytes(int length) throws NotSupportedException {
+		if (!fitsLength(length)) throw new IllegalArgumentException("Tag cannot be packed into " + length + " bytes");
+		if (length == getLength()) return toBytes();
+		byte[] bytes = new byte[Math.max(length, getLength())];
+		packTag(bytes);
+		BufferTools.packSynchsafeInteger(length - HEADER_LENGTH, bytes, DATA_LENGTH_OFFSET);
+		return bytes.length == length ? bytes : Arrays.copyOf(bytes, length);
+	}
+
+	/**
+	 * @return true if toBytes(length) can pack the tag into length bytes; tags with a footer or
+	 * an extended header are never re-padded, so for them only getLength() fits
+	 */
+	public boolean fitsLength(long length) {
+		if (length == getLength()) return true;
+		if (footer || extendedHeader) return false;
+		return length >= getUnpaddedLength() && length - HEADER_LENGTH <= MAXIMUM_DATA_LENGTH;
+	}
+
+	/**
+	 * @return the length of the tag without any padding
+	 */
+	public int getUnpaddedLength() {
+		int length = calculateDataLength() + HEADER_LENGTH;
+		if (!footer && padding) length -= PADDING_LENGTH;
+		return length;
+	}
+
 	public void packTag(byte[] bytes) throws NotSupportedException {
 		int offset = packHeader(bytes, 0);
 		if (extendedHeader) {
@@ -957,6 +992,48 @@ public abstract class AbstractID3v2Tag implements ID3v2 {
 		}
 	}
 
+	@Override
+	public String getUserText(String description) {
+		ID3v2FrameSet frameSet = frameSets.get(obseleteFormat ? ID_USER_TEXT_OBSELETE : ID_USER_TEXT);
+		if (frameSet != null) {
+			for (ID3v2Frame frame : frameSet.getFrames()) {
+				ID3v2UserTextFrameData frameData = extractUserTextFrameData(frame);
+				if (frameData != null && description.equals(frameData.getDescription().toString())) {
+					return frameData.getText() != null ? frameData.getText().toString() : null;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void setUserText(String description, String text) {
+		if (description == null) throw new NullPointerException();
+		ID3v2FrameSet frameSet = frameSets.get(ID_USER_TEXT);
+		if (frameSet != null) {
+			if (frameSet.getFrames().removeIf(frame -> {
+				ID3v2UserTextFrameData frameData = extractUserTextFrameData(frame);
+				return frameData != null && description.equals(frameData.getDescription().toString());
+			})) {
+				invalidateDataLength();
+			}
+			if (frameSet.getFrames().isEmpty()) frameSets.remove(ID_USER_TEXT);
+		}
+		if (text != null && text.length() > 0) {
+			invalidateDataLength();
+			EncodedText encodedDescription = new EncodedText(description);
+			EncodedText encodedText = new EncodedText(text);
+			// the description and text share the frame's encoding, so a plain one is widened to match the other
+			if (encodedDescription.getTextEncoding() != encodedText.getTextEncoding()) {
+				byte textEncoding = (byte) Math.max(encodedDescription.getTextEncoding(), encodedText.getTextEncoding());
+				encodedDescription = new EncodedText(textEncoding, description);
+				encodedText = new EncodedText(textEncoding, text);
+			}
+			ID3v2UserTextFrameData frameData = new ID3v2UserTextFrameData(useFrameUnsynchronisation(), encodedDescription, encodedText);
+			addFrame(createFrame(ID_USER_TEXT, frameData.toBytes()), false);
+		}
+	}
+
 	@Override
 	public ArrayList<ID3v2ChapterFrameData> getChapters() {
 		if (obseleteFormat) {
@@ -1171,6 +1248,14 @@ public abstract class AbstractID3v2Tag implements ID3v2 {
 		return null;
 	}
 
+	private ID3v2UserTextFrameData extractUserTextFrameData(ID3v2Frame frame) {
+		try {
+			return new ID3v2UserTextFrameData(useFrameUnsynchronisation(), frame.getData());
+		} catch (InvalidDataException e) {
+			return null;
+		}
+	}
+
 	private ID3v2CommentFrameData extractCommentFrameData(String id, boolean itunes) {
 		ID3v2FrameSet frameSet = frameSets.get(id);
 		if (frameSet != null) {
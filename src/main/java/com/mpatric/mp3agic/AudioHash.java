@@ -0,0 +1,39 @@
+package com.mpatric.mp3agic;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * A 64-bit checksum over the audio frames of a file, made of a CRC-32C and a CRC-32 of the same
+ * bytes. Both are computed with processor instructions where the JVM has intrinsics for them,
+ * and two independent 32-bit checksums keep accidental collisions across a large library rare.
+ */
+final class AudioHash {
+
+	private final CRC32C crc32c = new CRC32C();
+	private final CRC32 crc32 = new CRC32();
+
+	void update(ByteBuffer buffer, int from, int to) {
+		if (to <= from) return;
+		ByteBuffer range = buffer.duplicate();
+		range.limit(to).position(from);
+		crc32c.update(range);
+		range.position(from);
+		crc32.update(range);
+	}
+
+	void reset() {
+		crc32c.reset();
+		crc32.reset();
+	}
+
+	long getValue() {
+		return (crc32c.getValue() << 32) | crc32.getValue();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x", getValue());
+	}
+}
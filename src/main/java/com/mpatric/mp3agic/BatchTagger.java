@@ -0,0 +1,234 @@
+package com.mpatric.mp3agic;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies tag changes to many files on a fixed number of worker threads. Each file is opened,
+ * changed by its job's mutation and saved with Mp3File.save(false), which writes a temporary
+ * file and renames it over the original, so an interrupted batch never leaves a half-written
+ * file behind. The number of threads should suit the storage rather than the processor count:
+ * a few for an SSD, one or two for a spinning disk.
+ */
+public class BatchTagger {
+
+	public static final int DEFAULT_THREAD_COUNT = 4;
+
+	private final int threadCount;
+	private ScanMode scanMode = ScanMode.TAGS_ONLY;
+	private boolean allowInPlace = false;
+
+	public BatchTagger() {
+		this(DEFAULT_THREAD_COUNT);
+	}
+
+	public BatchTagger(int threadCount) {
+		if (threadCount < 1) throw new IllegalArgumentException("Thread count must be at least 1");
+		this.threadCount = threadCount;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	public ScanMode getScanMode() {
+		return scanMode;
+	}
+
+	/**
+	 * @param scanMode how each file is opened; the default, TAGS_ONLY, does not read the audio
+	 */
+	public void setScanMode(ScanMode scanMode) {
+		if (scanMode == null) throw new NullPointerException();
+		this.scanMode = scanMode;
+	}
+
+	public boolean isAllowInPlace() {
+		return allowInPlace;
+	}
+
+	/**
+	 * @param allowInPlace true to let tags that fit their old space be overwritten in place, which
+	 * is much faster but can leave a damaged tag if the process dies during the write
+	 */
+	public void setAllowInPlace(boolean allowInPlace) {
+		this.allowInPlace = allowInPlace;
+	}
+
+	/**
+	 * Runs the jobs and waits for all of them. A job that fails does not stop the others. If the
+	 * calling thread is interrupted, the workers are interrupted too, which abandons the files
+	 * being written before they are renamed, no further jobs are started and InterruptedException
+	 * is thrown.
+	 */
+	public Report run(List<Job> jobs) throws InterruptedException {
+		Result[] results = new Result[jobs.size()];
+		AtomicInteger nextJob = new AtomicInteger();
+		long startTime = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, Math.max(jobs.size(), 1)));
+		try {
+			for (int i = 0; i < threadCount && i < jobs.size(); i++) {
+				executor.execute(() -> {
+					int index;
+					while (!Thread.currentThread().isInterrupted() && (index = nextJob.getAndIncrement()) < jobs.size()) {
+						results[index] = runJob(jobs.get(index));
+					}
+				});
+			}
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			throw e;
+		}
+		return new Report(Arrays.asList(results), System.nanoTime() - startTime);
+	}
+
+	private Result runJob(Job job) {
+		long startTime = System.nanoTime();
+		try {
+			Mp3File mp3File = new Mp3File(job.getPath(), scanMode);
+			job.getMutation().apply(mp3File);
+			boolean inPlace = mp3File.save(allowInPlace);
+			return new Result(job.getPath(), null, inPlace, mp3File.getLength(), System.nanoTime() - startTime);
+		} catch (IOException | BaseException | RuntimeException e) {
+			return new Result(job.getPath(), e, false, 0, System.nanoTime() - startTime);
+		}
+	}
+
+	@FunctionalInterface
+	public interface TagMutation {
+		void apply(Mp3File mp3File) throws IOException, BaseException;
+	}
+
+	public static class Job {
+		private final Path path;
+		private final TagMutation mutation;
+
+		public Job(Path path, TagMutation mutation) {
+			if (path == null || mutation == null) throw new NullPointerException();
+			this.path = path;
+			this.mutation = mutation;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public TagMutation getMutation() {
+			return mutation;
+		}
+	}
+
+	public static class Result {
+		private final Path path;
+		private final Exception exception;
+		private final boolean inPlace;
+		private final long fileLength;
+		private final long durationNanos;
+
+		Result(Path path, Exception exception, boolean inPlace, long fileLength, long durationNanos) {
+			this.path = path;
+			this.exception = exception;
+			this.inPlace = inPlace;
+			this.fileLength = fileLength;
+			this.durationNanos = durationNanos;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public boolean isSuccess() {
+			return exception == null;
+		}
+
+		/**
+		 * @return the exception that made the job fail, or null; the file is then left unchanged
+		 */
+		public Exception getException() {
+			return exception;
+		}
+
+		public boolean isInPlace() {
+			return inPlace;
+		}
+
+		/**
+		 * @return the length of the saved file, or 0 if the job failed
+		 */
+		public long getFileLength() {
+			return fileLength;
+		}
+
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+	}
+
+	public static class Report {
+		private final List<Result> results;
+		private final long elapsedNanos;
+		private int successCount;
+		private int inPlaceCount;
+		private long bytesSaved;
+
+		Report(List<Result> results, long elapsedNanos) {
+			this.results = Collections.unmodifiableList(new ArrayList<>(results));
+			this.elapsedNanos = elapsedNanos;
+			for (Result result : results) {
+				if (result == null || !result.isSuccess()) continue;
+				successCount++;
+				if (result.isInPlace()) inPlaceCount++;
+				bytesSaved += result.getFileLength();
+			}
+		}
+
+		/**
+		 * @return one result per job, in job order
+		 */
+		public List<Result> getResults() {
+			return results;
+		}
+
+		public int getSuccessCount() {
+			return successCount;
+		}
+
+		public int getFailureCount() {
+			return results.size() - successCount;
+		}
+
+		public int getInPlaceCount() {
+			return inPlaceCount;
+		}
+
+		/**
+		 * @return the total length of the files that were saved
+		 */
+		public long getBytesSaved() {
+			return bytesSaved;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public double getFilesPerSecond() {
+			return elapsedNanos == 0 ? 0 : successCount * 1e9 / elapsedNanos;
+		}
+
+		public double getBytesPerSecond() {
+			return elapsedNanos == 0 ? 0 : bytesSaved * 1e9 / elapsedNanos;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.mpatric.mp3agic;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks the CRC-16 that follows the header of protected mpeg frames and collects the offsets of
+ * the frames whose CRC does not match. The CRC covers the last two bytes of the header and the
+ * side information of Layer III frames, or the bit allocation of Layer I frames. In Layer II the
+ * protected region depends on the decoded bit allocation, so Layer II frames are not checked.
+ */
+final class FrameCrc {
+
+	private static final int POLYNOMIAL = 0x8005;
+	private static final int INITIAL_VALUE = 0xFFFF;
+	private static final int CRC_OFFSET = 4;
+	private static final int PROTECTED_DATA_OFFSET = 6;
+	private static final int INITIAL_CAPACITY = 16;
+
+	// TABLES[k][b] is the CRC of byte b followed by k zero bytes, so eight bytes can be folded in at once
+	private static final int[][] TABLES = new int[8][256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+			}
+			TABLES[0][i] = crc & 0xFFFF;
+		}
+		for (int k = 1; k < 8; k++) {
+			for (int i = 0; i < 256; i++) {
+				TABLES[k][i] = update(TABLES[k - 1][i], 0);
+			}
+		}
+	}
+
+	private int checkedFrameCount;
+	private long[] errorOffsets = new long[INITIAL_CAPACITY];
+	private int errorCount;
+
+	/**
+	 * @return the number of bytes after the CRC that it protects, or 0 if the frame cannot be
+	 * checked without decoding it
+	 */
+	static int getProtectedLength(int header) {
+		boolean mono = MpegFrameHeader.getChannelModeIndex(header) == 3;
+		switch (MpegFrameHeader.getLayerNumber(header)) {
+			case 1:
+				// 4 bits of bit allocation per subband and channel, with one shared allocation above the joint stereo bound
+				if (mono) return 16;
+				int bound = MpegFrameHeader.getChannelModeIndex(header) == 1 ? 4 * (((header >>> 4) & 0x3) + 1) : 32;
+				return (32 + bound) / 2;
+			case 3:
+				if (((header >>> 19) & 0x3) == 3) return mono ? 17 : 32;
+				return mono ? 9 : 17;
+			default:
+				return 0;
+		}
+	}
+
+	static int compute(ByteBuffer buffer, int offset, int header) {
+		int crc = INITIAL_VALUE;
+		crc = update(crc, header >>> 8);
+		crc = update(crc, header);
+		int i = offset + PROTECTED_DATA_OFFSET;
+		int end = i + getProtectedLength(header);
+		for (; i + 8 <= end; i += 8) {
+			long data = buffer.getLong(i) ^ ((long) crc << 48);
+			crc = TABLES[7][(int) (data >>> 56)] ^ TABLES[6][(int) (data >>> 48) & 0xFF]
+					^ TABLES[5][(int) (data >>> 40) & 0xFF] ^ TABLES[4][(int) (data >>> 32) & 0xFF]
+					^ TABLES[3][(int) (data >>> 24) & 0xFF] ^ TABLES[2][(int) (data >>> 16) & 0xFF]
+					^ TABLES[1][(int) (data >>> 8) & 0xFF] ^ TABLES[0][(int) data & 0xFF];
+		}
+		for (; i < end; i++) {
+			crc = update(crc, buffer.get(i));
+		}
+		return crc;
+	}
+
+	private static int update(int crc, int b) {
+		return ((crc << 8) ^ TABLES[0][((crc >>> 8) ^ b) & 0xFF]) & 0xFFFF;
+	}
+
+	/**
+	 * Checks the frame at offset in the buffer if it carries a CRC that can be checked. The
+	 * buffer must hold at least Mp3File.MINIMUM_BUFFER_LENGTH bytes from offset.
+	 */
+	void check(ByteBuffer buffer, int offset, long absoluteOffset, int header) {
+		if (!MpegFrameHeader.hasCrc(header) || getProtectedLength(header) == 0) return;
+		checkedFrameCount++;
+		if (compute(buffer, offset, header) != (buffer.getShort(offset + CRC_OFFSET) & 0xFFFF)) {
+			addError(absoluteOffset);
+		}
+	}
+
+	private void addError(long offset) {
+		if (errorCount == errorOffsets.length) {
+			errorOffsets = Arrays.copyOf(errorOffsets, errorOffsets.length * 2);
+		}
+		errorOffsets[errorCount++] = offset;
+	}
+
+	void addAll(FrameCrc other) {
+		checkedFrameCount += other.checkedFrameCount;
+		for (int i = 0; i < other.errorCount; i++) {
+			addError(other.errorOffsets[i]);
+		}
+	}
+
+	void reset() {
+		checkedFrameCount = 0;
+		errorCount = 0;
+	}
+
+	int getCheckedFrameCount() {
+		return checkedFrameCount;
+	}
+
+	long[] getErrorOffsets() {
+		return Arrays.copyOf(errorOffsets, errorCount);
+	}
+}
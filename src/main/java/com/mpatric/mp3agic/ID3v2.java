@@ -89,6 +89,17 @@ public interface ID3v2 extends ID3v1 {
 
 	void setUrl(String url);
 
+	/**
+	 * @return the text of the user-defined text frame (TXXX) with the given description, or null
+	 */
+	String getUserText(String description);
+
+	/**
+	 * Replaces the user-defined text frame with the given description, or removes it if text is
+	 * null or empty. Frames with other descriptions are kept.
+	 */
+	void setUserText(String description, String text);
+
 	String getPartOfSet();
 
 	void setPartOfSet(String partOfSet);
@@ -4,6 +4,25 @@ public final class ID3v2TagFactory {
 	private ID3v2TagFactory() {}
 
 	public static AbstractID3v2Tag createTag(byte[] bytes) throws NoSuchTagException, UnsupportedTagException, InvalidDataException {
+		ScanEvents.Id3v2TagParse event = new ScanEvents.Id3v2TagParse();
+		event.begin();
+		AbstractID3v2Tag tag = createTagForVersion(bytes);
+		ScanStatistics.tagParsed();
+		event.end();
+		if (event.shouldCommit()) {
+			event.version = tag.getVersion();
+			event.tagSize = tag.getLength();
+			int frameCount = 0;
+			for (ID3v2FrameSet frameSet : tag.getFrameSets().values()) {
+				frameCount += frameSet.getFrames().size();
+			}
+			event.frameCount = frameCount;
+			event.commit();
+		}
+		return tag;
+	}
+
+	private static AbstractID3v2Tag createTagForVersion(byte[] bytes) throws NoSuchTagException, UnsupportedTagException, InvalidDataException {
 		sanityCheckTag(bytes);
 		int majorVersion = bytes[AbstractID3v2Tag.MAJOR_VERSION_OFFSET];
 		switch (majorVersion) {
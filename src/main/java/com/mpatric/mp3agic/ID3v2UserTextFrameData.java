@@ -0,0 +1,121 @@
+package com.mpatric.mp3agic;
+
+/**
+ * A user-defined text frame (TXXX), which holds a value under a free-form description such as
+ * REPLAYGAIN_TRACK_GAIN. A tag can hold any number of them, one per description.
+ */
+public class ID3v2UserTextFrameData extends AbstractID3v2FrameData {
+
+	private EncodedText description;
+	private EncodedText text;
+
+	public ID3v2UserTextFrameData(boolean unsynchronisation) {
+		super(unsynchronisation);
+	}
+
+	public ID3v2UserTextFrameData(boolean unsynchronisation, EncodedText description, EncodedText text) {
+		super(unsynchronisation);
+		if (description != null && text != null && description.getTextEncoding() != text.getTextEncoding()) {
+			throw new IllegalArgumentException("description and text must have same text encoding");
+		}
+		this.description = description;
+		this.text = text;
+	}
+
+	public ID3v2UserTextFrameData(boolean unsynchronisation, byte[] bytes) throws InvalidDataException {
+		super(unsynchronisation);
+		synchroniseAndUnpackFrameData(bytes);
+	}
+
+	@Override
+	protected void unpackFrameData(byte[] bytes) {
+		int marker = BufferTools.indexOfTerminatorForEncoding(bytes, 1, bytes[0]);
+		if (marker >= 1) {
+			description = new EncodedText(bytes[0], BufferTools.copyBuffer(bytes, 1, marker - 1));
+			marker += description.getTerminator().length;
+		} else {
+			description = new EncodedText(bytes[0], "");
+			marker = 1;
+		}
+		text = new EncodedText(bytes[0], BufferTools.copyBuffer(bytes, marker, bytes.length - marker));
+	}
+
+	@Override
+	protected byte[] packFrameData() {
+		byte[] bytes = new byte[getLength()];
+		if (text != null) bytes[0] = text.getTextEncoding();
+		else if (description != null) bytes[0] = description.getTextEncoding();
+		else bytes[0] = 0;
+		int marker = 1;
+		if (description != null) {
+			byte[] descriptionBytes = description.toBytes(true, true);
+			BufferTools.copyIntoByteBuffer(descriptionBytes, 0, descriptionBytes.length, bytes, marker);
+			marker += descriptionBytes.length;
+		} else {
+			byte[] terminatorBytes = text != null ? text.getTerminator() : new byte[]{0};
+			BufferTools.copyIntoByteBuffer(terminatorBytes, 0, terminatorBytes.length, bytes, marker);
+			marker += terminatorBytes.length;
+		}
+		if (text != null) {
+			byte[] textBytes = text.toBytes(true, false);
+			BufferTools.copyIntoByteBuffer(textBytes, 0, textBytes.length, bytes, marker);
+		}
+		return bytes;
+	}
+
+	@Override
+	protected int getLength() {
+		int length = 1;
+		if (description != null) length += description.toBytes(true, true).length;
+		else length += text != null ? text.getTerminator().length : 1;
+		if (text != null) length += text.toBytes(true, false).length;
+		return length;
+	}
+
+	public EncodedText getDescription() {
+		return description;
+	}
+
+	public void setDescription(EncodedText description) {
+		this.description = description;
+	}
+
+	public EncodedText getText() {
+		return text;
+	}
+
+	public void setText(EncodedText text) {
+		this.text = text;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = super.hashCode();
+		result = prime * result + ((description == null) ? 0 : description.hashCode());
+		result = prime * result + ((text == null) ? 0 : text.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!super.equals(obj))
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ID3v2UserTextFrameData other = (ID3v2UserTextFrameData) obj;
+		if (description == null) {
+			if (other.description != null)
+				return false;
+		} else if (!description.equals(other.description))
+			return false;
+		if (text == null) {
+			if (other.text != null)
+				return false;
+		} else if (!text.equals(other.text))
+			return false;
+		return true;
+	}
+}
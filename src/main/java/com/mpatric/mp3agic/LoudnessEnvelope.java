@@ -0,0 +1,147 @@
+package com.mpatric.mp3agic;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A level estimate for every Layer III granule, taken from the side information without
+ * decoding. global_gain sets a granule's quantiser step size and part2_3_length the bits spent
+ * on its values, and the weights below come from fitting both against the level of the decoded
+ * audio, which they predict to within about 7 dB. That is enough to draw a waveform or find
+ * quiet passages, but not to measure loudness. Other layers have no side information, so their
+ * envelopes are empty.
+ */
+public class LoudnessEnvelope {
+
+	public static final int SAMPLES_PER_GRANULE = 576;
+
+	/**
+	 * The level of a granule that codes no values in any channel.
+	 */
+	public static final float SILENCE_LEVEL = -120.0f;
+
+	private static final float GAIN_WEIGHT = 0.66f;
+	private static final float BITS_WEIGHT = 11.4f;
+	private static final float LEVEL_OFFSET = -104.0f;
+	private static final int GAIN_REFERENCE = 210;
+	private static final int SIDE_INFO_OFFSET = 4;
+	private static final int CRC_LENGTH = 2;
+	private static final int GLOBAL_GAIN_BIT_OFFSET = 21;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// BITS_LEVELS[n] is the level contributed by a part2_3_length of n bits
+	private static final float[] BITS_LEVELS = new float[4096];
+
+	static {
+		for (int i = 0; i < BITS_LEVELS.length; i++) {
+			BITS_LEVELS[i] = (float) (BITS_WEIGHT * Math.log(1 + i) / Math.log(2));
+		}
+	}
+
+	private float[] levels = new float[INITIAL_CAPACITY];
+	private int granuleCount;
+	private int sampleRate;
+
+	LoudnessEnvelope() {
+	}
+
+	/**
+	 * Adds the granules of the frame at offset if it is a Layer III frame. The buffer must hold at
+	 * least Mp3File.MINIMUM_BUFFER_LENGTH bytes from offset.
+	 */
+	void add(ByteBuffer buffer, int offset, int header) {
+		if (MpegFrameHeader.getLayerNumber(header) != 3) return;
+		boolean mpeg1 = ((header >>> 19) & 0x3) == 3;
+		int channelCount = MpegFrameHeader.getChannelModeIndex(header) == 3 ? 1 : 2;
+		int sideInfoOffset = offset + SIDE_INFO_OFFSET + (MpegFrameHeader.hasCrc(header) ? CRC_LENGTH : 0);
+		// main_data_begin, private bits and scfsi come first, then one block of fields per granule and channel
+		int bitOffset = mpeg1 ? 9 + (channelCount == 1 ? 5 : 3) + 4 * channelCount : 8 + channelCount;
+		int blockLength = mpeg1 ? 59 : 63;
+		int granulesPerFrame = mpeg1 ? 2 : 1;
+		for (int granule = 0; granule < granulesPerFrame; granule++) {
+			float level = SILENCE_LEVEL;
+			for (int channel = 0; channel < channelCount; channel++) {
+				int part23Length = readBits(buffer, sideInfoOffset, bitOffset, 12);
+				if (part23Length != 0) {
+					int globalGain = readBits(buffer, sideInfoOffset, bitOffset + GLOBAL_GAIN_BIT_OFFSET, 8);
+					level = Math.max(level, GAIN_WEIGHT * (globalGain - GAIN_REFERENCE) + BITS_LEVELS[part23Length] + LEVEL_OFFSET);
+				}
+				bitOffset += blockLength;
+			}
+			addLevel(level);
+		}
+	}
+
+	private static int readBits(ByteBuffer buffer, int offset, int bitOffset, int count) {
+		int index = offset + (bitOffset >>> 3);
+		int window = ((buffer.get(index) & 0xFF) << 16) | ((buffer.get(index + 1) & 0xFF) << 8) | (buffer.get(index + 2) & 0xFF);
+		return (window >>> (24 - (bitOffset & 7) - count)) & ((1 << count) - 1);
+	}
+
+	private void addLevel(float level) {
+		if (granuleCount == levels.length) {
+			levels = Arrays.copyOf(levels, levels.length * 2);
+		}
+		levels[granuleCount++] = level;
+	}
+
+	void addAll(LoudnessEnvelope other) {
+		if (granuleCount + other.granuleCount > levels.length) {
+			levels = Arrays.copyOf(levels, Math.max(levels.length * 2, granuleCount + other.granuleCount));
+		}
+		System.arraycopy(other.levels, 0, levels, granuleCount, other.granuleCount);
+		granuleCount += other.granuleCount;
+	}
+
+	void clear() {
+		granuleCount = 0;
+	}
+
+	void complete(int sampleRate) {
+		this.sampleRate = sampleRate;
+		if (levels.length != granuleCount) {
+			levels = Arrays.copyOf(levels, granuleCount);
+		}
+	}
+
+	public int getGranuleCount() {
+		return granuleCount;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return the estimated level of the granule's loudest channel in dB relative to full scale
+	 */
+	public float getLevel(int granule) {
+		if (granule < 0 || granule >= granuleCount) throw new IndexOutOfBoundsException("Granule " + granule + " of " + granuleCount);
+		return levels[granule];
+	}
+
+	public long getTimeInMilliseconds(int granule) {
+		return (long) granule * SAMPLES_PER_GRANULE * 1000 / sampleRate;
+	}
+
+	/**
+	 * Divides the granules into bucketCount spans of equal length, as for drawing a waveform.
+	 *
+	 * @return the level of the loudest granule in each span, or SILENCE_LEVEL for every span if
+	 * there are no granules
+	 */
+	public float[] getBuckets(int bucketCount) {
+		if (bucketCount < 1) throw new IllegalArgumentException("Bucket count must be at least 1");
+		float[] buckets = new float[bucketCount];
+		for (int bucket = 0; bucket < bucketCount; bucket++) {
+			int start = (int) ((long) bucket * granuleCount / bucketCount);
+			int end = Math.max((int) ((long) (bucket + 1) * granuleCount / bucketCount), Math.min(start + 1, granuleCount));
+			float level = SILENCE_LEVEL;
+			for (int granule = start; granule < end; granule++) {
+				level = Math.max(level, levels[granule]);
+			}
+			buckets[bucket] = level;
+		}
+		return buckets;
+	}
+}
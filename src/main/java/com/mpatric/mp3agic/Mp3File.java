@@ -2,29 +2,49 @@ package com.mpatric.mp3agic;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
-import java.util.HashMap;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
 
 public class Mp3File extends FileWrapper {
 
 	private static final int DEFAULT_BUFFER_LENGTH = 65536;
-	private static final int MINIMUM_BUFFER_LENGTH = 40;
-	private static final int XING_MARKER_OFFSET_1 = 13;
-	private static final int XING_MARKER_OFFSET_2 = 21;
-	private static final int XING_MARKER_OFFSET_3 = 36;
+	private static final ScanOption[] NO_SCAN_OPTIONS = {};
+	static final int MINIMUM_BUFFER_LENGTH = 40;
+	static final int SYNC_CHAIN_LENGTH = 4;
+	static final int SYNC_LOOKAHEAD = (SYNC_CHAIN_LENGTH - 1) * MpegFrameHeader.MAXIMUM_FRAME_LENGTH + MINIMUM_BUFFER_LENGTH;
+	private static final int VBR_HEADER_BUFFER_LENGTH = 2 * SYNC_LOOKAHEAD;
+	private static final int MAPPED_WINDOW_LENGTH = 1 << 30;
+	private static final int ESTIMATE_SAMPLE_COUNT = 8;
+	private static final int ESTIMATE_SAMPLE_LENGTH = SYNC_LOOKAHEAD + MpegFrameHeader.MAXIMUM_FRAME_LENGTH;
+	private static final double ESTIMATE_PADDING_TOLERANCE = 0.25;
+	private static final int DEFAULT_PADDING_RESERVE = 2048;
+	private static final int MAXIMUM_ID3V2_LENGTH = AbstractID3v2Tag.HEADER_LENGTH + AbstractID3v2Tag.MAXIMUM_DATA_LENGTH + AbstractID3v2Tag.FOOTER_LENGTH;
 
 	protected int bufferLength;
-	private int xingOffset = -1;
-	private int startOffset = -1;
-	private int endOffset = -1;
+	private long xingOffset = -1;
+	private long startOffset = -1;
+	private long endOffset = -1;
 	private int frameCount = 0;
-	private final Map<Integer, MutableInteger> bitrates = new HashMap<>();
+	private final int[] bitrateCounts = new int[MpegFrameHeader.BITRATE_INDEX_COUNT];
+	private int streamHeader;
 	private int xingBitrate;
-	private double bitrate = 0;
+	private VbrHeader vbrHeader;
+	private boolean trustVbrHeader;
+	private boolean lengthEstimated;
+	private long lengthError;
+	private long scanLimit = Long.MAX_VALUE;
+	private boolean scanLimitReached;
+	private int samplesPerFrame;
 	private String channelMode;
 	private String emphasis;
 	private String layer;
@@ -34,9 +54,29 @@ public class Mp3File extends FileWrapper {
 	private boolean original;
 	private String version;
 	private ID3v1 id3v1Tag;
+	private boolean id3v1TagOnDisk;
 	private ID3v2 id3v2Tag;
-	private byte[] customTag;
+	private ByteBuffer customTag;
+	private long customTagOffset = -1;
+	private int customTagLength;
+	private boolean customTagChanged;
 	private boolean scanFile;
+	private ScanMode scanMode;
+	private final EnumSet<ScanOption> scanOptions = EnumSet.noneOf(ScanOption.class);
+	private MpegFrameIndex frameIndex;
+	private AudioHash audioHash;
+	private FrameCrc frameCrc;
+	private LoudnessEnvelope loudnessEnvelope;
+	private long audioOffset;
+	private int paddingReserve = DEFAULT_PADDING_RESERVE;
+	private long readBytes;
+	private int readCalls;
+	// the end of the furthest region mapped, which readBytes has already counted
+	private long mappedEnd;
+	private int resyncCount;
+	// the frames whose headers the scan read, which the frame count exceeds when it was taken from
+	// a VBR header or estimated
+	private int scannedFrameCount;
 
 	protected Mp3File() {
 	}
@@ -55,7 +95,16 @@ public class Mp3File extends FileWrapper {
 
 	public Mp3File(String filename, int bufferLength, boolean scanFile) throws IOException, UnsupportedTagException, InvalidDataException {
 		super(filename);
-		init(bufferLength, scanFile);
+		init(bufferLength, scanFile, ScanMode.BUFFERED, NO_SCAN_OPTIONS);
+	}
+
+	public Mp3File(String filename, ScanMode scanMode, ScanOption... scanOptions) throws IOException, UnsupportedTagException, InvalidDataException {
+		this(filename, DEFAULT_BUFFER_LENGTH, scanMode, scanOptions);
+	}
+
+	public Mp3File(String filename, int bufferLength, ScanMode scanMode, ScanOption... scanOptions) throws IOException, UnsupportedTagException, InvalidDataException {
+		super(filename);
+		init(bufferLength, true, scanMode, scanOptions);
 	}
 
 	public Mp3File(File file) throws IOException, UnsupportedTagException, InvalidDataException {
@@ -68,7 +117,16 @@ public class Mp3File extends FileWrapper {
 
 	public Mp3File(File file, int bufferLength, boolean scanFile) throws IOException, UnsupportedTagException, InvalidDataException {
 		super(file);
-		init(bufferLength, scanFile);
+		init(bufferLength, scanFile, ScanMode.BUFFERED, NO_SCAN_OPTIONS);
+	}
+
+	public Mp3File(File file, ScanMode scanMode, ScanOption... scanOptions) throws IOException, UnsupportedTagException, InvalidDataException {
+		this(file, DEFAULT_BUFFER_LENGTH, scanMode, scanOptions);
+	}
+
+	public Mp3File(File file, int bufferLength, ScanMode scanMode, ScanOption... scanOptions) throws IOException, UnsupportedTagException, InvalidDataException {
+		super(file);
+		init(bufferLength, true, scanMode, scanOptions);
 	}
 
 	public Mp3File(Path path) throws IOException, UnsupportedTagException, InvalidDataException {
@@ -81,26 +139,124 @@ public class Mp3File extends FileWrapper {
 
 	public Mp3File(Path path, int bufferLength, boolean scanFile) throws IOException, UnsupportedTagException, InvalidDataException {
 		super(path);
-		init(bufferLength, scanFile);
+		init(bufferLength, scanFile, ScanMode.BUFFERED, NO_SCAN_OPTIONS);
+	}
+
+	public Mp3File(Path path, ScanMode scanMode, ScanOption... scanOptions) throws IOException, UnsupportedTagException, InvalidDataException {
+		this(path, DEFAULT_BUFFER_LENGTH, scanMode, scanOptions);
+	}
+
+	public Mp3File(Path path, int bufferLength, ScanMode scanMode, ScanOption... scanOptions) throws IOException, UnsupportedTagException, InvalidDataException {
+		super(path);
+		init(bufferLength, true, scanMode, scanOptions);
 	}
 
-	private void init(int bufferLength, boolean scanFile) throws IOException, UnsupportedTagException, InvalidDataException {
+	private void init(int bufferLength, boolean scanFile, ScanMode scanMode, ScanOption[] scanOptions) throws IOException, UnsupportedTagException, InvalidDataException {
 		if (bufferLength < MINIMUM_BUFFER_LENGTH + 1) throw new IllegalArgumentException("Buffer too small");
+		if (scanMode == null) throw new NullPointerException();
 
 		this.bufferLength = bufferLength;
 		this.scanFile = scanFile;
+		this.scanMode = scanMode;
+		Collections.addAll(this.scanOptions, scanOptions);
+		if (this.scanOptions.contains(ScanOption.FRAME_INDEX) && scanMode != ScanMode.TAGS_ONLY) frameIndex = new MpegFrameIndex();
+		if (this.scanOptions.contains(ScanOption.AUDIO_HASH) && scanMode != ScanMode.TAGS_ONLY) audioHash = new AudioHash();
+		if (this.scanOptions.contains(ScanOption.VERIFY_CRC) && scanMode != ScanMode.TAGS_ONLY) frameCrc = new FrameCrc();
+		if (this.scanOptions.contains(ScanOption.LOUDNESS_ENVELOPE) && scanMode != ScanMode.TAGS_ONLY) loudnessEnvelope = new LoudnessEnvelope();
 
-		try (SeekableByteChannel seekableByteChannel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+		ScanEvents.FileOpen event = new ScanEvents.FileOpen();
+		event.begin();
+		long startTime = System.nanoTime();
+		try (SeekableByteChannel seekableByteChannel = openChannel()) {
 			initId3v1Tag(seekableByteChannel);
-			scanFile(seekableByteChannel);
+			if (scanMode == ScanMode.TAGS_ONLY) {
+				initId3v2TagOnly(seekableByteChannel);
+				return;
+			}
+			scanFrames(seekableByteChannel);
 			if (startOffset < 0) {
 				throw new InvalidDataException("No mpegs frames found");
 			}
+			if (frameIndex != null) {
+				frameIndex.complete(sampleRate, samplesPerFrame, getLength(), getLastModified());
+			}
+			if (loudnessEnvelope != null) {
+				loudnessEnvelope.complete(sampleRate);
+			}
 			initId3v2Tag(seekableByteChannel);
 			if (scanFile) {
-				initCustomTag(seekableByteChannel);
+				initCustomTag();
+			}
+		} finally {
+			ScanStatistics.fileOpened(System.nanoTime() - startTime, readBytes, readCalls, resyncCount, scannedFrameCount);
+			event.end();
+			if (event.shouldCommit()) {
+				event.path = path.toString();
+				event.scanMode = scanMode.name();
+				event.fileLength = getLength();
+				event.bytesRead = readBytes;
+				event.readCalls = readCalls;
+				event.resyncs = resyncCount;
+				event.framesScanned = scannedFrameCount;
+				event.frameCount = frameCount;
+				event.tagSize = id3v2Tag != null ? id3v2Tag.getLength() : 0;
+				event.commit();
+			}
+		}
+	}
+
+	private void scanFrames(SeekableByteChannel seekableByteChannel) throws IOException, InvalidDataException {
+		ScanEvents.FrameScan event = new ScanEvents.FrameScan();
+		event.begin();
+		long startReadBytes = readBytes;
+		int startReadCalls = readCalls;
+		try {
+			if (scanMode == ScanMode.MAPPED) {
+				scanMappedFile((FileChannel) seekableByteChannel);
+			} else if (scanMode == ScanMode.PARALLEL) {
+				scanParallel((FileChannel) seekableByteChannel);
+			} else if (scanMode == ScanMode.VBR_HEADER) {
+				scanVbrHeader(seekableByteChannel);
+			} else if (scanMode == ScanMode.ESTIMATE) {
+				scanEstimate(seekableByteChannel);
+			} else {
+				scanFile(seekableByteChannel, bufferLength);
 			}
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.path = path.toString();
+				event.bytesRead = readBytes - startReadBytes;
+				event.readCalls = readCalls - startReadCalls;
+				event.resyncs = resyncCount;
+				event.framesScanned = scannedFrameCount;
+				event.frameCount = frameCount;
+				event.vbrHeaderTrusted = trustVbrHeader;
+				event.commit();
+			}
+		}
+	}
+
+	private int read(SeekableByteChannel seekableByteChannel, ByteBuffer byteBuffer) throws IOException {
+		int bytesRead = seekableByteChannel.read(byteBuffer);
+		readCalls++;
+		if (bytesRead > 0) readBytes += bytesRead;
+		return bytesRead;
+	}
+
+	private MappedByteBuffer map(FileChannel fileChannel, long position, int length) throws IOException {
+		// a mapped region is counted as one read of its whole length
+		readCalls++;
+		readBytes += length;
+		mappedEnd = Math.max(mappedEnd, position + length);
+		return fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+	}
+
+	private SeekableByteChannel openChannel() throws IOException {
+		if (scanMode == ScanMode.MAPPED || scanMode == ScanMode.PARALLEL) {
+			return FileChannel.open(path, StandardOpenOption.READ);
 		}
+		return Files.newByteChannel(path, StandardOpenOption.READ);
 	}
 
 	protected int preScanFile(SeekableByteChannel seekableByteChannel) {
@@ -108,7 +264,7 @@ public class Mp3File extends FileWrapper {
 		try {
 			seekableByteChannel.position(0);
 			byteBuffer.clear();
-			int bytesRead = seekableByteChannel.read(byteBuffer);
+			int bytesRead = read(seekableByteChannel, byteBuffer);
 			if (bytesRead == AbstractID3v2Tag.HEADER_LENGTH) {
 				try {
 					byte[] bytes = byteBuffer.array();
@@ -124,211 +280,544 @@ public class Mp3File extends FileWrapper {
 		return 0;
 	}
 
-	private void scanFile(SeekableByteChannel seekableByteChannel) throws IOException, InvalidDataException {
-		ByteBuffer byteBuffer = ByteBuffer.allocate(bufferLength);
-		int fileOffset = preScanFile(seekableByteChannel);
+	private void scanFile(SeekableByteChannel seekableByteChannel, int bufferLength) throws IOException, InvalidDataException {
+		// the buffer must hold a whole chain of frames beyond the last start candidate it examines
+		ByteBuffer byteBuffer = ByteBuffer.allocate(Math.max(bufferLength, 2 * SYNC_LOOKAHEAD));
+		long fileOffset = preScanFile(seekableByteChannel);
 		seekableByteChannel.position(fileOffset);
-		boolean lastBlock = false;
-		int lastOffset = fileOffset;
-		while (!lastBlock) {
-			byteBuffer.clear();
-			int bytesRead = seekableByteChannel.read(byteBuffer);
-			byte[] bytes = byteBuffer.array();
-			if (bytesRead < bufferLength) lastBlock = true;
-			if (bytesRead >= MINIMUM_BUFFER_LENGTH) {
-				while (true) {
-					try {
-						int offset = 0;
-						if (startOffset < 0) {
-							offset = scanBlockForStart(bytes, bytesRead, fileOffset, offset);
-							if (startOffset >= 0 && !scanFile) {
-								return;
-							}
-							lastOffset = startOffset;
-						}
-						offset = scanBlock(bytes, bytesRead, fileOffset, offset);
-						fileOffset += offset;
-						seekableByteChannel.position(fileOffset);
-						break;
-					} catch (InvalidDataException e) {
-						if (frameCount < 2) {
-							startOffset = -1;
-							xingOffset = -1;
-							frameCount = 0;
-							bitrates.clear();
-							lastBlock = false;
-							fileOffset = lastOffset + 1;
-							if (fileOffset == 0)
-								throw new InvalidDataException("Valid start of mpeg frames not found", e);
-							seekableByteChannel.position(fileOffset);
-							break;
-						}
+		byteBuffer.limit(0);
+		int offset = 0;
+		while (true) {
+			// keep the bytes not examined yet rather than seeking back and reading them again
+			if (offset < byteBuffer.limit()) {
+				byteBuffer.position(offset);
+				byteBuffer.compact();
+			} else {
+				if (offset > byteBuffer.limit()) seekableByteChannel.position(fileOffset + offset);
+				byteBuffer.clear();
+			}
+			fileOffset += offset;
+			read(seekableByteChannel, byteBuffer);
+			byteBuffer.flip();
+			int bytesRead = byteBuffer.limit();
+			boolean lastBlock = bytesRead < byteBuffer.capacity();
+			if (bytesRead < MINIMUM_BUFFER_LENGTH) {
+				return;
+			}
+			try {
+				offset = 0;
+				if (startOffset < 0) {
+					offset = scanBlockForStart(byteBuffer, bytesRead, fileOffset, offset, lastBlock);
+					if (startOffset >= 0 && !scanFile) {
 						return;
 					}
 				}
+				if (startOffset >= 0) {
+					offset = scanBlock(byteBuffer, bytesRead, fileOffset, offset);
+				}
+			} catch (InvalidDataException e) {
+				return;
+			}
+			if (lastBlock || scanLimitReached) {
+				return;
 			}
 		}
 	}
 
-	private int scanBlockForStart(byte[] bytes, int bytesRead, int absoluteOffset, int offset) {
-		while (offset < bytesRead - MINIMUM_BUFFER_LENGTH) {
-			if (bytes[offset] == (byte) 0xFF && (bytes[offset + 1] & (byte) 0xE0) == (byte) 0xE0) {
-				try {
-					MpegFrame frame = new MpegFrame(bytes[offset], bytes[offset + 1], bytes[offset + 2], bytes[offset + 3]);
-					if (xingOffset < 0 && isXingFrame(bytes, offset)) {
-						xingOffset = absoluteOffset + offset;
-						xingBitrate = frame.getBitrate();
-						offset += frame.getLengthInBytes();
-					} else {
-						startOffset = absoluteOffset + offset;
-						channelMode = frame.getChannelMode();
-						emphasis = frame.getEmphasis();
-						layer = frame.getLayer();
-						modeExtension = frame.getModeExtension();
-						sampleRate = frame.getSampleRate();
-						version = frame.getVersion();
-						copyright = frame.isCopyright();
-						original = frame.isOriginal();
-						frameCount++;
-						addBitrate(frame.getBitrate());
-						offset += frame.getLengthInBytes();
-						return offset;
+	private void scanMappedFile(FileChannel fileChannel) throws IOException, InvalidDataException {
+		long length = getLength();
+		long fileOffset = preScanFile(fileChannel);
+		while (true) {
+			long windowStart = fileOffset;
+			int windowLength = (int) Math.min(length - windowStart, MAPPED_WINDOW_LENGTH);
+			boolean lastWindow = windowStart + windowLength == length;
+			MappedByteBuffer mappedBuffer = map(fileChannel, windowStart, windowLength);
+			int offset = 0;
+			try {
+				if (startOffset < 0) {
+					offset = scanBlockForStart(mappedBuffer, windowLength, windowStart, offset, lastWindow);
+					if (startOffset >= 0 && !scanFile) {
+						return;
 					}
-				} catch (InvalidDataException e) {
-					offset++;
 				}
-			} else {
-				offset++;
+				if (startOffset >= 0) {
+					offset = scanBlock(mappedBuffer, windowLength, windowStart, offset);
+				}
+			} catch (InvalidDataException e) {
+				return;
+			}
+			if (lastWindow || scanLimitReached) {
+				return;
 			}
+			fileOffset = windowStart + offset;
 		}
-		return offset;
 	}
 
-	private int scanBlock(byte[] bytes, int bytesRead, int absoluteOffset, int offset) throws InvalidDataException {
-		while (offset < bytesRead - MINIMUM_BUFFER_LENGTH) {
-			MpegFrame frame = new MpegFrame(bytes[offset], bytes[offset + 1], bytes[offset + 2], bytes[offset + 3]);
-			sanityCheckFrame(frame, absoluteOffset + offset);
-			int newEndOffset = absoluteOffset + offset + frame.getLengthInBytes() - 1;
-			if (newEndOffset < maxEndOffset()) {
-				endOffset = absoluteOffset + offset + frame.getLengthInBytes() - 1;
-				frameCount++;
-				addBitrate(frame.getBitrate());
-				offset += frame.getLengthInBytes();
+	private void scanParallel(FileChannel fileChannel) throws IOException, InvalidDataException {
+		// walk sequentially until a resync can no longer happen, then hand the rest to the segment scanner
+		scanLimit = 0;
+		scanMappedFile(fileChannel);
+		scanLimit = Long.MAX_VALUE;
+		if (!scanLimitReached) {
+			return;
+		}
+		ParallelFrameScanner scanner = new ParallelFrameScanner(fileChannel, getLength(), maxEndOffset(), streamHeader, frameIndex != null, frameCrc != null, loudnessEnvelope != null);
+		long segmentStart = endOffset + 1;
+		ParallelFrameScanner.Segment segment = scanner.scan(segmentStart);
+		// the segments map the rest of the file, of which the sequential walk has mapped a part
+		readCalls++;
+		readBytes += Math.max(getLength() - Math.max(mappedEnd, segmentStart), 0);
+		if (segment.getFrameCount() > 0) {
+			frameCount += segment.getFrameCount();
+			scannedFrameCount += segment.getFrameCount();
+			for (int i = 0; i < MpegFrameHeader.BITRATE_INDEX_COUNT; i++) {
+				bitrateCounts[i] += segment.getBitrateCounts()[i];
+			}
+			endOffset = segment.getEndOffset();
+			if (frameIndex != null) frameIndex.addAll(segment.getFrameIndex());
+			if (frameCrc != null) frameCrc.addAll(segment.getFrameCrc());
+			if (loudnessEnvelope != null) loudnessEnvelope.addAll(segment.getLoudnessEnvelope());
+			if (audioHash != null) hashRange(fileChannel, segmentStart, endOffset + 1);
+		}
+	}
+
+	private void hashRange(FileChannel fileChannel, long from, long to) throws IOException {
+		// the segments cannot be checksummed separately, so this walks the pages they have just mapped
+		while (from < to) {
+			int windowLength = (int) Math.min(to - from, MAPPED_WINDOW_LENGTH);
+			MappedByteBuffer mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, from, windowLength);
+			audioHash.update(mappedBuffer, 0, windowLength);
+			from += windowLength;
+		}
+	}
+
+	private void scanVbrHeader(SeekableByteChannel seekableByteChannel) throws IOException, InvalidDataException {
+		scanFile = false;
+		scanFile(seekableByteChannel, Math.min(bufferLength, VBR_HEADER_BUFFER_LENGTH));
+		if (startOffset >= 0 && useVbrHeader()) {
+			return;
+		}
+		resetScan();
+		scanFile = true;
+		scanFile(seekableByteChannel, bufferLength);
+	}
+
+	private void scanEstimate(SeekableByteChannel seekableByteChannel) throws IOException, InvalidDataException {
+		scanFile = false;
+		scanFile(seekableByteChannel, Math.min(bufferLength, VBR_HEADER_BUFFER_LENGTH));
+		if (startOffset >= 0 && (useVbrHeader() || estimateFrameCount(seekableByteChannel))) {
+			return;
+		}
+		resetScan();
+		scanFile = true;
+		scanFile(seekableByteChannel, bufferLength);
+	}
+
+	/**
+	 * Reads ESTIMATE_SAMPLE_COUNT blocks spread between the first frame and the end of the file,
+	 * and a block at the end of the file to find where the last frame ends. If every sampled frame
+	 * has the bitrate of the first frame, the stream is taken to be CBR and the frame count is the
+	 * length of the audio divided by the average frame length. The sampled frames must also be
+	 * padded as the standard prescribes, since the average frame length depends on it.
+	 *
+	 * @return false if a sample did not hold a chain of frames with the bitrate of the first frame,
+	 * or the sampled frames were padded irregularly
+	 */
+	private boolean estimateFrameCount(SeekableByteChannel seekableByteChannel) throws IOException {
+		if (collectsFrameData()) return false;
+		long audioLength = maxEndOffset() - startOffset;
+		if (audioLength < 2L * ESTIMATE_SAMPLE_COUNT * ESTIMATE_SAMPLE_LENGTH) return false;
+		int bitrateIndex = MpegFrameHeader.getBitrateIndex(streamHeader);
+		ByteBuffer byteBuffer = ByteBuffer.allocate(ESTIMATE_SAMPLE_LENGTH);
+		long sampleOffset;
+		int[] sampledFrames = new int[2];
+		for (int sample = 0; sample <= ESTIMATE_SAMPLE_COUNT; sample++) {
+			// the last sample ends at the end of the audio, the others are spread evenly from the first frame
+			if (sample == ESTIMATE_SAMPLE_COUNT) sampleOffset = maxEndOffset() - ESTIMATE_SAMPLE_LENGTH;
+			else sampleOffset = startOffset + audioLength / ESTIMATE_SAMPLE_COUNT * sample;
+			byteBuffer.clear();
+			seekableByteChannel.position(sampleOffset);
+			while (byteBuffer.hasRemaining() && read(seekableByteChannel, byteBuffer) >= 0) {
+				// read the whole sample
+			}
+			byteBuffer.flip();
+			int walkedEnd = walkSample(byteBuffer, byteBuffer.limit(), sampleOffset, bitrateIndex, sampledFrames);
+			if (walkedEnd < 0) return false;
+			if (sample == ESTIMATE_SAMPLE_COUNT) endOffset = sampleOffset + walkedEnd - 1;
+		}
+		int bitrate = MpegFrameHeader.getBitrate(streamHeader);
+		double averageFrameLength = bitrate * 125.0 * samplesPerFrame / sampleRate;
+		if (Math.abs((double) sampledFrames[1] / sampledFrames[0] - averageFrameLength) > ESTIMATE_PADDING_TOLERANCE) return false;
+		frameCount = (int) Math.round((endOffset + 1 - startOffset) / averageFrameLength);
+		Arrays.fill(bitrateCounts, 0);
+		bitrateCounts[bitrateIndex] = frameCount;
+		lengthEstimated = true;
+		// the frame count is rounded, so it may be off by one frame
+		lengthError = (samplesPerFrame * 1000L + sampleRate - 1) / sampleRate;
+		return true;
+	}
+
+	/**
+	 * Finds a chain of frames with the given bitrate index near the start of the buffer and walks
+	 * it to the last frame that lies wholly within the buffer.
+	 *
+	 * @param sampledFrames the number of frames and bytes walked so far, which this adds to
+	 * @return the offset following the last frame walked, or -1 if no chain was found or a frame
+	 * in it has another bitrate
+	 */
+	private int walkSample(ByteBuffer buffer, int bytesRead, long absoluteOffset, int bitrateIndex, int[] sampledFrames) {
+		int searchEnd = Math.min(bytesRead - MINIMUM_BUFFER_LENGTH, MpegFrameHeader.MAXIMUM_FRAME_LENGTH);
+		for (int offset = MpegFrameHeader.findSync(buffer, 0, searchEnd); offset < searchEnd; offset = MpegFrameHeader.findSync(buffer, offset + 1, searchEnd)) {
+			int header = MpegFrameHeader.read(buffer, offset);
+			if (MpegFrameHeader.getFrameLength(header) == 0 || !MpegFrameHeader.isSameStream(header, streamHeader)) continue;
+			if (MpegFrameHeader.getBitrateIndex(header) != bitrateIndex) continue;
+			if (!isFrameChain(buffer, bytesRead, absoluteOffset, offset, header)) continue;
+			while (offset + 4 <= bytesRead) {
+				header = MpegFrameHeader.read(buffer, offset);
+				int frameLength = MpegFrameHeader.getFrameLength(header);
+				if (frameLength == 0 || !MpegFrameHeader.isSameStream(header, streamHeader) || offset + frameLength > bytesRead) break;
+				if (MpegFrameHeader.getBitrateIndex(header) != bitrateIndex) return -1;
+				sampledFrames[0]++;
+				scannedFrameCount++;
+				sampledFrames[1] += frameLength;
+				offset += frameLength;
+			}
+			return offset;
+		}
+		return -1;
+	}
+
+	private boolean useVbrHeader() {
+		if (vbrHeader == null || !vbrHeader.hasFrameCount() || vbrHeader.getFrameCount() == 0) return false;
+		if (collectsFrameData()) return false;
+		long lastByte = maxEndOffset() - 1;
+		if (vbrHeader.hasByteCount()) {
+			long headerLastByte = xingOffset + vbrHeader.getByteCount() - 1;
+			if (headerLastByte > lastByte || headerLastByte <= startOffset) return false;
+			lastByte = headerLastByte;
+		}
+		endOffset = lastByte;
+		frameCount = vbrHeader.getFrameCount();
+		trustVbrHeader = true;
+		return true;
+	}
+
+	private void resetScan() {
+		startOffset = -1;
+		xingOffset = -1;
+		endOffset = -1;
+		frameCount = 0;
+		Arrays.fill(bitrateCounts, 0);
+		vbrHeader = null;
+		lengthEstimated = false;
+		lengthError = 0;
+		if (frameIndex != null) frameIndex.clear();
+		if (audioHash != null) audioHash.reset();
+		if (frameCrc != null) frameCrc.reset();
+		if (loudnessEnvelope != null) loudnessEnvelope.clear();
+	}
+
+	/**
+	 * @return true if a scan option needs every frame to be walked
+	 */
+	private boolean collectsFrameData() {
+		return frameIndex != null || audioHash != null || frameCrc != null || loudnessEnvelope != null;
+	}
+
+	private int scanBlockForStart(ByteBuffer buffer, int bytesRead, long absoluteOffset, int offset, boolean lastBlock) {
+		int searchEnd = lastBlock ? bytesRead - MINIMUM_BUFFER_LENGTH : bytesRead - SYNC_LOOKAHEAD;
+		while (offset < searchEnd) {
+			offset = MpegFrameHeader.findSync(buffer, offset, searchEnd);
+			if (offset >= searchEnd) break;
+			int header = MpegFrameHeader.read(buffer, offset);
+			int frameLength = MpegFrameHeader.getFrameLength(header);
+			if (frameLength == 0) {
+				offset++;
+			} else if (xingOffset < 0 && isXingFrame(buffer, offset)) {
+				xingOffset = absoluteOffset + offset;
+				xingBitrate = MpegFrameHeader.getBitrate(header);
+				vbrHeader = createVbrHeader(buffer, offset);
+				offset += frameLength;
+			} else if (!isFrameChain(buffer, bytesRead, absoluteOffset, offset, header)) {
+				resyncCount++;
+				offset++;
 			} else {
-				break;
+				startOffset = absoluteOffset + offset;
+				streamHeader = header;
+				channelMode = MpegFrameHeader.getChannelMode(header);
+				emphasis = MpegFrameHeader.getEmphasis(header);
+				layer = MpegFrameHeader.getLayer(header);
+				modeExtension = MpegFrameHeader.getModeExtension(header);
+				sampleRate = MpegFrameHeader.getSampleRate(header);
+				samplesPerFrame = MpegFrameHeader.getSamplesPerFrame(header);
+				version = MpegFrameHeader.getVersion(header);
+				copyright = MpegFrameHeader.isCopyright(header);
+				original = MpegFrameHeader.isOriginal(header);
+				if (frameIndex != null) frameIndex.add(startOffset);
+				if (audioHash != null) audioHash.update(buffer, offset, Math.min(offset + frameLength, bytesRead));
+				if (frameCrc != null) frameCrc.check(buffer, offset, startOffset, header);
+				if (loudnessEnvelope != null) loudnessEnvelope.add(buffer, offset, header);
+				frameCount++;
+				scannedFrameCount++;
+				addBitrate(header);
+				offset += frameLength;
+				return offset;
 			}
 		}
 		return offset;
 	}
 
-	private int maxEndOffset() {
-		int maxEndOffset = (int) getLength();
-		if (hasId3v1Tag()) maxEndOffset -= ID3v1Tag.TAG_LENGTH;
-		return maxEndOffset;
+	/**
+	 * A start candidate is only accepted if it is followed by SYNC_CHAIN_LENGTH - 1 consistent
+	 * frames, or by fewer that run up to the end of the audio or of the file. scanBlockForStart
+	 * leaves SYNC_LOOKAHEAD bytes after the candidates it examines in all but the last block, so
+	 * the chain is always decided within the buffer. Each byte is therefore read once and tried
+	 * as a candidate once, at a cost of at most SYNC_CHAIN_LENGTH header decodes, and finding the
+	 * start of the audio takes time linear in the length of the junk before it.
+	 */
+	private boolean isFrameChain(ByteBuffer buffer, int bytesRead, long absoluteOffset, int offset, int header) {
+		int streamHeader = header;
+		for (int chained = 1; chained < SYNC_CHAIN_LENGTH; chained++) {
+			offset += MpegFrameHeader.getFrameLength(header);
+			if (offset >= bytesRead - MINIMUM_BUFFER_LENGTH) return true;
+			header = MpegFrameHeader.read(buffer, offset);
+			int frameLength = MpegFrameHeader.getFrameLength(header);
+			if (frameLength == 0 || !MpegFrameHeader.isSameStream(header, streamHeader)) return false;
+			if (absoluteOffset + offset + frameLength - 1 >= maxEndOffset()) return true;
+		}
+		return true;
 	}
 
-	private boolean isXingFrame(byte[] bytes, int offset) {
-		if (bytes.length >= offset + XING_MARKER_OFFSET_1 + 3) {
-			if ("Xing".equals(BufferTools.byteBufferToStringIgnoringEncodingIssues(bytes, offset + XING_MARKER_OFFSET_1, 4)))
-				return true;
-			if ("Info".equals(BufferTools.byteBufferToStringIgnoringEncodingIssues(bytes, offset + XING_MARKER_OFFSET_1, 4)))
-				return true;
-			if (bytes.length >= offset + XING_MARKER_OFFSET_2 + 3) {
-				if ("Xing".equals(BufferTools.byteBufferToStringIgnoringEncodingIssues(bytes, offset + XING_MARKER_OFFSET_2, 4)))
-					return true;
-				if ("Info".equals(BufferTools.byteBufferToStringIgnoringEncodingIssues(bytes, offset + XING_MARKER_OFFSET_2, 4)))
-					return true;
-				if (bytes.length >= offset + XING_MARKER_OFFSET_3 + 3) {
-					if ("Xing".equals(BufferTools.byteBufferToStringIgnoringEncodingIssues(bytes, offset + XING_MARKER_OFFSET_3, 4)))
-						return true;
-					if ("Info".equals(BufferTools.byteBufferToStringIgnoringEncodingIssues(bytes, offset + XING_MARKER_OFFSET_3, 4)))
-						return true;
+	private int scanBlock(ByteBuffer buffer, int bytesRead, long absoluteOffset, int offset) throws InvalidDataException {
+		int blockStart = offset;
+		try {
+			while (offset < bytesRead - MINIMUM_BUFFER_LENGTH) {
+				if (frameCount >= 2 && absoluteOffset + offset >= scanLimit) {
+					scanLimitReached = true;
+					break;
+				}
+				int header = MpegFrameHeader.read(buffer, offset);
+				int frameLength = MpegFrameHeader.getFrameLength(header);
+				sanityCheckFrame(header, frameLength, absoluteOffset + offset);
+				// leave a frame that runs past the block to the next block, so that all of its bytes are hashed
+				if (audioHash != null && offset + frameLength > bytesRead) break;
+				long newEndOffset = absoluteOffset + offset + frameLength - 1;
+				if (newEndOffset < maxEndOffset()) {
+					if (frameIndex != null) frameIndex.add(absoluteOffset + offset);
+					if (frameCrc != null) frameCrc.check(buffer, offset, absoluteOffset + offset, header);
+					if (loudnessEnvelope != null) loudnessEnvelope.add(buffer, offset, header);
+					endOffset = newEndOffset;
+					frameCount++;
+					scannedFrameCount++;
+					addBitrate(header);
+					offset += frameLength;
+				} else {
+					break;
 				}
 			}
+			return offset;
+		} finally {
+			// the frames accepted in a block are contiguous, so they are hashed in one go, even if a bad frame ended the walk
+			long walkedEnd = endOffset + 1 - absoluteOffset;
+			if (audioHash != null && walkedEnd > blockStart) audioHash.update(buffer, blockStart, (int) walkedEnd);
 		}
-		return false;
 	}
 
-	private void sanityCheckFrame(MpegFrame frame, int offset) throws InvalidDataException {
-		if (sampleRate != frame.getSampleRate()) throw new InvalidDataException("Inconsistent frame header");
-		if (!layer.equals(frame.getLayer())) throw new InvalidDataException("Inconsistent frame header");
-		if (!version.equals(frame.getVersion())) throw new InvalidDataException("Inconsistent frame header");
-		if (offset + frame.getLengthInBytes() > getLength())
-			throw new InvalidDataException("Frame would extend beyond end of file");
+	private long maxEndOffset() {
+		long maxEndOffset = getLength();
+		if (hasId3v1Tag()) maxEndOffset -= ID3v1Tag.TAG_LENGTH;
+		return maxEndOffset;
 	}
 
-	private void addBitrate(final int bitrate) {
-		MutableInteger count = bitrates.get(bitrate);
-		if (count != null) {
-			count.increment();
-		} else {
-			bitrates.put(bitrate, new MutableInteger(1));
+	private boolean isXingFrame(ByteBuffer buffer, int offset) {
+		return VbrHeader.findMarker(buffer, offset) >= 0;
+	}
+
+	private VbrHeader createVbrHeader(ByteBuffer buffer, int offset) {
+		try {
+			return new VbrHeader(buffer, offset);
+		} catch (NoSuchTagException | InvalidDataException e) {
+			return null;
 		}
-		this.bitrate = ((this.bitrate * (frameCount - 1)) + bitrate) / frameCount;
+	}
+
+	private void sanityCheckFrame(int header, int frameLength, long offset) throws InvalidDataException {
+		if (frameLength == 0) throw new InvalidDataException("Invalid frame header");
+		if (!MpegFrameHeader.isSameStream(header, streamHeader)) throw new InvalidDataException("Inconsistent frame header");
+		if (offset + frameLength > getLength())
+			throw new InvalidDataException("Frame would extend beyond end of file");
+	}
+
+	private void addBitrate(int header) {
+		bitrateCounts[MpegFrameHeader.getBitrateIndex(header)]++;
+	}
+
+	private double getAverageBitrate() {
+		if (trustVbrHeader) return (endOffset - startOffset) * 8.0 / getLengthInMilliseconds();
+		if (frameCount == 0) return 0;
+		return (double) MpegFrameHeader.sumBitrates(streamHeader, bitrateCounts) / frameCount;
 	}
 
 	private void initId3v1Tag(SeekableByteChannel seekableByteChannel) throws IOException {
 		ByteBuffer byteBuffer = ByteBuffer.allocate(ID3v1Tag.TAG_LENGTH);
 		seekableByteChannel.position(getLength() - ID3v1Tag.TAG_LENGTH);
 		byteBuffer.clear();
-		int bytesRead = seekableByteChannel.read(byteBuffer);
+		int bytesRead = read(seekableByteChannel, byteBuffer);
 		if (bytesRead < ID3v1Tag.TAG_LENGTH) throw new IOException("Not enough bytes read");
 		try {
 			id3v1Tag = new ID3v1Tag(byteBuffer.array());
 		} catch (NoSuchTagException e) {
 			id3v1Tag = null;
 		}
+		id3v1TagOnDisk = id3v1Tag != null;
 	}
 
 	private void initId3v2Tag(SeekableByteChannel seekableByteChannel) throws IOException, UnsupportedTagException, InvalidDataException {
 		if (xingOffset == 0 || startOffset == 0) {
 			id3v2Tag = null;
 		} else {
-			int bufferLength;
-			if (hasXingFrame()) bufferLength = xingOffset;
-			else bufferLength = startOffset;
+			long firstFrameOffset;
+			if (hasXingFrame()) firstFrameOffset = xingOffset;
+			else firstFrameOffset = startOffset;
+			int bufferLength = (int) Math.min(firstFrameOffset, MAXIMUM_ID3V2_LENGTH);
 			ByteBuffer byteBuffer = ByteBuffer.allocate(bufferLength);
 			seekableByteChannel.position(0);
 			byteBuffer.clear();
-			int bytesRead = seekableByteChannel.read(byteBuffer);
+			ScanEvents.Id3v2TagRead event = new ScanEvents.Id3v2TagRead();
+			event.begin();
+			int bytesRead = read(seekableByteChannel, byteBuffer);
 			if (bytesRead < bufferLength) throw new IOException("Not enough bytes read");
 			try {
 				id3v2Tag = ID3v2TagFactory.createTag(byteBuffer.array());
 			} catch (NoSuchTagException e) {
 				id3v2Tag = null;
 			}
+			event.end();
+			if (event.shouldCommit()) {
+				event.path = path.toString();
+				event.bytesRead = bytesRead;
+				event.tagSize = id3v2Tag != null ? id3v2Tag.getLength() : 0;
+				event.commit();
+			}
 		}
 	}
 
-	private void initCustomTag(SeekableByteChannel seekableByteChannel) throws IOException {
-		int bufferLength = (int) (getLength() - (endOffset + 1));
-		if (hasId3v1Tag()) bufferLength -= ID3v1Tag.TAG_LENGTH;
-		if (bufferLength <= 0) {
-			customTag = null;
-		} else {
-			ByteBuffer byteBuffer = ByteBuffer.allocate(bufferLength);
-			seekableByteChannel.position(endOffset + 1);
-			byteBuffer.clear();
-			int bytesRead = seekableByteChannel.read(byteBuffer);
-			customTag = byteBuffer.array();
-			if (bytesRead < bufferLength) throw new IOException("Not enough bytes read");
+	private void initId3v2TagOnly(SeekableByteChannel seekableByteChannel) throws IOException, UnsupportedTagException, InvalidDataException {
+		ByteBuffer headerBuffer = ByteBuffer.allocate(AbstractID3v2Tag.HEADER_LENGTH);
+		seekableByteChannel.position(0);
+		if (read(seekableByteChannel, headerBuffer) < AbstractID3v2Tag.HEADER_LENGTH) return;
+		byte[] header = headerBuffer.array();
+		try {
+			ID3v2TagFactory.sanityCheckTag(header);
+		} catch (NoSuchTagException e) {
+			return;
+		}
+		long tagLength = AbstractID3v2Tag.HEADER_LENGTH + BufferTools.unpackSynchsafeInteger(header[AbstractID3v2Tag.DATA_LENGTH_OFFSET], header[AbstractID3v2Tag.DATA_LENGTH_OFFSET + 1], header[AbstractID3v2Tag.DATA_LENGTH_OFFSET + 2], header[AbstractID3v2Tag.DATA_LENGTH_OFFSET + 3]);
+		if (BufferTools.checkBit(header[AbstractID3v2Tag.FLAGS_OFFSET], AbstractID3v2Tag.FOOTER_BIT)) tagLength += AbstractID3v2Tag.FOOTER_LENGTH;
+		if (tagLength > getLength()) throw new InvalidDataException("ID3v2 tag extends beyond end of file");
+		ByteBuffer byteBuffer = ByteBuffer.allocate((int) tagLength);
+		byteBuffer.put(header);
+		while (byteBuffer.hasRemaining()) {
+			if (read(seekableByteChannel, byteBuffer) < 0) throw new IOException("Not enough bytes read");
+		}
+		try {
+			id3v2Tag = ID3v2TagFactory.createTag(byteBuffer.array());
+		} catch (NoSuchTagException e) {
+			id3v2Tag = null;
+		}
+		audioOffset = tagLength;
+	}
+
+	private void initCustomTag() {
+		// only the position is recorded here; the bytes are read by getCustomTagBuffer on first use
+		long customTagLength = getLength() - (endOffset + 1);
+		if (hasId3v1Tag()) customTagLength -= ID3v1Tag.TAG_LENGTH;
+		if (customTagLength > 0 && customTagLength <= Integer.MAX_VALUE) {
+			this.customTagOffset = endOffset + 1;
+			this.customTagLength = (int) customTagLength;
+		}
+	}
+
+	private ByteBuffer readCustomTag() throws IOException {
+		try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (fileChannel.size() != getLength()) throw new IOException("File has changed since it was opened");
+			if (customTagLength > bufferLength) {
+				return fileChannel.map(FileChannel.MapMode.READ_ONLY, customTagOffset, customTagLength);
+			}
+			ByteBuffer byteBuffer = ByteBuffer.allocate(customTagLength);
+			while (byteBuffer.hasRemaining()) {
+				if (fileChannel.read(byteBuffer, customTagOffset + byteBuffer.position()) < 0) throw new IOException("Not enough bytes read");
+			}
+			byteBuffer.flip();
+			return byteBuffer;
 		}
 	}
 
+	public ScanMode getScanMode() {
+		return scanMode;
+	}
+
+	public boolean hasScanOption(ScanOption scanOption) {
+		return scanOptions.contains(scanOption);
+	}
+
 	public int getFrameCount() {
 		return frameCount;
 	}
 
-	public int getStartOffset() {
+	public int getSamplesPerFrame() {
+		return samplesPerFrame;
+	}
+
+	public long getStartOffset() {
 		return startOffset;
 	}
 
-	public int getEndOffset() {
+	public long getEndOffset() {
 		return endOffset;
 	}
 
 	public long getLengthInMilliseconds() {
-		return (long) (((endOffset - startOffset) * (8.0 / bitrate)) + 0.5);
+		if (trustVbrHeader) {
+			return (frameCount * (long) samplesPerFrame * 1000 + sampleRate / 2) / sampleRate;
+		}
+		return (long) (((endOffset - startOffset) * (8.0 / getAverageBitrate())) + 0.5);
+	}
+
+	/**
+	 * @return the number of samples of audio, without the encoder delay and padding
+	 */
+	public long getSampleCount() {
+		return Math.max((long) frameCount * samplesPerFrame - getEncoderDelay() - getEncoderPadding(), 0);
+	}
+
+	/**
+	 * @return the sample-exact length of the audio, without the encoder delay and padding
+	 */
+	public long getGaplessLengthInMilliseconds() {
+		if (sampleRate == 0) return 0;
+		return (getSampleCount() * 1000 + sampleRate / 2) / sampleRate;
+	}
+
+	/**
+	 * @return true if the VBR header has a LAME tag giving the encoder delay and padding
+	 */
+	public boolean hasGaplessInfo() {
+		return vbrHeader != null && vbrHeader.hasLameTag();
+	}
+
+	/**
+	 * @return the samples of silence the encoder added before the audio, or 0 if not known
+	 */
+	public int getEncoderDelay() {
+		return hasGaplessInfo() ? vbrHeader.getEncoderDelay() : 0;
+	}
+
+	/**
+	 * @return the samples of silence the encoder added after the audio, or 0 if not known
+	 */
+	public int getEncoderPadding() {
+		return hasGaplessInfo() ? vbrHeader.getEncoderPadding() : 0;
 	}
 
 	public long getLengthInSeconds() {
@@ -336,15 +825,33 @@ public class Mp3File extends FileWrapper {
 	}
 
 	public boolean isVbr() {
-		return bitrates.size() > 1;
+		if (trustVbrHeader) return vbrHeader.isVbr();
+		return MpegFrameHeader.countBitrates(bitrateCounts) > 1;
 	}
 
 	public int getBitrate() {
-		return (int) (bitrate + 0.5);
+		return (int) (getAverageBitrate() + 0.5);
 	}
 
+	/**
+	 * @return the number of frames with each bitrate; a copy built from getBitrateCounts()
+	 */
 	public Map<Integer, MutableInteger> getBitrates() {
-		return bitrates;
+		return MpegFrameHeader.toBitrateMap(streamHeader, bitrateCounts);
+	}
+
+	/**
+	 * @return the number of frames with each bitrate index, decoded with MpegFrameHeader.getBitrate(getFrameHeader(), index)
+	 */
+	public int[] getBitrateCounts() {
+		return bitrateCounts.clone();
+	}
+
+	/**
+	 * @return the header of the first audio frame, which shares version, layer and sample rate with every frame of the stream
+	 */
+	public int getFrameHeader() {
+		return streamHeader;
 	}
 
 	public String getChannelMode() {
@@ -383,7 +890,7 @@ public class Mp3File extends FileWrapper {
 		return (xingOffset >= 0);
 	}
 
-	public int getXingOffset() {
+	public long getXingOffset() {
 		return xingOffset;
 	}
 
@@ -391,6 +898,75 @@ public class Mp3File extends FileWrapper {
 		return xingBitrate;
 	}
 
+	public boolean hasVbrHeader() {
+		return vbrHeader != null;
+	}
+
+	public VbrHeader getVbrHeader() {
+		return vbrHeader;
+	}
+
+	/**
+	 * @return true if frame count, length and bitrate were taken from the VBR header rather than a frame scan
+	 */
+	public boolean isVbrHeaderTrusted() {
+		return trustVbrHeader;
+	}
+
+	/**
+	 * @return true if the frame count and length were extrapolated from samples of the file by ScanMode.ESTIMATE
+	 */
+	public boolean isLengthEstimated() {
+		return lengthEstimated;
+	}
+
+	/**
+	 * @return how far the estimated length may be from the length a full scan would give, or 0 if
+	 * the length was not estimated; this assumes that the frames between the samples are as
+	 * regular as the sampled ones
+	 */
+	public long getLengthErrorInMilliseconds() {
+		return lengthError;
+	}
+
+	/**
+	 * @return a checksum of the audio frames as 16 hex digits, or null unless the file was scanned
+	 * with ScanOption.AUDIO_HASH; files with the same audio have the same hash whatever their tags
+	 */
+	public String getAudioHash() {
+		return audioHash != null ? audioHash.toString() : null;
+	}
+
+	/**
+	 * @return the offsets of the frames whose CRC did not match, in file order, or null unless the
+	 * file was scanned with ScanOption.VERIFY_CRC
+	 */
+	public long[] getCrcErrorOffsets() {
+		return frameCrc != null ? frameCrc.getErrorOffsets() : null;
+	}
+
+	/**
+	 * @return the number of frames whose CRC was checked, which is 0 for files without CRCs
+	 */
+	public int getCrcCheckedFrameCount() {
+		return frameCrc != null ? frameCrc.getCheckedFrameCount() : 0;
+	}
+
+	/**
+	 * @return the offsets of the audio frames, or null unless the file was scanned with ScanOption.FRAME_INDEX
+	 */
+	public MpegFrameIndex getFrameIndex() {
+		return frameIndex;
+	}
+
+	/**
+	 * @return the estimated level of every Layer III granule, or null unless the file was scanned
+	 * with ScanOption.LOUDNESS_ENVELOPE
+	 */
+	public LoudnessEnvelope getLoudnessEnvelope() {
+		return loudnessEnvelope;
+	}
+
 	public boolean hasId3v1Tag() {
 		return id3v1Tag != null;
 	}
@@ -424,67 +1000,238 @@ public class Mp3File extends FileWrapper {
 	}
 
 	public boolean hasCustomTag() {
-		return customTag != null;
+		return customTag != null || customTagOffset >= 0;
 	}
 
+	/**
+	 * @return a copy of the custom tag; see getCustomTagBuffer
+	 * @throws UncheckedIOException if the custom tag has to be read and that fails
+	 */
 	public byte[] getCustomTag() {
-		return customTag;
+		try {
+			ByteBuffer byteBuffer = getCustomTagBuffer();
+			if (byteBuffer == null) return null;
+			byte[] bytes = new byte[byteBuffer.remaining()];
+			byteBuffer.get(bytes);
+			return bytes;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * The custom tag of a scanned file is only located when the file is opened. Its bytes are
+	 * read, or mapped if longer than the buffer length, the first time this is called.
+	 *
+	 * @return a read-only view of the custom tag, or null if there is none
+	 */
+	public ByteBuffer getCustomTagBuffer() throws IOException {
+		if (customTag == null && customTagOffset >= 0) {
+			customTag = readCustomTag();
+		}
+		if (customTag == null) return null;
+		return customTag.asReadOnlyBuffer();
 	}
 
 	public void setCustomTag(byte[] customTag) {
-		this.customTag = customTag;
+		this.customTag = customTag != null ? ByteBuffer.wrap(customTag) : null;
+		this.customTagOffset = -1;
+		this.customTagChanged = true;
 	}
 
 	public void removeCustomTag() {
 		this.customTag = null;
+		this.customTagOffset = -1;
+		this.customTagChanged = true;
+	}
+
+	public int getPaddingReserve() {
+		return paddingReserve;
+	}
+
+	/**
+	 * @param paddingReserve the bytes of padding to leave after the ID3v2 tag when save() has to
+	 * rewrite the whole file, so that the tag can grow by that much and still be saved in place
+	 */
+	public void setPaddingReserve(int paddingReserve) {
+		if (paddingReserve < 0) throw new IllegalArgumentException("Negative padding reserve");
+		this.paddingReserve = paddingReserve;
 	}
 
 	public void save(String newFilename) throws IOException, NotSupportedException {
 		if (path.toAbsolutePath().compareTo(Paths.get(newFilename).toAbsolutePath()) == 0) {
 			throw new IllegalArgumentException("Save filename same as source filename");
 		}
-		try (SeekableByteChannel saveFile = Files.newByteChannel(Paths.get(newFilename), EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
-			if (hasId3v2Tag()) {
-				ByteBuffer byteBuffer = ByteBuffer.wrap(id3v2Tag.toBytes());
-				byteBuffer.rewind();
-				saveFile.write(byteBuffer);
+		try (FileChannel sourceFile = FileChannel.open(path, StandardOpenOption.READ);
+				FileChannel saveFile = FileChannel.open(Paths.get(newFilename), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			writeFile(sourceFile, saveFile, hasId3v2Tag() ? id3v2Tag.toBytes() : null);
+		}
+	}
+
+	/**
+	 * Writes the tags back to the file this was opened from. If the ID3v2 tag fits in the space
+	 * before the audio, which is the old tag and its padding, that region is overwritten and
+	 * re-padded and the ID3v1 tag is overwritten, appended or truncated at the end of the file,
+	 * without touching the audio. Otherwise, or if the custom tag was changed, the file is written
+	 * to a temporary file next to it with getPaddingReserve() bytes of padding after the ID3v2 tag,
+	 * and renamed over the original.
+	 *
+	 * @return true if the tags were updated in place
+	 */
+	public boolean save() throws IOException, NotSupportedException {
+		return save(true);
+	}
+
+	/**
+	 * @param allowInPlace false to always write a temporary file and rename it over the original,
+	 * so that the file is never seen half written even if the process dies while saving
+	 * @return true if the tags were updated in place
+	 */
+	public boolean save(boolean allowInPlace) throws IOException, NotSupportedException {
+		return save(allowInPlace, true);
+	}
+
+	/**
+	 * @param force false to leave a save in place unforced, for a caller such as TagJournal that
+	 * can redo it after a crash and forces its files later in one go. A temporary file is always
+	 * forced before it is renamed, as nothing could restore the audio of a torn one.
+	 */
+	boolean save(boolean allowInPlace, boolean force) throws IOException, NotSupportedException {
+		if (Files.size(path) != length || Files.getLastModifiedTime(path).to(TimeUnit.MILLISECONDS) != lastModified) {
+			throw new IOException("File has changed since it was opened");
+		}
+		long tagRegionLength = getAudioOffset();
+		if (allowInPlace && !customTagChanged) {
+			if (!hasId3v2Tag() && tagRegionLength == 0) {
+				saveInPlace(null, force);
+				return true;
+			}
+			byte[] id3v2Bytes = hasId3v2Tag() ? packId3v2Tag(tagRegionLength) : null;
+			if (id3v2Bytes != null) {
+				saveInPlace(id3v2Bytes, force);
+				return true;
 			}
-			saveMpegFrames(saveFile);
-			if (hasCustomTag()) {
-				ByteBuffer byteBuffer = ByteBuffer.wrap(customTag);
-				byteBuffer.rewind();
-				saveFile.write(byteBuffer);
+		}
+		saveAndReplace();
+		return false;
+	}
+
+	private long getAudioOffset() {
+		if (scanMode == ScanMode.TAGS_ONLY) return audioOffset;
+		return xingOffset >= 0 ? xingOffset : startOffset;
+	}
+
+	private byte[] packId3v2Tag(long length) throws NotSupportedException {
+		if (id3v2Tag.getLength() == length) return id3v2Tag.toBytes();
+		if (id3v2Tag instanceof AbstractID3v2Tag && ((AbstractID3v2Tag) id3v2Tag).fitsLength(length)) {
+			return ((AbstractID3v2Tag) id3v2Tag).toBytes((int) length);
+		}
+		return null;
+	}
+
+	private void saveInPlace(byte[] id3v2Bytes, boolean force) throws IOException, NotSupportedException {
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			if (id3v2Bytes != null) {
+				writeFully(file, ByteBuffer.wrap(id3v2Bytes));
 			}
+			long id3v1Offset = id3v1TagOnDisk ? length - ID3v1Tag.TAG_LENGTH : length;
 			if (hasId3v1Tag()) {
-				ByteBuffer byteBuffer = ByteBuffer.wrap(id3v1Tag.toBytes());
-				byteBuffer.rewind();
-				saveFile.write(byteBuffer);
+				file.position(id3v1Offset);
+				writeFully(file, ByteBuffer.wrap(id3v1Tag.toBytes()));
+			} else if (id3v1TagOnDisk) {
+				file.truncate(id3v1Offset);
 			}
+			if (force) file.force(false);
 		}
+		saved(0);
 	}
 
-	private void saveMpegFrames(SeekableByteChannel saveFile) throws IOException {
-		int filePos = xingOffset;
-		if (filePos < 0) filePos = startOffset;
-		if (filePos < 0) return;
-		if (endOffset < filePos) return;
-		ByteBuffer byteBuffer = ByteBuffer.allocate(bufferLength);
-		try (SeekableByteChannel seekableByteChannel = Files.newByteChannel(path, StandardOpenOption.READ)) {
-			seekableByteChannel.position(filePos);
-			while (true) {
-				byteBuffer.clear();
-				int bytesRead = seekableByteChannel.read(byteBuffer);
-				byteBuffer.rewind();
-				if (filePos + bytesRead <= endOffset) {
-					byteBuffer.limit(bytesRead);
-					saveFile.write(byteBuffer);
-					filePos += bytesRead;
-				} else {
-					byteBuffer.limit(endOffset - filePos + 1);
-					saveFile.write(byteBuffer);
-					break;
-				}
+	private void saveAndReplace() throws IOException, NotSupportedException {
+		byte[] id3v2Bytes = null;
+		if (hasId3v2Tag()) {
+			long paddedLength = (long) id3v2Tag.getLength() + paddingReserve;
+			if (id3v2Tag instanceof AbstractID3v2Tag) paddedLength = (long) ((AbstractID3v2Tag) id3v2Tag).getUnpaddedLength() + paddingReserve;
+			id3v2Bytes = packId3v2Tag(paddedLength);
+			if (id3v2Bytes == null) id3v2Bytes = id3v2Tag.toBytes();
+		}
+		Path tempPath = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+		try {
+			PosixFileAttributeView attributeView = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+			if (attributeView != null) {
+				Files.setPosixFilePermissions(tempPath, attributeView.readAttributes().permissions());
 			}
+			try (FileChannel sourceFile = FileChannel.open(path, StandardOpenOption.READ);
+					FileChannel saveFile = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+				writeFile(sourceFile, saveFile, id3v2Bytes);
+				saveFile.force(false);
+			}
+			Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | NotSupportedException | RuntimeException e) {
+			Files.deleteIfExists(tempPath);
+			throw e;
+		}
+		saved((id3v2Bytes != null ? id3v2Bytes.length : 0) - getAudioOffset());
+	}
+
+	private void saved(long audioDelta) throws IOException {
+		// bring the offsets and file details up to date so that the file can be saved again
+		length = Files.size(path);
+		lastModified = Files.getLastModifiedTime(path).to(TimeUnit.MILLISECONDS);
+		if (scanMode == ScanMode.TAGS_ONLY) audioOffset += audioDelta;
+		if (xingOffset >= 0) xingOffset += audioDelta;
+		if (startOffset >= 0) startOffset += audioDelta;
+		if (endOffset >= 0) endOffset += audioDelta;
+		if (frameIndex != null) frameIndex.move(audioDelta, length, lastModified);
+		id3v1TagOnDisk = hasId3v1Tag();
+		if (customTagChanged || customTagOffset >= 0) {
+			if (customTag != null) customTagLength = customTag.remaining();
+			customTagOffset = hasCustomTag() ? maxEndOffset() - customTagLength : -1;
+			customTagChanged = false;
+		}
+	}
+
+	private void writeFile(FileChannel sourceFile, FileChannel saveFile, byte[] id3v2Bytes) throws IOException, NotSupportedException {
+		if (id3v2Bytes != null) {
+			writeFully(saveFile, ByteBuffer.wrap(id3v2Bytes));
+		}
+		long filePos = getAudioOffset();
+		long lastOffset = endOffset;
+		if (scanMode == ScanMode.TAGS_ONLY || lengthEstimated) {
+			// the frames were never located, or not all of them, so keep everything between the tags
+			lastOffset = maxEndOffset() - 1;
+		}
+		boolean customTagOnDisk = customTagOffset >= 0;
+		if (customTagOnDisk) {
+			// the untouched custom tag directly follows the frames, so it goes in the same transfer
+			lastOffset = customTagOffset + customTagLength - 1;
+		}
+		if (filePos >= 0 && lastOffset >= filePos) {
+			transferFully(sourceFile, filePos, lastOffset - filePos + 1, saveFile);
+		}
+		ByteBuffer customTagBuffer = hasCustomTag() && !customTagOnDisk ? getCustomTagBuffer() : null;
+		ByteBuffer id3v1Buffer = hasId3v1Tag() ? ByteBuffer.wrap(id3v1Tag.toBytes()) : null;
+		if (customTagBuffer != null && id3v1Buffer != null) {
+			writeFully(saveFile, customTagBuffer, id3v1Buffer);
+		} else if (customTagBuffer != null) {
+			writeFully(saveFile, customTagBuffer);
+		} else if (id3v1Buffer != null) {
+			writeFully(saveFile, id3v1Buffer);
+		}
+	}
+
+	private void transferFully(FileChannel sourceFile, long position, long count, FileChannel saveFile) throws IOException {
+		while (count > 0) {
+			long transferred = sourceFile.transferTo(position, count, saveFile);
+			if (transferred <= 0) throw new IOException("Not enough bytes read");
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	private void writeFully(FileChannel saveFile, ByteBuffer... byteBuffers) throws IOException {
+		ByteBuffer lastBuffer = byteBuffers[byteBuffers.length - 1];
+		while (lastBuffer.hasRemaining()) {
+			saveFile.write(byteBuffers);
 		}
 	}
 }
@@ -0,0 +1,31 @@
+package com.mpatric.mp3agic;
+
+/**
+ * Callbacks from an Mp3StreamParser, made on the thread that feeds it, as soon as enough
+ * bytes have arrived to decide each piece of information.
+ */
+public interface Mp3StreamListener {
+
+	default void id3v2TagParsed(ID3v2 id3v2Tag) {
+	}
+
+	/**
+	 * Called once the first two consecutive audio frames have been found, after which the stream
+	 * info (version, layer, sample rate, channel mode, VBR header) no longer changes.
+	 */
+	default void streamInfoParsed(Mp3StreamParser parser) {
+	}
+
+	/**
+	 * Called for each audio frame with its 4-byte header; new MpegFrame(frameHeader) or the
+	 * MpegFrameHeader methods decode it.
+	 */
+	default void frameParsed(long offset, int frameHeader) {
+	}
+
+	/**
+	 * Called from finish() once the ID3v1 tag and the final frame statistics are known.
+	 */
+	default void streamFinished(Mp3StreamParser parser) {
+	}
+}
@@ -0,0 +1,451 @@
+package com.mpatric.mp3agic;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+
+/**
+ * Incremental counterpart of Mp3File for data that does not live in a file, such as a socket,
+ * a pipe or a download in progress. Bytes are pushed in with feed() in chunks of any size and
+ * finish() is called at the end of the stream; the ID3v2 tag, stream info and frames are
+ * reported to the listener as soon as they can be decided.
+ * <p>
+ * Frames are accepted by the same rules as a full Mp3File scan, so the statistics at finish()
+ * are the ones Mp3File reports for the same bytes. Only a bounded window is held in memory: the
+ * bytes from the frame currently being examined onwards and the last 128 bytes of the stream
+ * (the candidate ID3v1 tag), plus the whole ID3v2 tag until it has been parsed. The custom tag
+ * is not kept.
+ */
+public class Mp3StreamParser {
+
+	private static final int DEFAULT_WINDOW_LENGTH = 65536;
+	private static final int CHAIN_REJECTED = 0;
+	private static final int CHAIN_CONFIRMED = 1;
+	private static final int CHAIN_UNDECIDED = 2;
+
+	private final Mp3StreamListener listener;
+	private final EnumSet<ScanOption> scanOptions = EnumSet.noneOf(ScanOption.class);
+	private byte[] window;
+	private long windowStart = 0;
+	private int windowLength = 0;
+	private long bytesReceived = 0;
+	private boolean finished;
+	private boolean id3v2Checked;
+	private long id3v2Length = -1;
+	private long position = 0;
+	private boolean stopped;
+	private long xingOffset = -1;
+	private long startOffset = -1;
+	private long endOffset = -1;
+	private int frameCount = 0;
+	private final int[] bitrateCounts = new int[MpegFrameHeader.BITRATE_INDEX_COUNT];
+	private int xingBitrate;
+	private VbrHeader vbrHeader;
+	private int streamHeader;
+	private boolean streamInfoParsed;
+	private int samplesPerFrame;
+	private String channelMode;
+	private String emphasis;
+	private String layer;
+	private String modeExtension;
+	private int sampleRate;
+	private boolean copyright;
+	private boolean original;
+	private String version;
+	private ID3v1 id3v1Tag;
+	private ID3v2 id3v2Tag;
+	private MpegFrameIndex frameIndex;
+
+	public Mp3StreamParser(Mp3StreamListener listener, ScanOption... scanOptions) {
+		this(listener, DEFAULT_WINDOW_LENGTH, scanOptions);
+	}
+
+	public Mp3StreamParser(Mp3StreamListener listener, int windowLength, ScanOption... scanOptions) {
+		if (listener == null) throw new NullPointerException();
+		if (windowLength < Mp3File.MINIMUM_BUFFER_LENGTH + ID3v1Tag.TAG_LENGTH) throw new IllegalArgumentException("Window too small");
+		this.listener = listener;
+		this.window = new byte[windowLength];
+		Collections.addAll(this.scanOptions, scanOptions);
+		if (this.scanOptions.contains(ScanOption.FRAME_INDEX)) frameIndex = new MpegFrameIndex();
+	}
+
+	public void feed(byte[] bytes, int offset, int length) throws UnsupportedTagException, InvalidDataException {
+		feed(ByteBuffer.wrap(bytes, offset, length));
+	}
+
+	public void feed(ByteBuffer bytes) throws UnsupportedTagException, InvalidDataException {
+		if (finished) throw new IllegalStateException("Stream already finished");
+		while (bytes.hasRemaining()) {
+			int length = Math.min(bytes.remaining(), reserve());
+			bytes.get(window, windowLength, length);
+			windowLength += length;
+			bytesReceived += length;
+			process();
+		}
+	}
+
+	public void finish() throws UnsupportedTagException, InvalidDataException {
+		if (finished) return;
+		finished = true;
+		process();
+		if (bytesReceived >= ID3v1Tag.TAG_LENGTH) {
+			int offset = (int) (bytesReceived - ID3v1Tag.TAG_LENGTH - windowStart);
+			try {
+				id3v1Tag = new ID3v1Tag(Arrays.copyOfRange(window, offset, offset + ID3v1Tag.TAG_LENGTH));
+			} catch (NoSuchTagException e) {
+				id3v1Tag = null;
+			}
+		}
+		scan();
+		if (startOffset < 0) {
+			throw new InvalidDataException("No mpegs frames found");
+		}
+		commitStart();
+		if (frameIndex != null) {
+			frameIndex.complete(sampleRate, samplesPerFrame, bytesReceived, 0);
+		}
+		listener.streamFinished(this);
+	}
+
+	private int reserve() {
+		long retainFrom = Math.max(0, bytesReceived - ID3v1Tag.TAG_LENGTH);
+		if (!stopped) retainFrom = Math.min(retainFrom, position);
+		if (startOffset >= 0 && frameCount < 2) retainFrom = Math.min(retainFrom, startOffset + 1);
+		if (!id3v2Checked || (id3v2Length >= 0 && id3v2Tag == null)) retainFrom = 0;
+		int discard = (int) (Math.min(retainFrom, bytesReceived) - windowStart);
+		if (discard > 0) {
+			System.arraycopy(window, discard, window, 0, windowLength - discard);
+			windowStart += discard;
+			windowLength -= discard;
+		}
+		if (windowLength == window.length) {
+			window = Arrays.copyOf(window, window.length * 2);
+		}
+		return window.length - windowLength;
+	}
+
+	private void process() throws UnsupportedTagException, InvalidDataException {
+		if (!id3v2Checked) {
+			if (bytesReceived < AbstractID3v2Tag.HEADER_LENGTH && !finished) return;
+			checkId3v2Header();
+		}
+		if (id3v2Length >= 0 && id3v2Tag == null) {
+			if (bytesReceived < id3v2Length && !finished) return;
+			parseId3v2Tag();
+		}
+		if (!finished) scan();
+	}
+
+	private void checkId3v2Header() throws UnsupportedTagException {
+		id3v2Checked = true;
+		if (bytesReceived < AbstractID3v2Tag.HEADER_LENGTH) return;
+		try {
+			ID3v2TagFactory.sanityCheckTag(Arrays.copyOf(window, AbstractID3v2Tag.HEADER_LENGTH));
+		} catch (NoSuchTagException e) {
+			return;
+		}
+		int dataLength = BufferTools.unpackSynchsafeInteger(window[AbstractID3v2Tag.DATA_LENGTH_OFFSET], window[AbstractID3v2Tag.DATA_LENGTH_OFFSET + 1], window[AbstractID3v2Tag.DATA_LENGTH_OFFSET + 2], window[AbstractID3v2Tag.DATA_LENGTH_OFFSET + 3]);
+		position = AbstractID3v2Tag.HEADER_LENGTH + dataLength;
+		id3v2Length = position;
+		if (BufferTools.checkBit(window[AbstractID3v2Tag.FLAGS_OFFSET], AbstractID3v2Tag.FOOTER_BIT)) {
+			id3v2Length += AbstractID3v2Tag.FOOTER_LENGTH;
+		}
+	}
+
+	private void parseId3v2Tag() throws UnsupportedTagException, InvalidDataException {
+		try {
+			id3v2Tag = ID3v2TagFactory.createTag(Arrays.copyOf(window, (int) Math.min(id3v2Length, bytesReceived)));
+			listener.id3v2TagParsed(id3v2Tag);
+		} catch (NoSuchTagException e) {
+			id3v2Length = -1;
+		}
+	}
+
+	private void scan() throws InvalidDataException {
+		while (!stopped) {
+			if (startOffset < 0) {
+				if (!scanForStart()) return;
+			} else {
+				if (!scanFrame()) return;
+			}
+		}
+	}
+
+	private boolean hasHeaderAt(long offset) {
+		return offset + Mp3File.MINIMUM_BUFFER_LENGTH < bytesReceived;
+	}
+
+	private boolean scanForStart() {
+		ByteBuffer buffer = ByteBuffer.wrap(window, 0, windowLength);
+		int searchEnd = (int) (bytesReceived - Mp3File.MINIMUM_BUFFER_LENGTH - windowStart);
+		while (hasHeaderAt(position)) {
+			int index = MpegFrameHeader.findSync(buffer, (int) (position - windowStart), searchEnd);
+			position = windowStart + index;
+			if (index >= searchEnd) break;
+			int header = MpegFrameHeader.read(window, index);
+			int frameLength = MpegFrameHeader.getFrameLength(header);
+			if (frameLength == 0) {
+				position++;
+				continue;
+			}
+			if (xingOffset < 0 && VbrHeader.findMarker(buffer, index) >= 0) {
+				if (!finished && position + frameLength > bytesReceived) return false;
+				xingOffset = position;
+				xingBitrate = MpegFrameHeader.getBitrate(header);
+				vbrHeader = createVbrHeader(buffer, index);
+				position += frameLength;
+			} else {
+				int chain = checkFrameChain(position, header);
+				if (chain == CHAIN_UNDECIDED) return false;
+				if (chain == CHAIN_REJECTED) {
+					position++;
+					continue;
+				}
+				startOffset = position;
+				streamHeader = header;
+				channelMode = MpegFrameHeader.getChannelMode(header);
+				emphasis = MpegFrameHeader.getEmphasis(header);
+				layer = MpegFrameHeader.getLayer(header);
+				modeExtension = MpegFrameHeader.getModeExtension(header);
+				sampleRate = MpegFrameHeader.getSampleRate(header);
+				samplesPerFrame = MpegFrameHeader.getSamplesPerFrame(header);
+				version = MpegFrameHeader.getVersion(header);
+				copyright = MpegFrameHeader.isCopyright(header);
+				original = MpegFrameHeader.isOriginal(header);
+				if (frameIndex != null) frameIndex.add(startOffset);
+				frameCount++;
+				addBitrate(header);
+				position += frameLength;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The stream counterpart of the chain check in Mp3File.scanBlockForStart, which waits for more
+	 * bytes where Mp3File would read the next block.
+	 */
+	private int checkFrameChain(long offset, int header) {
+		for (int chained = 1; chained < Mp3File.SYNC_CHAIN_LENGTH; chained++) {
+			offset += MpegFrameHeader.getFrameLength(header);
+			if (!hasHeaderAt(offset)) return finished ? CHAIN_CONFIRMED : CHAIN_UNDECIDED;
+			int nextHeader = MpegFrameHeader.read(window, (int) (offset - windowStart));
+			int frameLength = MpegFrameHeader.getFrameLength(nextHeader);
+			if (frameLength == 0 || !MpegFrameHeader.isSameStream(nextHeader, header)) return CHAIN_REJECTED;
+			long frameEndOffset = offset + frameLength - 1;
+			if (frameEndOffset >= bytesReceived) return finished ? CHAIN_CONFIRMED : CHAIN_UNDECIDED;
+			if (frameEndOffset >= bytesReceived - ID3v1Tag.TAG_LENGTH) {
+				if (!finished) return CHAIN_UNDECIDED;
+				if (id3v1Tag != null) return CHAIN_CONFIRMED;
+			}
+			header = nextHeader;
+		}
+		return CHAIN_CONFIRMED;
+	}
+
+	private boolean scanFrame() {
+		if (!hasHeaderAt(position)) {
+			if (finished) stopped = true;
+			return false;
+		}
+		int header = MpegFrameHeader.read(window, (int) (position - windowStart));
+		int frameLength = MpegFrameHeader.getFrameLength(header);
+		if (frameLength == 0 || !MpegFrameHeader.isSameStream(header, streamHeader)) {
+			resync();
+			return true;
+		}
+		long newEndOffset = position + frameLength - 1;
+		if (newEndOffset >= bytesReceived) {
+			if (finished) resync();
+			return finished;
+		}
+		// until the stream ends a frame is only known to be clear of a trailing ID3v1 tag if a full tag length follows it
+		long maxEndOffset = bytesReceived - ID3v1Tag.TAG_LENGTH;
+		if (finished && id3v1Tag == null) maxEndOffset = bytesReceived;
+		if (newEndOffset >= maxEndOffset) {
+			if (finished) stopped = true;
+			return false;
+		}
+		if (frameIndex != null) frameIndex.add(position);
+		endOffset = newEndOffset;
+		frameCount++;
+		addBitrate(header);
+		commitStart();
+		listener.frameParsed(position, header);
+		position += frameLength;
+		return true;
+	}
+
+	private void resync() {
+		if (frameCount >= 2) {
+			stopped = true;
+			return;
+		}
+		position = startOffset + 1;
+		startOffset = -1;
+		xingOffset = -1;
+		endOffset = -1;
+		frameCount = 0;
+		Arrays.fill(bitrateCounts, 0);
+		vbrHeader = null;
+		if (frameIndex != null) frameIndex.clear();
+	}
+
+	private void commitStart() {
+		if (streamInfoParsed) return;
+		streamInfoParsed = true;
+		listener.streamInfoParsed(this);
+		listener.frameParsed(startOffset, streamHeader);
+	}
+
+	private VbrHeader createVbrHeader(ByteBuffer buffer, int offset) {
+		try {
+			return new VbrHeader(buffer, offset);
+		} catch (NoSuchTagException | InvalidDataException e) {
+			return null;
+		}
+	}
+
+	private void addBitrate(int header) {
+		bitrateCounts[MpegFrameHeader.getBitrateIndex(header)]++;
+	}
+
+	private double getAverageBitrate() {
+		if (frameCount == 0) return 0;
+		return (double) MpegFrameHeader.sumBitrates(streamHeader, bitrateCounts) / frameCount;
+	}
+
+	public boolean hasScanOption(ScanOption scanOption) {
+		return scanOptions.contains(scanOption);
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	public long getStartOffset() {
+		return startOffset;
+	}
+
+	public long getEndOffset() {
+		return endOffset;
+	}
+
+	public long getLengthInMilliseconds() {
+		return (long) (((endOffset - startOffset) * (8.0 / getAverageBitrate())) + 0.5);
+	}
+
+	public long getLengthInSeconds() {
+		return ((getLengthInMilliseconds() + 500) / 1000);
+	}
+
+	public boolean isVbr() {
+		return MpegFrameHeader.countBitrates(bitrateCounts) > 1;
+	}
+
+	public int getBitrate() {
+		return (int) (getAverageBitrate() + 0.5);
+	}
+
+	public Map<Integer, MutableInteger> getBitrates() {
+		return MpegFrameHeader.toBitrateMap(streamHeader, bitrateCounts);
+	}
+
+	public int[] getBitrateCounts() {
+		return bitrateCounts.clone();
+	}
+
+	public int getFrameHeader() {
+		return streamHeader;
+	}
+
+	public String getChannelMode() {
+		return channelMode;
+	}
+
+	public boolean isCopyright() {
+		return copyright;
+	}
+
+	public String getEmphasis() {
+		return emphasis;
+	}
+
+	public String getLayer() {
+		return layer;
+	}
+
+	public String getModeExtension() {
+		return modeExtension;
+	}
+
+	public boolean isOriginal() {
+		return original;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getSamplesPerFrame() {
+		return samplesPerFrame;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public boolean hasXingFrame() {
+		return (xingOffset >= 0);
+	}
+
+	public long getXingOffset() {
+		return xingOffset;
+	}
+
+	public int getXingBitrate() {
+		return xingBitrate;
+	}
+
+	public boolean hasVbrHeader() {
+		return vbrHeader != null;
+	}
+
+	public VbrHeader getVbrHeader() {
+		return vbrHeader;
+	}
+
+	/**
+	 * @return the offsets of the audio frames, or null unless the parser was created with ScanOption.FRAME_INDEX
+	 */
+	public MpegFrameIndex getFrameIndex() {
+		return frameIndex;
+	}
+
+	public boolean hasId3v1Tag() {
+		return id3v1Tag != null;
+	}
+
+	public ID3v1 getId3v1Tag() {
+		return id3v1Tag;
+	}
+
+	public boolean hasId3v2Tag() {
+		return id3v2Tag != null;
+	}
+
+	public ID3v2 getId3v2Tag() {
+		return id3v2Tag;
+	}
+}
@@ -0,0 +1,244 @@
+package com.mpatric.mp3agic;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes a 4-byte mpeg audio frame header held in an int from precomputed tables, without
+ * allocating. Frame scans use this in their inner loop; MpegFrame wraps a header for callers
+ * that want the decoded fields as strings.
+ */
+public final class MpegFrameHeader {
+	private MpegFrameHeader() {}
+
+	/**
+	 * The header bits that every frame of a stream shares: version, layer and sample rate.
+	 */
+	public static final int STREAM_MASK = 0x001E0C00;
+	public static final int BITRATE_INDEX_COUNT = 16;
+	public static final int MAXIMUM_FRAME_LENGTH = 2881;
+
+	private static final int FRAME_SYNC_MASK = 0xFFE00000;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private static final long ONES = 0x0101010101010101L;
+	private static final int EMPHASIS_RESERVED = 2;
+
+	private static final String[] VERSIONS = {MpegFrame.MPEG_VERSION_2_5, null, MpegFrame.MPEG_VERSION_2_0, MpegFrame.MPEG_VERSION_1_0};
+	private static final int[] LAYERS = {0, 3, 2, 1};
+	private static final String[] CHANNEL_MODES = {MpegFrame.CHANNEL_MODE_STEREO, MpegFrame.CHANNEL_MODE_JOINT_STEREO, MpegFrame.CHANNEL_MODE_DUAL_MONO, MpegFrame.CHANNEL_MODE_MONO};
+	private static final String[] LAYER_1_2_MODE_EXTENSIONS = {MpegFrame.MODE_EXTENSION_BANDS_4_31, MpegFrame.MODE_EXTENSION_BANDS_8_31, MpegFrame.MODE_EXTENSION_BANDS_12_31, MpegFrame.MODE_EXTENSION_BANDS_16_31};
+	private static final String[] LAYER_3_MODE_EXTENSIONS = {MpegFrame.MODE_EXTENSION_NONE, MpegFrame.MODE_EXTENSION_INTENSITY_STEREO, MpegFrame.MODE_EXTENSION_M_S_STEREO, MpegFrame.MODE_EXTENSION_INTENSITY_M_S_STEREO};
+	private static final String[] EMPHASES = {MpegFrame.EMPHASIS_NONE, MpegFrame.EMPHASIS__50_15_MS, null, MpegFrame.EMPHASIS_CCITT_J_17};
+
+	private static final int[][] MPEG_1_BITRATES = {
+			{0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448, 0},
+			{0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384, 0},
+			{0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0}};
+	private static final int[][] MPEG_2_BITRATES = {
+			{0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256, 0},
+			{0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0},
+			{0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0}};
+	private static final int[][] SAMPLE_RATES = {{11025, 12000, 8000, 0}, {0, 0, 0, 0}, {22050, 24000, 16000, 0}, {44100, 48000, 32000, 0}};
+
+	// indexed by bits 9-20 of the header: version, layer, protection, bitrate, sample rate, padding
+	private static final int[] BITRATE_TABLE = new int[4096];
+	private static final int[] SAMPLE_RATE_TABLE = new int[4096];
+	private static final int[] FRAME_LENGTH_TABLE = new int[4096];
+
+	static {
+		for (int index = 0; index < 4096; index++) {
+			int version = (index >> 10) & 0x3;
+			int layer = LAYERS[(index >> 8) & 0x3];
+			int bitrateIndex = (index >> 3) & 0xF;
+			int padding = index & 0x1;
+			int sampleRate = SAMPLE_RATES[version][(index >> 1) & 0x3];
+			if (layer == 0 || sampleRate == 0) continue;
+			int bitrate = (version == 3 ? MPEG_1_BITRATES : MPEG_2_BITRATES)[layer - 1][bitrateIndex];
+			if (bitrate == 0) continue;
+			BITRATE_TABLE[index] = bitrate;
+			SAMPLE_RATE_TABLE[index] = sampleRate;
+			if (layer == 1) {
+				FRAME_LENGTH_TABLE[index] = (12000 * bitrate / sampleRate + padding) * 4;
+			} else if (layer == 3 && version != 3) {
+				FRAME_LENGTH_TABLE[index] = 72000 * bitrate / sampleRate + padding;
+			} else {
+				FRAME_LENGTH_TABLE[index] = 144000 * bitrate / sampleRate + padding;
+			}
+		}
+	}
+
+	public static boolean isSameStream(int header, int streamHeader) {
+		return ((header ^ streamHeader) & STREAM_MASK) == 0;
+	}
+
+	private static int tableIndex(int header) {
+		return (header >>> 9) & 0xFFF;
+	}
+
+	public static int read(ByteBuffer buffer, int offset) {
+		return buffer.getInt(offset);
+	}
+
+	public static int read(byte[] bytes, int offset) {
+		return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Finds the first offset in [from, to) holding 0xFF followed by a byte with its top three bits
+	 * set, which is where a frame header may start. 32 bytes are tested per step for any 0xFF byte
+	 * with bitwise arithmetic on four longs, and only a step that has one is searched byte by byte,
+	 * so junk and audio data are skipped at a few instructions per eight bytes.
+	 *
+	 * @param to the end of the search; the byte at to must be within the buffer's limit
+	 * @return the offset of the first candidate, or to if there is none
+	 */
+	public static int findSync(ByteBuffer buffer, int from, int to) {
+		int offset = from;
+		while (offset + 32 <= to) {
+			long ffBytes = ffBytes(buffer.getLong(offset)) | ffBytes(buffer.getLong(offset + 8)) | ffBytes(buffer.getLong(offset + 16)) | ffBytes(buffer.getLong(offset + 24));
+			if (ffBytes != 0) {
+				int candidate = findSyncBytewise(buffer, offset, offset + 32);
+				if (candidate < offset + 32) return candidate;
+			}
+			offset += 32;
+		}
+		return findSyncBytewise(buffer, offset, to);
+	}
+
+	/**
+	 * @return a value that is not 0 if and only if the word has a 0xFF byte
+	 */
+	private static long ffBytes(long word) {
+		// a 0xFF byte is a zero byte of the inverted word, which the subtraction borrows through, setting its high bit
+		return (~word - ONES) & word & HIGH_BITS;
+	}
+
+	private static int findSyncBytewise(ByteBuffer buffer, int from, int to) {
+		for (int offset = from; offset < to; offset++) {
+			if (buffer.get(offset) == (byte) 0xFF && (buffer.get(offset + 1) & (byte) 0xE0) == (byte) 0xE0) return offset;
+		}
+		return to;
+	}
+
+	/**
+	 * @return the length of the frame in bytes including its header, or 0 if the header is not valid
+	 */
+	public static int getFrameLength(int header) {
+		if ((header & FRAME_SYNC_MASK) != FRAME_SYNC_MASK || (header & 0x3) == EMPHASIS_RESERVED) return 0;
+		return FRAME_LENGTH_TABLE[tableIndex(header)];
+	}
+
+	public static boolean isValid(int header) {
+		return getFrameLength(header) != 0;
+	}
+
+	public static int getBitrate(int header) {
+		return BITRATE_TABLE[tableIndex(header)];
+	}
+
+	/**
+	 * @return the bitrate that a bitrate index stands for in the stream the header belongs to
+	 */
+	public static int getBitrate(int header, int bitrateIndex) {
+		return BITRATE_TABLE[tableIndex((header & ~0xF000) | (bitrateIndex << 12))];
+	}
+
+	public static int getBitrateIndex(int header) {
+		return (header >>> 12) & 0xF;
+	}
+
+	public static int getSampleRate(int header) {
+		return SAMPLE_RATE_TABLE[tableIndex(header)];
+	}
+
+	public static String getVersion(int header) {
+		return VERSIONS[(header >>> 19) & 0x3];
+	}
+
+	/**
+	 * @return 1, 2 or 3, or 0 if the layer bits are reserved
+	 */
+	public static int getLayerNumber(int header) {
+		return LAYERS[(header >>> 17) & 0x3];
+	}
+
+	public static String getLayer(int header) {
+		return MpegFrame.MPEG_LAYERS[getLayerNumber(header)];
+	}
+
+	/**
+	 * @return true if a 16-bit CRC follows the header, which is signalled by a clear protection bit
+	 */
+	public static boolean hasCrc(int header) {
+		return (header & 0x10000) == 0;
+	}
+
+	public static boolean hasPadding(int header) {
+		return (header & 0x200) != 0;
+	}
+
+	public static boolean isPrivate(int header) {
+		return (header & 0x100) != 0;
+	}
+
+	public static int getChannelModeIndex(int header) {
+		return (header >>> 6) & 0x3;
+	}
+
+	public static String getChannelMode(int header) {
+		return CHANNEL_MODES[getChannelModeIndex(header)];
+	}
+
+	public static String getModeExtension(int header) {
+		if (getChannelModeIndex(header) != 1) return MpegFrame.MODE_EXTENSION_NA;
+		int modeExtension = (header >>> 4) & 0x3;
+		int layer = getLayerNumber(header);
+		if (layer == 3) return LAYER_3_MODE_EXTENSIONS[modeExtension];
+		if (layer != 0) return LAYER_1_2_MODE_EXTENSIONS[modeExtension];
+		return null;
+	}
+
+	public static boolean isCopyright(int header) {
+		return (header & 0x8) != 0;
+	}
+
+	public static boolean isOriginal(int header) {
+		return (header & 0x4) != 0;
+	}
+
+	public static String getEmphasis(int header) {
+		return EMPHASES[header & 0x3];
+	}
+
+	public static int getSamplesPerFrame(int header) {
+		int layer = getLayerNumber(header);
+		if (layer == 1) return 384;
+		if (layer == 3 && ((header >>> 19) & 0x3) != 3) return 576;
+		return 1152;
+	}
+
+	static long sumBitrates(int streamHeader, int[] bitrateCounts) {
+		long sum = 0;
+		for (int i = 0; i < BITRATE_INDEX_COUNT; i++) {
+			sum += (long) bitrateCounts[i] * getBitrate(streamHeader, i);
+		}
+		return sum;
+	}
+
+	static int countBitrates(int[] bitrateCounts) {
+		int count = 0;
+		for (int i = 0; i < BITRATE_INDEX_COUNT; i++) {
+			if (bitrateCounts[i] > 0) count++;
+		}
+		return count;
+	}
+
+	static Map<Integer, MutableInteger> toBitrateMap(int streamHeader, int[] bitrateCounts) {
+		Map<Integer, MutableInteger> bitrates = new HashMap<>();
+		for (int i = 0; i < BITRATE_INDEX_COUNT; i++) {
+			if (bitrateCounts[i] > 0) bitrates.put(getBitrate(streamHeader, i), new MutableInteger(bitrateCounts[i]));
+		}
+		return bitrates;
+	}
+}
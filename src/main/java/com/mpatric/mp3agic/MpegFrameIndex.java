@@ -0,0 +1,246 @@
+package com.mpatric.mp3agic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Byte offsets of the audio frames of an mpeg stream. All frames of a stream carry the same
+ * number of samples, so the cumulative sample count at frame n is n * getSamplesPerFrame();
+ * mapping a time to a frame is a division and mapping a byte offset back to a frame is a
+ * binary search over the offsets.
+ */
+public class MpegFrameIndex {
+
+	public static final String SIDECAR_EXTENSION = ".idx";
+
+	private static final int MAGIC = 0x4D504958; // "MPIX"
+	private static final int FORMAT_VERSION = 1;
+	// magic, version, sample rate, samples per frame, source length and time, frame count
+	private static final int HEADER_LENGTH = 36;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] offsets;
+	private int frameCount;
+	private int sampleRate;
+	private int samplesPerFrame;
+	private long sourceLength;
+	private long sourceLastModified;
+
+	MpegFrameIndex() {
+		offsets = new long[INITIAL_CAPACITY];
+	}
+
+	private MpegFrameIndex(long[] offsets, int sampleRate, int samplesPerFrame, long sourceLength, long sourceLastModified) {
+		this.offsets = offsets;
+		this.frameCount = offsets.length;
+		this.sampleRate = sampleRate;
+		this.samplesPerFrame = samplesPerFrame;
+		this.sourceLength = sourceLength;
+		this.sourceLastModified = sourceLastModified;
+	}
+
+	void add(long offset) {
+		if (frameCount == offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[frameCount++] = offset;
+	}
+
+	void addAll(MpegFrameIndex other) {
+		if (frameCount + other.frameCount > offsets.length) {
+			offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, frameCount + other.frameCount));
+		}
+		System.arraycopy(other.offsets, 0, offsets, frameCount, other.frameCount);
+		frameCount += other.frameCount;
+	}
+
+	void clear() {
+		frameCount = 0;
+	}
+
+	void move(long delta, long sourceLength, long sourceLastModified) {
+		for (int i = 0; i < frameCount; i++) {
+			offsets[i] += delta;
+		}
+		this.sourceLength = sourceLength;
+		this.sourceLastModified = sourceLastModified;
+	}
+
+	void complete(int sampleRate, int samplesPerFrame, long sourceLength, long sourceLastModified) {
+		this.sampleRate = sampleRate;
+		this.samplesPerFrame = samplesPerFrame;
+		this.sourceLength = sourceLength;
+		this.sourceLastModified = sourceLastModified;
+		if (offsets.length != frameCount) {
+			offsets = Arrays.copyOf(offsets, frameCount);
+		}
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getSamplesPerFrame() {
+		return samplesPerFrame;
+	}
+
+	public long getSampleCount() {
+		return (long) frameCount * samplesPerFrame;
+	}
+
+	public long getSourceLength() {
+		return sourceLength;
+	}
+
+	public long getSourceLastModified() {
+		return sourceLastModified;
+	}
+
+	public long getFrameOffset(int frame) {
+		if (frame < 0 || frame >= frameCount) throw new IndexOutOfBoundsException("Frame " + frame + " out of range");
+		return offsets[frame];
+	}
+
+	public long getSampleOffset(int frame) {
+		if (frame < 0 || frame > frameCount) throw new IndexOutOfBoundsException("Frame " + frame + " out of range");
+		return (long) frame * samplesPerFrame;
+	}
+
+	public long getTimeInMilliseconds(int frame) {
+		return getSampleOffset(frame) * 1000 / sampleRate;
+	}
+
+	/**
+	 * @return the frame containing the given sample, clamped to the frames in the index
+	 */
+	public int getFrameForSample(long sample) {
+		if (frameCount == 0) return -1;
+		long frame = sample / samplesPerFrame;
+		if (frame < 0) return 0;
+		if (frame >= frameCount) return frameCount - 1;
+		return (int) frame;
+	}
+
+	public int getFrameForTime(long milliseconds) {
+		return getFrameForSample(milliseconds * sampleRate / 1000);
+	}
+
+	public long getByteOffsetForTime(long milliseconds) {
+		int frame = getFrameForTime(milliseconds);
+		return frame < 0 ? -1 : offsets[frame];
+	}
+
+	/**
+	 * @return the last frame starting at or before byteOffset, or -1 if byteOffset precedes the first frame
+	 */
+	public int getFrameAtByteOffset(long byteOffset) {
+		int low = 0;
+		int high = frameCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (offsets[mid] <= byteOffset) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	public long getTimeForByteOffset(long byteOffset) {
+		int frame = getFrameAtByteOffset(byteOffset);
+		return frame < 0 ? 0 : getTimeInMilliseconds(frame);
+	}
+
+	/**
+	 * @return true if the index was built from a file with the given length and modification time
+	 */
+	public boolean isCurrent(FileWrapper file) {
+		return file.getLength() == sourceLength && file.getLastModified() == sourceLastModified;
+	}
+
+	public static Path sidecarPath(Path mp3Path) {
+		return Paths.get(mp3Path.toString() + SIDECAR_EXTENSION);
+	}
+
+	public void save(Path sidecar) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(sidecar)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(sampleRate);
+			out.writeInt(samplesPerFrame);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceLastModified);
+			out.writeInt(frameCount);
+			long previous = 0;
+			for (int i = 0; i < frameCount; i++) {
+				writeVarLong(out, offsets[i] - previous);
+				previous = offsets[i];
+			}
+		}
+	}
+
+	/**
+	 * The header of the sidecar is checked before the offsets are read, so a corrupt sidecar fails
+	 * with InvalidDataException rather than claiming more frames than it or its source can hold.
+	 */
+	public static MpegFrameIndex load(Path sidecar) throws IOException, InvalidDataException {
+		long sidecarLength = Files.size(sidecar);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+			if (in.readInt() != MAGIC) throw new InvalidDataException("Not a frame index");
+			int formatVersion = in.readInt();
+			if (formatVersion != FORMAT_VERSION) throw new InvalidDataException("Unsupported frame index version " + formatVersion);
+			int sampleRate = in.readInt();
+			int samplesPerFrame = in.readInt();
+			long sourceLength = in.readLong();
+			long sourceLastModified = in.readLong();
+			int frameCount = in.readInt();
+			if (sampleRate <= 0 || samplesPerFrame <= 0 || frameCount < 0 || sourceLength < 0) throw new InvalidDataException("Invalid frame index header");
+			// every offset takes at least one byte of the sidecar and one of the source
+			if (frameCount > sidecarLength - HEADER_LENGTH) throw new InvalidDataException("Frame count exceeds frame index length");
+			if (frameCount > sourceLength) throw new InvalidDataException("Frame count exceeds source length");
+			long[] offsets = new long[frameCount];
+			long previous = 0;
+			for (int i = 0; i < frameCount; i++) {
+				long delta = readVarLong(in);
+				if (i > 0 && delta <= 0) throw new InvalidDataException("Frame offsets not ascending");
+				if (delta < 0 || delta >= sourceLength - previous) throw new InvalidDataException("Frame offset beyond end of source");
+				previous += delta;
+				offsets[i] = previous;
+			}
+			return new MpegFrameIndex(offsets, sampleRate, samplesPerFrame, sourceLength, sourceLastModified);
+		} catch (EOFException e) {
+			throw new InvalidDataException("Premature end of frame index", e);
+		}
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException, InvalidDataException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new InvalidDataException("Malformed frame offset");
+	}
+}
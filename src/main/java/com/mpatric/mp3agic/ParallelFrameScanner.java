@@ -0,0 +1,248 @@
+package com.mpatric.mp3agic;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Walks the frames of an mpeg stream from a known frame boundary to the end of the file by
+ * splitting the region into segments. Each segment other than the first guesses its first frame
+ * by looking for a chain of consistent frame headers; when segments are merged, a guess that does
+ * not match where the preceding segment actually ended is discarded and the segment re-walked
+ * from the right offset, so the merged result always equals a sequential walk.
+ */
+final class ParallelFrameScanner {
+
+	private static final long SEGMENT_LENGTH = 8L << 20;
+	private static final int SEGMENT_LOOKAHEAD = 65536;
+
+	private final FileChannel fileChannel;
+	private final long length;
+	private final long scanEnd;
+	private final long maxEndOffset;
+	private final int streamHeader;
+	private final boolean buildFrameIndex;
+	private final boolean verifyCrc;
+	private final boolean buildLoudnessEnvelope;
+
+	ParallelFrameScanner(FileChannel fileChannel, long length, long maxEndOffset, int streamHeader, boolean buildFrameIndex, boolean verifyCrc, boolean buildLoudnessEnvelope) {
+		this.fileChannel = fileChannel;
+		this.length = length;
+		this.scanEnd = length - Mp3File.MINIMUM_BUFFER_LENGTH;
+		this.maxEndOffset = maxEndOffset;
+		this.streamHeader = streamHeader;
+		this.buildFrameIndex = buildFrameIndex;
+		this.verifyCrc = verifyCrc;
+		this.buildLoudnessEnvelope = buildLoudnessEnvelope;
+	}
+
+	Segment scan(long fromOffset) throws IOException {
+		if (fromOffset >= scanEnd) {
+			return new Segment(fromOffset, fromOffset);
+		}
+		try {
+			return ForkJoinPool.commonPool().invoke(new SegmentTask(fromOffset, scanEnd, true));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private Segment merge(Segment left, Segment right) throws IOException {
+		if (left.firstFrameOffset < 0) {
+			right.segmentStart = left.segmentStart;
+			return right;
+		}
+		if (left.stopped) {
+			left.segmentEnd = right.segmentEnd;
+			return left;
+		}
+		if (right.firstFrameOffset != left.nextOffset) {
+			right = walk(left.nextOffset, right.segmentEnd, true);
+		}
+		left.append(right);
+		return left;
+	}
+
+	private Segment walk(long segmentStart, long segmentEnd, boolean synchronised) throws IOException {
+		Segment segment = new Segment(segmentStart, segmentEnd);
+		if (buildFrameIndex) segment.frameIndex = new MpegFrameIndex();
+		if (verifyCrc) segment.frameCrc = new FrameCrc();
+		if (buildLoudnessEnvelope) segment.loudnessEnvelope = new LoudnessEnvelope();
+		if (synchronised) segment.firstFrameOffset = segmentStart;
+		long offset = segmentStart;
+		long windowStart = 0;
+		MappedByteBuffer window = null;
+		while (offset < segmentEnd) {
+			if (window == null || (offset + SEGMENT_LOOKAHEAD >= windowStart + window.limit() && windowStart + window.limit() < length)) {
+				windowStart = offset;
+				window = fileChannel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(length - windowStart, SEGMENT_LENGTH + SEGMENT_LOOKAHEAD));
+			}
+			if (!synchronised) {
+				long chainStart = findSyncChain(window, windowStart, offset, segmentEnd);
+				if (chainStart < 0 && windowStart + window.limit() < length && segmentEnd > windowStart + window.limit() - SEGMENT_LOOKAHEAD) {
+					offset = windowStart + window.limit() - SEGMENT_LOOKAHEAD;
+					continue;
+				}
+				if (chainStart < 0) {
+					return segment;
+				}
+				offset = chainStart;
+				synchronised = true;
+				segment.firstFrameOffset = offset;
+				continue;
+			}
+			int header = validFrame(window, windowStart, offset);
+			int frameLength = MpegFrameHeader.getFrameLength(header);
+			if (header == 0 || offset + frameLength - 1 >= maxEndOffset) {
+				segment.stopped = true;
+				return segment;
+			}
+			segment.addFrame(offset, frameLength, header);
+			if (offset + Mp3File.MINIMUM_BUFFER_LENGTH <= length) {
+				if (segment.frameCrc != null) segment.frameCrc.check(window, (int) (offset - windowStart), offset, header);
+				if (segment.loudnessEnvelope != null) segment.loudnessEnvelope.add(window, (int) (offset - windowStart), header);
+			}
+			offset += frameLength;
+		}
+		if (offset >= scanEnd) {
+			segment.stopped = true;
+		}
+		segment.nextOffset = offset;
+		return segment;
+	}
+
+	private long findSyncChain(MappedByteBuffer window, long windowStart, long fromOffset, long segmentEnd) {
+		long searchEnd = Math.min(segmentEnd, windowStart + window.limit() - SEGMENT_LOOKAHEAD);
+		if (windowStart + window.limit() == length) searchEnd = segmentEnd;
+		int searchEndIndex = (int) (searchEnd - windowStart);
+		for (int index = MpegFrameHeader.findSync(window, (int) (fromOffset - windowStart), searchEndIndex); index < searchEndIndex; index = MpegFrameHeader.findSync(window, index + 1, searchEndIndex)) {
+			long candidate = windowStart + index;
+			long offset = candidate;
+			int chained = 0;
+			while (chained < Mp3File.SYNC_CHAIN_LENGTH && offset < scanEnd) {
+				int header = validFrame(window, windowStart, offset);
+				if (header == 0) break;
+				offset += MpegFrameHeader.getFrameLength(header);
+				chained++;
+			}
+			if (chained == Mp3File.SYNC_CHAIN_LENGTH || (chained > 0 && offset >= scanEnd)) return candidate;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the frame header at the offset if it is consistent with the stream, otherwise 0
+	 */
+	private int validFrame(MappedByteBuffer window, long windowStart, long offset) {
+		int index = (int) (offset - windowStart);
+		if (index < 0 || index + 4 > window.limit()) return 0;
+		int header = MpegFrameHeader.read(window, index);
+		int frameLength = MpegFrameHeader.getFrameLength(header);
+		if (frameLength == 0) return 0;
+		if (!MpegFrameHeader.isSameStream(header, streamHeader)) return 0;
+		if (offset + frameLength > length) return 0;
+		return header;
+	}
+
+	private class SegmentTask extends RecursiveTask<Segment> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long segmentStart;
+		private final long segmentEnd;
+		private final boolean synchronised;
+
+		SegmentTask(long segmentStart, long segmentEnd, boolean synchronised) {
+			this.segmentStart = segmentStart;
+			this.segmentEnd = segmentEnd;
+			this.synchronised = synchronised;
+		}
+
+		@Override
+		protected Segment compute() {
+			try {
+				if (segmentEnd - segmentStart <= SEGMENT_LENGTH) {
+					return walk(segmentStart, segmentEnd, synchronised);
+				}
+				long middle = segmentStart + (segmentEnd - segmentStart) / 2;
+				SegmentTask left = new SegmentTask(segmentStart, middle, synchronised);
+				SegmentTask right = new SegmentTask(middle, segmentEnd, false);
+				left.fork();
+				Segment rightSegment = right.compute();
+				Segment leftSegment = left.join();
+				return merge(leftSegment, rightSegment);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	static final class Segment {
+
+		private long segmentStart;
+		private long segmentEnd;
+		private long firstFrameOffset = -1;
+		private long nextOffset = -1;
+		private boolean stopped;
+		private int frameCount;
+		private long endOffset = -1;
+		private final int[] bitrateCounts = new int[MpegFrameHeader.BITRATE_INDEX_COUNT];
+		private MpegFrameIndex frameIndex;
+		private FrameCrc frameCrc;
+		private LoudnessEnvelope loudnessEnvelope;
+
+		private Segment(long segmentStart, long segmentEnd) {
+			this.segmentStart = segmentStart;
+			this.segmentEnd = segmentEnd;
+		}
+
+		private void addFrame(long offset, int frameLength, int header) {
+			frameCount++;
+			endOffset = offset + frameLength - 1;
+			bitrateCounts[MpegFrameHeader.getBitrateIndex(header)]++;
+			if (frameIndex != null) frameIndex.add(offset);
+		}
+
+		private void append(Segment other) {
+			segmentEnd = other.segmentEnd;
+			nextOffset = other.nextOffset;
+			stopped = other.stopped;
+			if (other.frameCount == 0) return;
+			frameCount += other.frameCount;
+			endOffset = other.endOffset;
+			for (int i = 0; i < MpegFrameHeader.BITRATE_INDEX_COUNT; i++) {
+				bitrateCounts[i] += other.bitrateCounts[i];
+			}
+			if (frameIndex != null) frameIndex.addAll(other.frameIndex);
+			if (frameCrc != null) frameCrc.addAll(other.frameCrc);
+			if (loudnessEnvelope != null) loudnessEnvelope.addAll(other.loudnessEnvelope);
+		}
+
+		int getFrameCount() {
+			return frameCount;
+		}
+
+		long getEndOffset() {
+			return endOffset;
+		}
+
+		int[] getBitrateCounts() {
+			return bitrateCounts;
+		}
+
+		MpegFrameIndex getFrameIndex() {
+			return frameIndex;
+		}
+
+		FrameCrc getFrameCrc() {
+			return frameCrc;
+		}
+
+		LoudnessEnvelope getLoudnessEnvelope() {
+			return loudnessEnvelope;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.mpatric.mp3agic;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events for opening mp3 files. They cost next to nothing unless a recording
+ * with them enabled is running; ScanStatistics keeps totals that are always collected.
+ */
+final class ScanEvents {
+	private ScanEvents() {}
+
+	@Name("com.mpatric.mp3agic.FileOpen")
+	@Label("MP3 File Open")
+	@Category("mp3agic")
+	@Description("Opening an Mp3File, from the first read to the last")
+	static final class FileOpen extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Scan Mode")
+		String scanMode;
+
+		@Label("File Length")
+		@DataAmount
+		long fileLength;
+
+		@Label("Bytes Read")
+		@Description("Bytes read from the file; a mapped region counts as read in full")
+		@DataAmount
+		long bytesRead;
+
+		@Label("Read Calls")
+		int readCalls;
+
+		@Label("Resyncs")
+		@Description("Frame headers that were not followed by a chain of consistent frames")
+		int resyncs;
+
+		@Label("Frames Scanned")
+		@Description("Frames whose headers were read, fewer than the frame count if it came from a VBR header or an estimate")
+		int framesScanned;
+
+		@Label("Frame Count")
+		int frameCount;
+
+		@Label("ID3v2 Tag Size")
+		@DataAmount
+		int tagSize;
+	}
+
+	@Name("com.mpatric.mp3agic.FrameScan")
+	@Label("MP3 Frame Scan")
+	@Category("mp3agic")
+	@Description("Finding the start of the audio and walking its frames")
+	static final class FrameScan extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Bytes Read")
+		@DataAmount
+		long bytesRead;
+
+		@Label("Read Calls")
+		int readCalls;
+
+		@Label("Resyncs")
+		int resyncs;
+
+		@Label("Frames Scanned")
+		int framesScanned;
+
+		@Label("Frame Count")
+		int frameCount;
+
+		@Label("VBR Header Trusted")
+		boolean vbrHeaderTrusted;
+	}
+
+	@Name("com.mpatric.mp3agic.Id3v2TagRead")
+	@Label("ID3v2 Tag Read")
+	@Category("mp3agic")
+	static final class Id3v2TagRead extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Bytes Read")
+		@DataAmount
+		long bytesRead;
+
+		@Label("Tag Size")
+		@DataAmount
+		int tagSize;
+	}
+
+	@Name("com.mpatric.mp3agic.Id3v2TagParse")
+	@Label("ID3v2 Tag Parse")
+	@Category("mp3agic")
+	static final class Id3v2TagParse extends Event {
+		@Label("Version")
+		String version;
+
+		@Label("Tag Size")
+		@DataAmount
+		int tagSize;
+
+		@Label("Frame Count")
+		int frameCount;
+	}
+}
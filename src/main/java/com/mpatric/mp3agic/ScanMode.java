@@ -0,0 +1,45 @@
+package com.mpatric.mp3agic;
+
+public enum ScanMode {
+
+	/**
+	 * Read the file through a heap buffer, one block of bufferLength bytes at a time.
+	 */
+	BUFFERED,
+
+	/**
+	 * Map the file with FileChannel.map and walk the frames directly over the mapped region.
+	 */
+	MAPPED,
+
+	/**
+	 * Stop at the first frame and take the frame count, length and bitrate from its Xing/Info or
+	 * VBRI header. Files without a usable header, or opened with scan options, fall back to a full
+	 * BUFFERED scan.
+	 */
+	VBR_HEADER,
+
+	/**
+	 * Like VBR_HEADER, but a file without a usable header is not scanned in full. Instead a few
+	 * short blocks spread over the audio are read and, if all their frames have the bitrate of the
+	 * first frame, the frame count is extrapolated from the length of the audio. The result is
+	 * reported by Mp3File.isLengthEstimated() and Mp3File.getLengthErrorInMilliseconds(). Files whose
+	 * samples disagree, short files and files opened with scan options fall back to a full BUFFERED
+	 * scan.
+	 */
+	ESTIMATE,
+
+	/**
+	 * Like MAPPED, but once the start of the audio is established the remaining frames are walked in
+	 * segments on the common ForkJoinPool. The results are identical to a sequential scan.
+	 */
+	PARALLEL,
+
+	/**
+	 * Read only the ID3v2 tag, using the size declared in its header, and the last 128 bytes for an
+	 * ID3v1 tag. No audio frames are looked at, so the stream info and frame statistics are left
+	 * empty, there is no custom tag and scan options are ignored. Saving copies everything between
+	 * the tags unchanged.
+	 */
+	TAGS_ONLY
+}
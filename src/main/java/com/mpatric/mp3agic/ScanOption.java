@@ -0,0 +1,27 @@
+package com.mpatric.mp3agic;
+
+public enum ScanOption {
+
+	/**
+	 * Record the byte offset of every audio frame during the scan, see Mp3File.getFrameIndex().
+	 */
+	FRAME_INDEX,
+
+	/**
+	 * Checksum the audio frames, from the start offset to the end offset, as they are scanned, see
+	 * Mp3File.getAudioHash(). Tags are not included, so re-tagging a file leaves the hash unchanged.
+	 */
+	AUDIO_HASH,
+
+	/**
+	 * Check the CRC of every protected Layer I and Layer III frame as it is scanned, see
+	 * Mp3File.getCrcErrorOffsets(). Frames with a bad CRC are still counted as audio.
+	 */
+	VERIFY_CRC,
+
+	/**
+	 * Estimate the level of every Layer III granule from its side information as it is scanned,
+	 * see Mp3File.getLoudnessEnvelope(). No audio is decoded.
+	 */
+	LOUDNESS_ENVELOPE
+}
@@ -0,0 +1,77 @@
+package com.mpatric.mp3agic;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals over every Mp3File opened in this JVM. They are kept in LongAdders, so
+ * updating them from many threads at once does not contend.
+ */
+public final class ScanStatistics {
+	private ScanStatistics() {}
+
+	private static final LongAdder FILES_OPENED = new LongAdder();
+	private static final LongAdder OPEN_NANOS = new LongAdder();
+	private static final LongAdder BYTES_READ = new LongAdder();
+	private static final LongAdder READ_CALLS = new LongAdder();
+	private static final LongAdder RESYNCS = new LongAdder();
+	private static final LongAdder FRAMES_SCANNED = new LongAdder();
+	private static final LongAdder TAGS_PARSED = new LongAdder();
+
+	static void fileOpened(long nanos, long bytesRead, int readCalls, int resyncs, int framesScanned) {
+		FILES_OPENED.increment();
+		OPEN_NANOS.add(nanos);
+		BYTES_READ.add(bytesRead);
+		READ_CALLS.add(readCalls);
+		RESYNCS.add(resyncs);
+		FRAMES_SCANNED.add(framesScanned);
+	}
+
+	static void tagParsed() {
+		TAGS_PARSED.increment();
+	}
+
+	/**
+	 * @return the number of Mp3File constructors that have finished, including those that threw
+	 */
+	public static long getFilesOpened() {
+		return FILES_OPENED.sum();
+	}
+
+	public static long getOpenNanos() {
+		return OPEN_NANOS.sum();
+	}
+
+	public static long getBytesRead() {
+		return BYTES_READ.sum();
+	}
+
+	public static long getReadCalls() {
+		return READ_CALLS.sum();
+	}
+
+	public static long getResyncs() {
+		return RESYNCS.sum();
+	}
+
+	/**
+	 * @return the frames whose headers were read, which for a file whose length came from a VBR
+	 * header or an estimate is only the few frames its scan visited
+	 */
+	public static long getFramesScanned() {
+		return FRAMES_SCANNED.sum();
+	}
+
+	public static long getTagsParsed() {
+		return TAGS_PARSED.sum();
+	}
+
+	public static void reset() {
+		FILES_OPENED.reset();
+		OPEN_NANOS.reset();
+		BYTES_READ.reset();
+		READ_CALLS.reset();
+		RESYNCS.reset();
+		FRAMES_SCANNED.reset();
+		TAGS_PARSED.reset();
+	}
+}
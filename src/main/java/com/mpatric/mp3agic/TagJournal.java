@@ -0,0 +1,530 @@
+package com.mpatric.mp3agic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log in front of Mp3File.save. submit records the new tags of a file in the
+ * journal; a writer thread appends everything submitted since its last write and forces the
+ * journal to disk once for the whole group, after which the edits are committed and are saved
+ * to their files on a pool of worker threads. Edits that were committed but not saved when the
+ * process stopped are saved again when the journal is next opened.
+ * <p>
+ * As the journal can redo them, saves are not forced one by one. Before the records of saved
+ * edits are dropped, a checkpoint forces every file saved since the last one, and the
+ * directories holding them, to disk together.
+ * <p>
+ * The journal holds the complete new tags rather than the changes, so saving an edit twice has
+ * the same result as saving it once.
+ */
+public class TagJournal implements Closeable {
+
+	public static final int DEFAULT_APPLY_THREAD_COUNT = 2;
+
+	private static final int MAGIC = 0x4D50544A; // "MPTJ"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_LENGTH = 8;
+	private static final int RECORD_HEADER_LENGTH = 8;
+	private static final int MAXIMUM_RECORD_LENGTH = 1 << 30;
+	private static final long COMPACT_LENGTH = 1 << 20;
+	private static final byte RECORD_EDIT = 1;
+	private static final byte RECORD_DONE = 2;
+
+	private final Path journalPath;
+	private final FileChannel channel;
+	private final ExecutorService applyExecutor;
+	private final Thread writerThread;
+	private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+	private final Map<Path, CompletableFuture<Void>> lastApplied = new ConcurrentHashMap<>();
+	private final Map<Path, Exception> replayFailures = new LinkedHashMap<>();
+	private final AtomicInteger groupCommits = new AtomicInteger();
+	private final AtomicInteger checkpoints = new AtomicInteger();
+	// files saved since the last checkpoint, which may not be on disk yet
+	private final Set<Path> unforcedPaths = ConcurrentHashMap.newKeySet();
+	private long nextSequence = 1;
+	private int outstanding;
+	private int replayedCount;
+	private boolean allowInPlace = false;
+	private volatile boolean closed;
+
+	public TagJournal(Path journalPath) throws IOException {
+		this(journalPath, DEFAULT_APPLY_THREAD_COUNT);
+	}
+
+	/**
+	 * Opens or creates the journal and saves any edits left from an earlier run before returning.
+	 */
+	public TagJournal(Path journalPath, int applyThreadCount) throws IOException {
+		if (applyThreadCount < 1) throw new IllegalArgumentException("Thread count must be at least 1");
+		this.journalPath = journalPath;
+		this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			replay();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		this.applyExecutor = Executors.newFixedThreadPool(applyThreadCount, runnable -> {
+			Thread thread = new Thread(runnable, "TagJournal apply");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.writerThread = new Thread(this::writeLoop, "TagJournal writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	public Path getJournalPath() {
+		return journalPath;
+	}
+
+	public boolean isAllowInPlace() {
+		return allowInPlace;
+	}
+
+	/**
+	 * @param allowInPlace true to let edits be saved with Mp3File.save(true); by default they
+	 * always go through a temporary file and an atomic rename
+	 */
+	public void setAllowInPlace(boolean allowInPlace) {
+		this.allowInPlace = allowInPlace;
+	}
+
+	/**
+	 * @return the number of edits from an earlier run that were saved when the journal was opened
+	 */
+	public int getReplayedCount() {
+		return replayedCount;
+	}
+
+	/**
+	 * @return the edits from an earlier run that could not be saved when the journal was opened;
+	 * they are dropped from the journal
+	 */
+	public Map<Path, Exception> getReplayFailures() {
+		return Collections.unmodifiableMap(replayFailures);
+	}
+
+	/**
+	 * @return the number of times the journal has been forced to disk for a group of records
+	 */
+	public int getGroupCommitCount() {
+		return groupCommits.get();
+	}
+
+	/**
+	 * @return the number of times saved files have been forced to disk so that the records of
+	 * their edits could be dropped
+	 */
+	public int getCheckpointCount() {
+		return checkpoints.get();
+	}
+
+	/**
+	 * Records the current ID3v1 and ID3v2 tags of mp3File as the new tags of its file. Edits of
+	 * the same file are saved in the order they were submitted.
+	 */
+	public Edit submit(Mp3File mp3File) throws NotSupportedException {
+		byte[] id3v2Bytes = mp3File.hasId3v2Tag() ? mp3File.getId3v2Tag().toBytes() : null;
+		byte[] id3v1Bytes = mp3File.hasId3v1Tag() ? mp3File.getId3v1Tag().toBytes() : null;
+		return submit(Paths.get(mp3File.getFilename()), id3v2Bytes, id3v1Bytes);
+	}
+
+	/**
+	 * @param id3v2Bytes the packed ID3v2 tag, or null to remove it
+	 * @param id3v1Bytes the packed ID3v1 tag, or null to remove it
+	 */
+	public Edit submit(Path path, byte[] id3v2Bytes, byte[] id3v1Bytes) {
+		Edit edit = new Edit(path.toAbsolutePath(), id3v2Bytes, id3v1Bytes);
+		if (edit.path.toString().getBytes(StandardCharsets.UTF_8).length > 0xFFFF) throw new IllegalArgumentException("Path too long");
+		synchronized (this) {
+			if (closed) throw new IllegalStateException("Journal closed");
+			edit.sequence = nextSequence++;
+			// chaining on the previous edit of the file keeps saves of the same file in order
+			CompletableFuture<Void> previous = lastApplied.getOrDefault(edit.path, CompletableFuture.completedFuture(null));
+			CompletableFuture<Void> applied = previous.handle((result, e) -> null).thenCompose(ignored -> edit.committed).thenComposeAsync(ignored -> {
+				applyAndRecord(edit);
+				return edit.applied;
+			}, applyExecutor);
+			lastApplied.put(edit.path, applied);
+			applied.whenComplete((result, e) -> lastApplied.remove(edit.path, applied));
+			queue.add(edit);
+		}
+		return edit;
+	}
+
+	/**
+	 * Waits for every submitted edit to be saved, then stops the worker threads and closes the
+	 * journal, leaving it empty if nothing failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		List<CompletableFuture<Void>> pending;
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			pending = new ArrayList<>(lastApplied.values());
+		}
+		for (CompletableFuture<Void> future : pending) {
+			future.handle((result, e) -> null).join();
+		}
+		applyExecutor.shutdown();
+		queue.add(Stop.INSTANCE);
+		try {
+			writerThread.join();
+			applyExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void applyAndRecord(Edit edit) {
+		Exception exception = null;
+		try {
+			apply(edit.path, edit.id3v2Bytes, edit.id3v1Bytes);
+		} catch (IOException | BaseException | RuntimeException e) {
+			exception = e;
+		}
+		// even a failed save may have written part of the file
+		unforcedPaths.add(edit.path);
+		// a failed edit is not retried either, as it would most likely fail again
+		queue.add(new Done(edit.sequence));
+		if (exception == null) edit.applied.complete(null);
+		else edit.applied.completeExceptionally(exception);
+	}
+
+	private void apply(Path path, byte[] id3v2Bytes, byte[] id3v1Bytes) throws IOException, BaseException {
+		Mp3File mp3File = new Mp3File(path, ScanMode.TAGS_ONLY);
+		mp3File.setId3v2Tag(id3v2Bytes != null ? ID3v2TagFactory.createTag(id3v2Bytes) : null);
+		mp3File.setId3v1Tag(id3v1Bytes != null ? new ID3v1Tag(id3v1Bytes) : null);
+		mp3File.save(allowInPlace, false);
+	}
+
+	private void writeLoop() {
+		List<Record> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch);
+			boolean stop = false;
+			int edits = 0;
+			int dones = 0;
+			long journalLength = -1;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try {
+				for (Record record : batch) {
+					if (record == Stop.INSTANCE) {
+						stop = true;
+					} else {
+						record.writeTo(bytes);
+						if (record instanceof Edit) edits++;
+						else dones++;
+					}
+				}
+				journalLength = channel.size();
+				if (bytes.size() > 0) {
+					writeFully(ByteBuffer.wrap(bytes.toByteArray()), journalLength);
+				}
+				// completion records need no force: if one is lost, its edit is only saved again
+				if (edits > 0) {
+					channel.force(false);
+					groupCommits.incrementAndGet();
+				}
+			} catch (IOException | RuntimeException e) {
+				// a partly written group would hide every later record from replay
+				if (journalLength >= 0) truncateQuietly(journalLength);
+				for (Record record : batch) {
+					if (record instanceof Edit) {
+						((Edit) record).committed.completeExceptionally(e);
+						((Edit) record).applied.completeExceptionally(e);
+					} else if (record instanceof Done) {
+						// the edit is saved again on replay, so it must not hold up compaction for good
+						outstanding--;
+					}
+				}
+				batch.clear();
+				if (stop) return;
+				continue;
+			}
+			outstanding += edits - dones;
+			for (Record record : batch) {
+				if (record instanceof Edit) ((Edit) record).committed.complete(null);
+			}
+			// with nothing outstanding no save is running, so the checkpoint covers every saved edit
+			if (outstanding == 0 && (stop || journalLength + bytes.size() > COMPACT_LENGTH) && checkpoint(unforcedPaths)) {
+				compact();
+			}
+			batch.clear();
+			if (stop) return;
+		}
+	}
+
+	/**
+	 * Forces the files, and the directories holding them so that renames over them are durable,
+	 * and forgets them.
+	 *
+	 * @return false if one could not be forced, in which case the journal must keep their records
+	 */
+	private boolean checkpoint(Set<Path> paths) {
+		List<Path> forced = new ArrayList<>(paths);
+		Set<Path> directories = new LinkedHashSet<>();
+		try {
+			for (Path path : forced) {
+				force(path);
+				directories.add(path.getParent());
+			}
+			for (Path directory : directories) {
+				forceDirectory(directory);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		paths.removeAll(forced);
+		checkpoints.incrementAndGet();
+		return true;
+	}
+
+	private static void force(Path path) throws IOException {
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+			file.force(false);
+		} catch (NoSuchFileException e) {
+			// deleted since it was saved, so there is nothing left to make durable
+		}
+	}
+
+	private static void forceDirectory(Path directory) throws IOException {
+		FileChannel directoryChannel;
+		try {
+			directoryChannel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException e) {
+			// some platforms, Windows among them, cannot open a directory; their renames are
+			// made durable by the file system itself
+			return;
+		}
+		try (FileChannel channel = directoryChannel) {
+			channel.force(true);
+		}
+	}
+
+	private void compact() {
+		try {
+			channel.truncate(HEADER_LENGTH);
+			channel.force(false);
+		} catch (IOException e) {
+			// the records are still valid, so compaction is only put off until the next group
+		}
+	}
+
+	private void truncateQuietly(long length) {
+		try {
+			channel.truncate(length);
+		} catch (IOException e) {
+			// the torn group will be skipped on replay, along with anything after it
+		}
+	}
+
+	private void replay() throws IOException {
+		long length = channel.size();
+		if (length < HEADER_LENGTH) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(FORMAT_VERSION);
+			header.flip();
+			channel.truncate(0);
+			writeFully(header, 0);
+			channel.force(false);
+			return;
+		}
+		ByteBuffer header = readFully(0, HEADER_LENGTH);
+		if (header.getInt() != MAGIC) throw new IOException("Not a tag journal");
+		int formatVersion = header.getInt();
+		if (formatVersion != FORMAT_VERSION) throw new IOException("Unsupported tag journal version " + formatVersion);
+		Map<Long, Edit> edits = new LinkedHashMap<>();
+		long position = HEADER_LENGTH;
+		while (position + RECORD_HEADER_LENGTH <= length) {
+			ByteBuffer recordHeader = readFully(position, RECORD_HEADER_LENGTH);
+			int recordLength = recordHeader.getInt();
+			int crc = recordHeader.getInt();
+			if (recordLength <= 0 || recordLength > MAXIMUM_RECORD_LENGTH || position + RECORD_HEADER_LENGTH + recordLength > length) break;
+			ByteBuffer record = readFully(position + RECORD_HEADER_LENGTH, recordLength);
+			CRC32 crc32 = new CRC32();
+			crc32.update(record.array(), 0, recordLength);
+			if ((int) crc32.getValue() != crc) break;
+			byte type = record.get();
+			long sequence = record.getLong();
+			if (type == RECORD_EDIT) {
+				edits.put(sequence, readEdit(record));
+			} else if (type == RECORD_DONE) {
+				edits.remove(sequence);
+			} else {
+				break;
+			}
+			position += RECORD_HEADER_LENGTH + recordLength;
+		}
+		// anything after the last intact record was never committed, and as every edit holds the
+		// complete tags, only the latest edit of each file needs saving
+		Map<Path, Edit> latestEdits = new LinkedHashMap<>();
+		for (Edit edit : edits.values()) {
+			latestEdits.remove(edit.path);
+			latestEdits.put(edit.path, edit);
+		}
+		for (Edit edit : latestEdits.values()) {
+			try {
+				apply(edit.path, edit.id3v2Bytes, edit.id3v1Bytes);
+				replayedCount++;
+			} catch (IOException | BaseException | RuntimeException e) {
+				replayFailures.put(edit.path, e);
+			}
+		}
+		if (!latestEdits.isEmpty() && !checkpoint(new LinkedHashSet<>(latestEdits.keySet()))) {
+			// the records stay, so the edits are saved again when the journal is next opened
+			throw new IOException("Could not force the replayed files to disk");
+		}
+		channel.truncate(HEADER_LENGTH);
+		channel.force(false);
+	}
+
+	private static Edit readEdit(ByteBuffer record) {
+		byte[] pathBytes = new byte[record.getShort() & 0xFFFF];
+		record.get(pathBytes);
+		return new Edit(Paths.get(new String(pathBytes, StandardCharsets.UTF_8)), readBytes(record), readBytes(record));
+	}
+
+	private static byte[] readBytes(ByteBuffer record) {
+		int length = record.getInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		record.get(bytes);
+		return bytes;
+	}
+
+	private ByteBuffer readFully(long position, int length) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+		while (byteBuffer.hasRemaining()) {
+			if (channel.read(byteBuffer, position + byteBuffer.position()) < 0) throw new IOException("Not enough bytes read");
+		}
+		byteBuffer.flip();
+		return byteBuffer;
+	}
+
+	private void writeFully(ByteBuffer byteBuffer, long position) throws IOException {
+		while (byteBuffer.hasRemaining()) {
+			position += channel.write(byteBuffer, position);
+		}
+	}
+
+	private abstract static class Record {
+		long sequence;
+
+		abstract void writePayload(DataOutputStream out) throws IOException;
+
+		void writeTo(ByteArrayOutputStream bytes) throws IOException {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			writePayload(new DataOutputStream(payload));
+			CRC32 crc32 = new CRC32();
+			crc32.update(payload.toByteArray());
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(payload.size());
+			out.writeInt((int) crc32.getValue());
+			payload.writeTo(out);
+		}
+	}
+
+	/**
+	 * An edit submitted to the journal. committed() completes once the edit is on disk in the
+	 * journal, applied() once the file itself has been saved.
+	 */
+	public static final class Edit extends Record {
+		private final Path path;
+		private final byte[] id3v2Bytes;
+		private final byte[] id3v1Bytes;
+		private final CompletableFuture<Void> committed = new CompletableFuture<>();
+		private final CompletableFuture<Void> applied = new CompletableFuture<>();
+
+		private Edit(Path path, byte[] id3v2Bytes, byte[] id3v1Bytes) {
+			this.path = path;
+			this.id3v2Bytes = id3v2Bytes;
+			this.id3v1Bytes = id3v1Bytes;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public CompletableFuture<Void> committed() {
+			return committed;
+		}
+
+		public CompletableFuture<Void> applied() {
+			return applied;
+		}
+
+		@Override
+		void writePayload(DataOutputStream out) throws IOException {
+			out.writeByte(RECORD_EDIT);
+			out.writeLong(sequence);
+			byte[] pathBytes = path.toString().getBytes(StandardCharsets.UTF_8);
+			out.writeShort(pathBytes.length);
+			out.write(pathBytes);
+			writeBytes(out, id3v2Bytes);
+			writeBytes(out, id3v1Bytes);
+		}
+
+		private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+			if (bytes == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+	}
+
+	private static final class Done extends Record {
+		Done(long sequence) {
+			this.sequence = sequence;
+		}
+
+		@Override
+		void writePayload(DataOutputStream out) throws IOException {
+			out.writeByte(RECORD_DONE);
+			out.writeLong(sequence);
+		}
+	}
+
+	private static final class Stop extends Record {
+		static final Stop INSTANCE = new Stop();
+
+		@Override
+		void writePayload(DataOutputStream out) {
+		}
+	}
+}
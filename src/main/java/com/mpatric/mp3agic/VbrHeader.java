@@ -0,0 +1,236 @@
+package com.mpatric.mp3agic;
+
+import java.nio.ByteBuffer;
+
+public class VbrHeader {
+
+	public static final String TYPE_XING = "Xing";
+	public static final String TYPE_INFO = "Info";
+	public static final String TYPE_VBRI = "VBRI";
+
+	private static final int[] XING_MARKER_OFFSETS = {13, 21, 36};
+	private static final int VBRI_MARKER_OFFSET = 36;
+	private static final byte[] XING_MARKER = {'X', 'i', 'n', 'g'};
+	private static final byte[] INFO_MARKER = {'I', 'n', 'f', 'o'};
+	private static final byte[] VBRI_MARKER = {'V', 'B', 'R', 'I'};
+	private static final int MARKER_LENGTH = 4;
+	private static final int XING_FLAG_FRAMES = 0x1;
+	private static final int XING_FLAG_BYTES = 0x2;
+	private static final int XING_FLAG_TOC = 0x4;
+	private static final int XING_FLAG_QUALITY = 0x8;
+	private static final int XING_TOC_LENGTH = 100;
+	private static final String[] LAME_ENCODERS = {"LAME", "Lavf", "Lavc"};
+	private static final int LAME_ENCODER_LENGTH = 9;
+	private static final int LAME_DELAY_OFFSET = 21;
+	private static final int LAME_TAG_LENGTH = 36;
+
+	private String type;
+	private int frameCount = -1;
+	private long byteCount = -1;
+	private int[] toc;
+	private int quality = -1;
+	private int vbriVersion = -1;
+	private int vbriDelay = -1;
+	private int tocScale = 1;
+	private int tocEntrySize;
+	private int framesPerTocEntry;
+	private String encoder;
+	private int encoderDelay = -1;
+	private int encoderPadding = -1;
+
+	public VbrHeader(ByteBuffer buffer, int frameOffset) throws NoSuchTagException, InvalidDataException {
+		int markerOffset = findMarker(buffer, frameOffset);
+		if (markerOffset < 0) throw new NoSuchTagException();
+		try {
+			if (hasMarker(buffer, markerOffset, VBRI_MARKER)) {
+				unpackVbri(buffer, markerOffset + MARKER_LENGTH);
+			} else {
+				unpackXing(buffer, markerOffset);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new InvalidDataException("Premature end of VBR header", e);
+		}
+	}
+
+	/**
+	 * Locate a Xing, Info or VBRI marker inside the frame starting at frameOffset.
+	 *
+	 * @param buffer buffer holding the frame
+	 * @param frameOffset offset of the frame header within the buffer
+	 * @return absolute offset of the marker within the buffer, or -1 if there is none
+	 */
+	public static int findMarker(ByteBuffer buffer, int frameOffset) {
+		for (int markerOffset : XING_MARKER_OFFSETS) {
+			int offset = frameOffset + markerOffset;
+			if (hasMarker(buffer, offset, XING_MARKER) || hasMarker(buffer, offset, INFO_MARKER)) return offset;
+		}
+		if (hasMarker(buffer, frameOffset + VBRI_MARKER_OFFSET, VBRI_MARKER)) return frameOffset + VBRI_MARKER_OFFSET;
+		return -1;
+	}
+
+	private static boolean hasMarker(ByteBuffer buffer, int offset, byte[] marker) {
+		if (offset < 0 || offset + marker.length > buffer.limit()) return false;
+		for (int i = 0; i < marker.length; i++) {
+			if (buffer.get(offset + i) != marker[i]) return false;
+		}
+		return true;
+	}
+
+	private void unpackXing(ByteBuffer buffer, int offset) throws InvalidDataException {
+		type = hasMarker(buffer, offset, XING_MARKER) ? TYPE_XING : TYPE_INFO;
+		offset += MARKER_LENGTH;
+		int flags = buffer.getInt(offset);
+		offset += 4;
+		if ((flags & XING_FLAG_FRAMES) != 0) {
+			frameCount = buffer.getInt(offset);
+			if (frameCount < 0) throw new InvalidDataException("Invalid frame count in VBR header");
+			offset += 4;
+		}
+		if ((flags & XING_FLAG_BYTES) != 0) {
+			byteCount = buffer.getInt(offset) & 0xFFFFFFFFL;
+			offset += 4;
+		}
+		if ((flags & XING_FLAG_TOC) != 0) {
+			toc = new int[XING_TOC_LENGTH];
+			for (int i = 0; i < XING_TOC_LENGTH; i++) {
+				toc[i] = buffer.get(offset + i) & 0xFF;
+			}
+			offset += XING_TOC_LENGTH;
+		}
+		if ((flags & XING_FLAG_QUALITY) != 0) {
+			quality = buffer.getInt(offset);
+			offset += 4;
+		}
+		unpackLame(buffer, offset);
+	}
+
+	private void unpackLame(ByteBuffer buffer, int offset) {
+		// the LAME extension follows the Xing fields; libavformat writes the same layout
+		if (offset + LAME_TAG_LENGTH > buffer.limit()) return;
+		byte[] encoderBytes = new byte[LAME_ENCODER_LENGTH];
+		for (int i = 0; i < LAME_ENCODER_LENGTH; i++) {
+			encoderBytes[i] = buffer.get(offset + i);
+		}
+		String encoder = BufferTools.byteBufferToStringIgnoringEncodingIssues(encoderBytes, 0, LAME_ENCODER_LENGTH);
+		for (String lameEncoder : LAME_ENCODERS) {
+			if (encoder.startsWith(lameEncoder)) {
+				this.encoder = encoder.trim();
+				int delayAndPadding = ((buffer.get(offset + LAME_DELAY_OFFSET) & 0xFF) << 16) | ((buffer.get(offset + LAME_DELAY_OFFSET + 1) & 0xFF) << 8) | (buffer.get(offset + LAME_DELAY_OFFSET + 2) & 0xFF);
+				encoderDelay = delayAndPadding >>> 12;
+				encoderPadding = delayAndPadding & 0xFFF;
+				return;
+			}
+		}
+	}
+
+	private void unpackVbri(ByteBuffer buffer, int offset) throws InvalidDataException {
+		type = TYPE_VBRI;
+		vbriVersion = buffer.getShort(offset) & 0xFFFF;
+		vbriDelay = buffer.getShort(offset + 2) & 0xFFFF;
+		quality = buffer.getShort(offset + 4) & 0xFFFF;
+		byteCount = buffer.getInt(offset + 6) & 0xFFFFFFFFL;
+		frameCount = buffer.getInt(offset + 10);
+		if (frameCount < 0) throw new InvalidDataException("Invalid frame count in VBR header");
+		int tocEntries = buffer.getShort(offset + 14) & 0xFFFF;
+		tocScale = buffer.getShort(offset + 16) & 0xFFFF;
+		tocEntrySize = buffer.getShort(offset + 18) & 0xFFFF;
+		framesPerTocEntry = buffer.getShort(offset + 20) & 0xFFFF;
+		if (tocEntrySize < 1 || tocEntrySize > 4) throw new InvalidDataException("Invalid TOC entry size in VBR header");
+		offset += 22;
+		toc = new int[tocEntries];
+		for (int i = 0; i < tocEntries; i++) {
+			int entry = 0;
+			for (int j = 0; j < tocEntrySize; j++) {
+				entry = (entry << 8) | (buffer.get(offset++) & 0xFF);
+			}
+			toc[i] = entry;
+		}
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public boolean isVbr() {
+		return !TYPE_INFO.equals(type);
+	}
+
+	public boolean hasFrameCount() {
+		return frameCount >= 0;
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	public boolean hasByteCount() {
+		return byteCount >= 0;
+	}
+
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	public boolean hasToc() {
+		return toc != null;
+	}
+
+	/**
+	 * For Xing/Info headers, 100 entries each giving the position (0-255, scaled to the
+	 * byte count) at which the corresponding percentage of the duration starts.
+	 * For VBRI headers, the unscaled byte length of each span of getFramesPerTocEntry() frames.
+	 */
+	public int[] getToc() {
+		return toc;
+	}
+
+	public int getQuality() {
+		return quality;
+	}
+
+	public int getVbriVersion() {
+		return vbriVersion;
+	}
+
+	public int getVbriDelay() {
+		return vbriDelay;
+	}
+
+	public int getTocScale() {
+		return tocScale;
+	}
+
+	public int getTocEntrySize() {
+		return tocEntrySize;
+	}
+
+	public int getFramesPerTocEntry() {
+		return framesPerTocEntry;
+	}
+
+	public boolean hasLameTag() {
+		return encoder != null;
+	}
+
+	/**
+	 * @return the encoder named in the LAME tag, such as "LAME3.100", or null if there is none
+	 */
+	public String getEncoder() {
+		return encoder;
+	}
+
+	/**
+	 * @return the number of samples the encoder added before the audio, or -1 without a LAME tag
+	 */
+	public int getEncoderDelay() {
+		return encoderDelay;
+	}
+
+	/**
+	 * @return the number of samples the encoder added after the audio to fill the last frame, or
+	 * -1 without a LAME tag
+	 */
+	public int getEncoderPadding() {
+		return encoderPadding;
+	}
+}
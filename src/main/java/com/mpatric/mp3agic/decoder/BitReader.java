@@ -0,0 +1,53 @@
+package com.mpatric.mp3agic.decoder;
+
+/**
+ * Reads big-endian bit fields from a byte array. The array must hold at least four bytes past
+ * the last bit read, which lets every read be made from one 32-bit window without bounds checks.
+ */
+final class BitReader {
+
+	private byte[] bytes;
+	private int position;
+
+	void init(byte[] bytes, int byteOffset) {
+		this.bytes = bytes;
+		this.position = byteOffset << 3;
+	}
+
+	int getPosition() {
+		return position;
+	}
+
+	void setPosition(int position) {
+		this.position = position;
+	}
+
+	/**
+	 * @param count the number of bits to return, from 1 to 24
+	 */
+	int peekBits(int count) {
+		int offset = position >>> 3;
+		int window = (bytes[offset] << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+		return (window << (position & 7)) >>> (32 - count);
+	}
+
+	void skipBits(int count) {
+		position += count;
+	}
+
+	/**
+	 * @param count the number of bits to read, from 0 to 24
+	 */
+	int readBits(int count) {
+		if (count == 0) return 0;
+		int value = peekBits(count);
+		position += count;
+		return value;
+	}
+
+	int readBit() {
+		int value = (bytes[position >>> 3] >>> (7 - (position & 7))) & 1;
+		position++;
+		return value;
+	}
+}
@@ -0,0 +1,772 @@
+package com.mpatric.mp3agic.decoder;
+
+import com.mpatric.mp3agic.InvalidDataException;
+import com.mpatric.mp3agic.MpegFrameHeader;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodes MPEG 1, 2 and 2.5 Layer III frames to PCM: Huffman decoding, requantisation,
+ * stereo processing, IMDCT and the polyphase synthesis filterbank, following ISO/IEC 11172-3
+ * and 13818-3. Output goes to caller-supplied buffers, and nothing is allocated per frame.
+ *
+ * Frames must be passed in stream order, because a frame's main data may start in earlier
+ * frames (the bit reservoir) and its output overlaps that of the frame before. After reset(),
+ * frames whose main data starts before the first frame decoded come out as silence, which is
+ * why Mp3PcmReader decodes a few frames ahead of a seek target. An instance is not safe for use
+ * by more than one thread.
+ */
+public class Layer3Decoder {
+
+	public static final int MAXIMUM_SAMPLES_PER_FRAME = 1152;
+	public static final int MAXIMUM_CHANNELS = 2;
+
+	/**
+	 * The furthest back main_data_begin can point, in bytes.
+	 */
+	public static final int MAXIMUM_MAIN_DATA_BEGIN = 511;
+
+	private static final int GRANULE_LENGTH = 576;
+	private static final int SUBBAND_LENGTH = 18;
+	private static final int RESERVOIR_PADDING = 64;
+	private static final float SQRT_HALF = (float) Math.sqrt(0.5);
+	private static final float SHORT_SCALE = 32768.0f;
+
+	private final BitReader reader = new BitReader();
+	private final byte[] sideInfo = new byte[32 + 4];
+	private final byte[] reservoir = new byte[MAXIMUM_MAIN_DATA_BEGIN + MpegFrameHeader.MAXIMUM_FRAME_LENGTH + RESERVOIR_PADDING];
+	private int reservoirLength;
+
+	private final Granule[][] granules = {{new Granule(), new Granule()}, {new Granule(), new Granule()}};
+	private final int[][] scfsi = new int[2][4];
+	private final int[][] scalefacLong = new int[2][22];
+	private final int[][] scalefacShort = new int[2][39];
+	private final int[] intensityLimitLong = new int[22];
+	private final int[] intensityLimitShort = new int[39];
+	private final int[] slen = new int[4];
+	private final int[] lsfScalefactors = new int[39];
+	private final int[] lsfLimits = new int[39];
+
+	private final int[][] quantized = new int[2][GRANULE_LENGTH];
+	private final float[][] spectrum = new float[2][GRANULE_LENGTH];
+	private final int[] nonzero = new int[2];
+	private final float[] reordered = new float[GRANULE_LENGTH];
+	private final float[] imdct = new float[36];
+	private final float[][] overlap = new float[2][GRANULE_LENGTH];
+	private final float[] subbandSamples = new float[GRANULE_LENGTH];
+	private final SynthesisFilter[] synthesisFilters = {new SynthesisFilter(), new SynthesisFilter()};
+	private final float[][] output = new float[2][MAXIMUM_SAMPLES_PER_FRAME];
+
+	private int streamHeader;
+	private int channelCount;
+
+	/**
+	 * Forgets the bit reservoir and the overlap and filterbank state, for decoding from a new
+	 * position in the stream.
+	 */
+	public void reset() {
+		reservoirLength = 0;
+		streamHeader = 0;
+		for (int ch = 0; ch < 2; ch++) {
+			Arrays.fill(overlap[ch], 0.0f);
+			synthesisFilters[ch].reset();
+		}
+	}
+
+	/**
+	 * Decodes the frame at offset into pcm, interleaving the channels of a stereo frame.
+	 *
+	 * @param buffer buffer holding the whole frame
+	 * @param pcm receives getSamplesPerFrame() samples per channel, scaled to -1.0 to 1.0
+	 * @return the number of samples per channel written
+	 */
+	public int decodeFrame(ByteBuffer buffer, int offset, float[] pcm, int pcmOffset) throws InvalidDataException {
+		int samples = decode(buffer, offset);
+		if (channelCount == 1) {
+			System.arraycopy(output[0], 0, pcm, pcmOffset, samples);
+		} else {
+			float[] left = output[0];
+			float[] right = output[1];
+			for (int i = 0; i < samples; i++) {
+				pcm[pcmOffset + 2 * i] = left[i];
+				pcm[pcmOffset + 2 * i + 1] = right[i];
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Decodes the frame at offset into pcm as signed 16-bit samples, interleaving the channels of
+	 * a stereo frame.
+	 *
+	 * @return the number of samples per channel written
+	 */
+	public int decodeFrame(ByteBuffer buffer, int offset, short[] pcm, int pcmOffset) throws InvalidDataException {
+		int samples = decode(buffer, offset);
+		for (int ch = 0; ch < channelCount; ch++) {
+			float[] channel = output[ch];
+			for (int i = 0; i < samples; i++) {
+				pcm[pcmOffset + channelCount * i + ch] = toShort(channel[i]);
+			}
+		}
+		return samples;
+	}
+
+	private static short toShort(float sample) {
+		int value = Math.round(sample * SHORT_SCALE);
+		if (value > Short.MAX_VALUE) return Short.MAX_VALUE;
+		if (value < Short.MIN_VALUE) return Short.MIN_VALUE;
+		return (short) value;
+	}
+
+	/**
+	 * @return the number of channels of the last frame decoded, 1 or 2
+	 */
+	public int getChannelCount() {
+		return channelCount;
+	}
+
+	private int decode(ByteBuffer buffer, int offset) throws InvalidDataException {
+		if (offset < 0 || offset + 4 > buffer.limit()) throw new InvalidDataException("Premature end of frame");
+		int header = MpegFrameHeader.read(buffer, offset);
+		int frameLength = MpegFrameHeader.getFrameLength(header);
+		if (frameLength == 0) throw new InvalidDataException("Invalid frame header");
+		if (MpegFrameHeader.getLayerNumber(header) != 3) throw new InvalidDataException("Not a Layer III frame");
+		if (offset + frameLength > buffer.limit()) throw new InvalidDataException("Premature end of frame");
+		int channelModeIndex = MpegFrameHeader.getChannelModeIndex(header);
+		if (streamHeader == 0 || !MpegFrameHeader.isSameStream(header, streamHeader) || (channelModeIndex == 3) != (channelCount == 1)) {
+			reset();
+			streamHeader = header;
+			channelCount = channelModeIndex == 3 ? 1 : 2;
+		}
+		boolean mpeg1 = ((header >>> 19) & 0x3) == 3;
+		int granuleCount = mpeg1 ? 2 : 1;
+		int sideInfoLength = mpeg1 ? (channelCount == 1 ? 17 : 32) : (channelCount == 1 ? 9 : 17);
+		int sideInfoOffset = offset + 4 + (MpegFrameHeader.hasCrc(header) ? 2 : 0);
+		int mainDataOffset = sideInfoOffset + sideInfoLength;
+		int mainDataLength = offset + frameLength - mainDataOffset;
+		if (mainDataLength < 0) throw new InvalidDataException("Frame too short for its side information");
+
+		buffer.get(sideInfoOffset, sideInfo, 0, sideInfoLength);
+		reader.init(sideInfo, 0);
+		int mainDataBegin = readSideInfo(mpeg1, granuleCount);
+
+		if (reservoirLength > MAXIMUM_MAIN_DATA_BEGIN) {
+			System.arraycopy(reservoir, reservoirLength - MAXIMUM_MAIN_DATA_BEGIN, reservoir, 0, MAXIMUM_MAIN_DATA_BEGIN);
+			reservoirLength = MAXIMUM_MAIN_DATA_BEGIN;
+		}
+		int mainDataStart = reservoirLength - mainDataBegin;
+		buffer.get(mainDataOffset, reservoir, reservoirLength, mainDataLength);
+		reservoirLength += mainDataLength;
+		int samples = granuleCount * GRANULE_LENGTH;
+		if (mainDataStart < 0) {
+			// the main data starts in a frame that was not decoded
+			for (int ch = 0; ch < channelCount; ch++) {
+				Arrays.fill(output[ch], 0, samples, 0.0f);
+			}
+			return samples;
+		}
+		long mainDataBits = 0;
+		for (int gr = 0; gr < granuleCount; gr++) {
+			for (int ch = 0; ch < channelCount; ch++) {
+				mainDataBits += granules[gr][ch].part23Length;
+			}
+		}
+		if (((long) mainDataStart << 3) + mainDataBits > (long) reservoirLength << 3) throw new InvalidDataException("Main data overruns the frame");
+
+		int sampleRateIndex = Layer3Tables.getSampleRateIndex(header);
+		int modeExtension = channelModeIndex == 1 ? (header >>> 4) & 0x3 : 0;
+		reader.init(reservoir, mainDataStart);
+		for (int gr = 0; gr < granuleCount; gr++) {
+			for (int ch = 0; ch < channelCount; ch++) {
+				Granule granule = granules[gr][ch];
+				int part2Start = reader.getPosition();
+				if (mpeg1) {
+					readScalefactors(ch, granule, gr);
+				} else {
+					readLsfScalefactors(ch, granule, ch == 1 && (modeExtension & 0x1) != 0);
+				}
+				int part23End = part2Start + granule.part23Length;
+				nonzero[ch] = decodeSpectrum(quantized[ch], granule, sampleRateIndex, part23End);
+				reader.setPosition(part23End);
+				requantize(ch, granule, sampleRateIndex, mpeg1);
+			}
+			if (modeExtension != 0) {
+				processStereo(granules[gr][1], sampleRateIndex, mpeg1, modeExtension);
+			}
+			for (int ch = 0; ch < channelCount; ch++) {
+				Granule granule = granules[gr][ch];
+				float[] xr = spectrum[ch];
+				int bound = nonzero[ch];
+				if (granule.blockType == 2) {
+					bound = reorder(xr, sampleRateIndex, granule.mixed, bound);
+				}
+				bound = antialias(xr, granule, bound);
+				hybrid(ch, granule, bound);
+				SynthesisFilter synthesisFilter = synthesisFilters[ch];
+				float[] channelOutput = output[ch];
+				for (int t = 0; t < SUBBAND_LENGTH; t++) {
+					synthesisFilter.synthesize(subbandSamples, 32 * t, channelOutput, gr * GRANULE_LENGTH + 32 * t);
+				}
+			}
+		}
+		return samples;
+	}
+
+	private int readSideInfo(boolean mpeg1, int granuleCount) throws InvalidDataException {
+		int mainDataBegin;
+		if (mpeg1) {
+			mainDataBegin = reader.readBits(9);
+			reader.skipBits(channelCount == 1 ? 5 : 3);
+			for (int ch = 0; ch < channelCount; ch++) {
+				for (int band = 0; band < 4; band++) {
+					scfsi[ch][band] = reader.readBit();
+				}
+			}
+		} else {
+			mainDataBegin = reader.readBits(8);
+			reader.skipBits(channelCount == 1 ? 1 : 2);
+		}
+		for (int gr = 0; gr < granuleCount; gr++) {
+			for (int ch = 0; ch < channelCount; ch++) {
+				Granule granule = granules[gr][ch];
+				granule.part23Length = reader.readBits(12);
+				granule.bigValues = Math.min(reader.readBits(9), GRANULE_LENGTH / 2);
+				granule.globalGain = reader.readBits(8);
+				granule.scalefacCompress = reader.readBits(mpeg1 ? 4 : 9);
+				granule.windowSwitching = reader.readBit() != 0;
+				if (granule.windowSwitching) {
+					granule.blockType = reader.readBits(2);
+					if (granule.blockType == 0) throw new InvalidDataException("Invalid block type");
+					granule.mixed = reader.readBit() != 0;
+					granule.tableSelect[0] = reader.readBits(5);
+					granule.tableSelect[1] = reader.readBits(5);
+					granule.tableSelect[2] = 0;
+					for (int window = 0; window < 3; window++) {
+						granule.subblockGain[window] = reader.readBits(3);
+					}
+					granule.region0Count = granule.blockType == 2 && !granule.mixed ? 8 : 7;
+					granule.region1Count = 20 - granule.region0Count;
+				} else {
+					granule.blockType = 0;
+					granule.mixed = false;
+					for (int region = 0; region < 3; region++) {
+						granule.tableSelect[region] = reader.readBits(5);
+					}
+					Arrays.fill(granule.subblockGain, 0);
+					granule.region0Count = reader.readBits(4);
+					granule.region1Count = reader.readBits(3);
+				}
+				granule.preflag = mpeg1 ? reader.readBit() : 0;
+				granule.scalefacScale = reader.readBit();
+				granule.count1Table = reader.readBit();
+			}
+		}
+		return mainDataBegin;
+	}
+
+	private void readScalefactors(int ch, Granule granule, int gr) {
+		int slen1 = Layer3Tables.SLEN1[granule.scalefacCompress];
+		int slen2 = Layer3Tables.SLEN2[granule.scalefacCompress];
+		int[] scalefacLong = this.scalefacLong[ch];
+		int[] scalefacShort = this.scalefacShort[ch];
+		if (granule.blockType == 2) {
+			int sfb = 0;
+			if (granule.mixed) {
+				for (; sfb < 8; sfb++) {
+					scalefacLong[sfb] = reader.readBits(slen1);
+				}
+				sfb = 3;
+			}
+			for (; sfb < 12; sfb++) {
+				int length = sfb < 6 ? slen1 : slen2;
+				for (int window = 0; window < 3; window++) {
+					scalefacShort[3 * sfb + window] = reader.readBits(length);
+				}
+			}
+			Arrays.fill(scalefacShort, 36, 39, 0);
+		} else {
+			// the four groups of bands whose scalefactors granule 1 can share with granule 0
+			for (int group = 0; group < 4; group++) {
+				int start = group == 0 ? 0 : 1 + 5 * group;
+				int end = 6 + 5 * group;
+				int length = group < 2 ? slen1 : slen2;
+				if (gr == 0 || scfsi[ch][group] == 0) {
+					for (int sfb = start; sfb < end; sfb++) {
+						scalefacLong[sfb] = reader.readBits(length);
+					}
+				}
+			}
+			scalefacLong[21] = 0;
+		}
+	}
+
+	private void readLsfScalefactors(int ch, Granule granule, boolean intensityRight) {
+		int scalefacCompress = granule.scalefacCompress;
+		int coding;
+		if (!intensityRight) {
+			if (scalefacCompress < 400) {
+				slen[0] = (scalefacCompress >>> 4) / 5;
+				slen[1] = (scalefacCompress >>> 4) % 5;
+				slen[2] = (scalefacCompress & 0xF) >>> 2;
+				slen[3] = scalefacCompress & 0x3;
+				coding = 0;
+			} else if (scalefacCompress < 500) {
+				scalefacCompress -= 400;
+				slen[0] = (scalefacCompress >>> 2) / 5;
+				slen[1] = (scalefacCompress >>> 2) % 5;
+				slen[2] = scalefacCompress & 0x3;
+				slen[3] = 0;
+				coding = 1;
+			} else {
+				scalefacCompress -= 500;
+				slen[0] = scalefacCompress / 3;
+				slen[1] = scalefacCompress % 3;
+				slen[2] = 0;
+				slen[3] = 0;
+				granule.preflag = 1;
+				coding = 2;
+			}
+		} else {
+			scalefacCompress >>>= 1;
+			if (scalefacCompress < 180) {
+				slen[0] = scalefacCompress / 36;
+				slen[1] = (scalefacCompress % 36) / 6;
+				slen[2] = scalefacCompress % 6;
+				coding = 3;
+			} else if (scalefacCompress < 244) {
+				scalefacCompress -= 180;
+				slen[0] = (scalefacCompress & 0x3F) >>> 4;
+				slen[1] = (scalefacCompress & 0xF) >>> 2;
+				slen[2] = scalefacCompress & 0x3;
+				coding = 4;
+			} else {
+				scalefacCompress -= 244;
+				slen[0] = scalefacCompress / 3;
+				slen[1] = scalefacCompress % 3;
+				slen[2] = 0;
+				coding = 5;
+			}
+			slen[3] = 0;
+		}
+		int blockIndex = granule.blockType != 2 ? 0 : granule.mixed ? 2 : 1;
+		int[] partitionLengths = Layer3Tables.PARTITION_LENGTHS[coding][blockIndex];
+		int count = 0;
+		for (int partition = 0; partition < 4; partition++) {
+			int length = slen[partition];
+			for (int i = 0; i < partitionLengths[partition]; i++) {
+				lsfScalefactors[count] = reader.readBits(length);
+				lsfLimits[count] = (1 << length) - 1;
+				count++;
+			}
+		}
+		int[] scalefacLong = this.scalefacLong[ch];
+		int[] scalefacShort = this.scalefacShort[ch];
+		if (blockIndex == 0) {
+			System.arraycopy(lsfScalefactors, 0, scalefacLong, 0, count);
+			Arrays.fill(scalefacLong, count, 22, 0);
+			if (intensityRight) {
+				System.arraycopy(lsfLimits, 0, intensityLimitLong, 0, count);
+				Arrays.fill(intensityLimitLong, count, 22, 0);
+			}
+		} else {
+			int longCount = blockIndex == 2 ? 6 : 0;
+			int shortStart = blockIndex == 2 ? 9 : 0;
+			System.arraycopy(lsfScalefactors, 0, scalefacLong, 0, longCount);
+			System.arraycopy(lsfScalefactors, longCount, scalefacShort, shortStart, count - longCount);
+			Arrays.fill(scalefacShort, shortStart + count - longCount, 39, 0);
+			if (intensityRight) {
+				System.arraycopy(lsfLimits, 0, intensityLimitLong, 0, longCount);
+				System.arraycopy(lsfLimits, longCount, intensityLimitShort, shortStart, count - longCount);
+				Arrays.fill(intensityLimitShort, shortStart + count - longCount, 39, 0);
+			}
+		}
+	}
+
+	/**
+	 * Huffman decodes the big values and count1 regions of a granule.
+	 *
+	 * @return the number of lines decoded, past which all lines are 0
+	 */
+	private int decodeSpectrum(int[] values, Granule granule, int sampleRateIndex, int part23End) {
+		int bigValuesEnd = granule.bigValues * 2;
+		int region1Start;
+		int region2Start;
+		if (granule.blockType == 2) {
+			region1Start = 3 * Layer3Tables.SHORT_BANDS[sampleRateIndex][3];
+			region2Start = GRANULE_LENGTH;
+		} else {
+			int[] longBands = Layer3Tables.LONG_BANDS[sampleRateIndex];
+			region1Start = longBands[Math.min(granule.region0Count + 1, 22)];
+			region2Start = longBands[Math.min(granule.region0Count + granule.region1Count + 2, 22)];
+		}
+		int line = decodePairs(values, 0, Math.min(region1Start, bigValuesEnd), granule.tableSelect[0]);
+		line = decodePairs(values, line, Math.min(region2Start, bigValuesEnd), granule.tableSelect[1]);
+		line = decodePairs(values, line, bigValuesEnd, granule.tableSelect[2]);
+
+		int[] count1Lookup = granule.count1Table == 0 ? HuffmanTables.COUNT1_LOOKUP_A : null;
+		boolean overrun = false;
+		while (line + 4 <= GRANULE_LENGTH && reader.getPosition() < part23End) {
+			int quad;
+			if (count1Lookup != null) {
+				int entry = count1Lookup[reader.peekBits(HuffmanTables.LOOKUP_BITS)];
+				reader.skipBits(entry >>> 8);
+				quad = entry & 0xF;
+			} else {
+				quad = 0xF - reader.readBits(4);
+			}
+			for (int i = 0; i < 4; i++) {
+				int value = (quad >>> (3 - i)) & 1;
+				if (value != 0 && reader.readBit() != 0) value = -1;
+				values[line + i] = value;
+			}
+			line += 4;
+			if (reader.getPosition() > part23End) {
+				// the last quadruple ran past the granule and is not part of it
+				overrun = true;
+				break;
+			}
+		}
+		if (overrun) line -= 4;
+		Arrays.fill(values, line, GRANULE_LENGTH, 0);
+		return line;
+	}
+
+	private int decodePairs(int[] values, int line, int end, int table) {
+		if (line >= end) return line;
+		int[] lookup = HuffmanTables.LOOKUPS[table];
+		if (lookup == null) {
+			Arrays.fill(values, line, end, 0);
+			return end;
+		}
+		int linbits = HuffmanTables.LINBITS[table];
+		BitReader reader = this.reader;
+		for (; line < end; line += 2) {
+			int entry = lookup[reader.peekBits(HuffmanTables.LOOKUP_BITS)];
+			if (entry < 0) {
+				reader.skipBits(HuffmanTables.LOOKUP_BITS);
+				int subtable = -entry;
+				entry = lookup[(subtable >>> 4) + reader.peekBits(subtable & 0xF)];
+				while (entry < 0) {
+					reader.skipBits(subtable & 0xF);
+					subtable = -entry;
+					entry = lookup[(subtable >>> 4) + reader.peekBits(subtable & 0xF)];
+				}
+			}
+			reader.skipBits(entry >>> 8);
+			int x = (entry >>> 4) & 0xF;
+			int y = entry & 0xF;
+			if (x == 15 && linbits != 0) x += reader.readBits(linbits);
+			if (x != 0 && reader.readBit() != 0) x = -x;
+			if (y == 15 && linbits != 0) y += reader.readBits(linbits);
+			if (y != 0 && reader.readBit() != 0) y = -y;
+			values[line] = x;
+			values[line + 1] = y;
+		}
+		return line;
+	}
+
+	private void requantize(int ch, Granule granule, int sampleRateIndex, boolean mpeg1) {
+		int[] values = quantized[ch];
+		float[] xr = spectrum[ch];
+		int end = nonzero[ch];
+		int gain = granule.globalGain - 210 + Layer3Tables.POW_2_OFFSET;
+		int shift = 1 + granule.scalefacScale;
+		int[] longBands = Layer3Tables.LONG_BANDS[sampleRateIndex];
+		int[] scalefacLong = this.scalefacLong[ch];
+		if (granule.blockType == 2) {
+			int[] shortBands = Layer3Tables.SHORT_BANDS[sampleRateIndex];
+			int sfb = 0;
+			if (granule.mixed) {
+				int longBandCount = mpeg1 ? 8 : 6;
+				for (int band = 0; band < longBandCount && longBands[band] < end; band++) {
+					requantizeLines(values, xr, longBands[band], Math.min(longBands[band + 1], end), gain - ((scalefacLong[band] + granule.preflag * Layer3Tables.PRETAB[band]) << shift));
+				}
+				sfb = 3;
+			}
+			int[] scalefacShort = this.scalefacShort[ch];
+			for (; sfb < 13 && 3 * shortBands[sfb] < end; sfb++) {
+				int width = shortBands[sfb + 1] - shortBands[sfb];
+				for (int window = 0; window < 3; window++) {
+					int start = 3 * shortBands[sfb] + window * width;
+					requantizeLines(values, xr, start, Math.min(start + width, end), gain - 8 * granule.subblockGain[window] - (scalefacShort[3 * sfb + window] << shift));
+				}
+			}
+		} else {
+			for (int sfb = 0; sfb < 22 && longBands[sfb] < end; sfb++) {
+				requantizeLines(values, xr, longBands[sfb], Math.min(longBands[sfb + 1], end), gain - ((scalefacLong[sfb] + granule.preflag * Layer3Tables.PRETAB[sfb]) << shift));
+			}
+		}
+		Arrays.fill(xr, end, GRANULE_LENGTH, 0.0f);
+	}
+
+	private static void requantizeLines(int[] values, float[] xr, int start, int end, int exponent) {
+		float scale = Layer3Tables.POW_2_QUARTER[Math.max(exponent, 0)];
+		float[] pow43 = Layer3Tables.POW_4_3;
+		for (int i = start; i < end; i++) {
+			int value = values[i];
+			xr[i] = value >= 0 ? pow43[value] * scale : -pow43[-value] * scale;
+		}
+	}
+
+	private void processStereo(Granule right, int sampleRateIndex, boolean mpeg1, int modeExtension) {
+		boolean midSide = (modeExtension & 0x2) != 0;
+		int bound = Math.max(nonzero[0], nonzero[1]);
+		if ((modeExtension & 0x1) == 0) {
+			midSide(0, bound);
+		} else {
+			int[] rightValues = quantized[1];
+			int[] longBands = Layer3Tables.LONG_BANDS[sampleRateIndex];
+			int intensityScale = right.scalefacCompress & 0x1;
+			if (right.blockType == 2) {
+				int[] shortBands = Layer3Tables.SHORT_BANDS[sampleRateIndex];
+				int shortStart = right.mixed ? 3 : 0;
+				boolean shortNonzero = false;
+				for (int window = 0; window < 3; window++) {
+					// intensity stereo covers the bands of each window above the last one the right channel codes
+					int intensityStart = shortStart;
+					for (int sfb = 12; sfb >= shortStart; sfb--) {
+						int width = shortBands[sfb + 1] - shortBands[sfb];
+						int start = 3 * shortBands[sfb] + window * width;
+						if (!isZero(rightValues, start, start + width)) {
+							intensityStart = sfb + 1;
+							shortNonzero = true;
+							break;
+						}
+					}
+					for (int sfb = shortStart; sfb < 13; sfb++) {
+						int width = shortBands[sfb + 1] - shortBands[sfb];
+						int start = 3 * shortBands[sfb] + window * width;
+						int index = 3 * Math.min(sfb, 11) + window;
+						if (sfb >= intensityStart) {
+							intensity(start, start + width, scalefacShort[1][index], mpeg1 ? 7 : intensityLimitShort[index], mpeg1, intensityScale, midSide);
+						} else if (midSide) {
+							midSide(start, start + width);
+						}
+					}
+				}
+				if (right.mixed) {
+					int longBandCount = mpeg1 ? 8 : 6;
+					int intensityStart = shortNonzero ? longBandCount : firstZeroBand(rightValues, longBands, longBandCount);
+					for (int sfb = 0; sfb < longBandCount; sfb++) {
+						if (sfb >= intensityStart) {
+							intensity(longBands[sfb], longBands[sfb + 1], scalefacLong[1][sfb], mpeg1 ? 7 : intensityLimitLong[sfb], mpeg1, intensityScale, midSide);
+						} else if (midSide) {
+							midSide(longBands[sfb], longBands[sfb + 1]);
+						}
+					}
+				}
+			} else {
+				int intensityStart = firstZeroBand(rightValues, longBands, 22);
+				for (int sfb = 0; sfb < 22 && longBands[sfb] < bound; sfb++) {
+					int index = Math.min(sfb, 20);
+					if (sfb >= intensityStart) {
+						intensity(longBands[sfb], longBands[sfb + 1], scalefacLong[1][index], mpeg1 ? 7 : intensityLimitLong[index], mpeg1, intensityScale, midSide);
+					} else if (midSide) {
+						midSide(longBands[sfb], longBands[sfb + 1]);
+					}
+				}
+			}
+		}
+		nonzero[0] = bound;
+		nonzero[1] = bound;
+	}
+
+	private static boolean isZero(int[] values, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (values[i] != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the first of count bands from which all values are 0
+	 */
+	private static int firstZeroBand(int[] values, int[] bands, int count) {
+		for (int sfb = count - 1; sfb >= 0; sfb--) {
+			if (!isZero(values, bands[sfb], bands[sfb + 1])) return sfb + 1;
+		}
+		return 0;
+	}
+
+	private void midSide(int start, int end) {
+		float[] left = spectrum[0];
+		float[] right = spectrum[1];
+		for (int i = start; i < end; i++) {
+			float mid = left[i];
+			float side = right[i];
+			left[i] = (mid + side) * SQRT_HALF;
+			right[i] = (mid - side) * SQRT_HALF;
+		}
+	}
+
+	/**
+	 * Derives both channels of the lines from start to end from the left channel, or applies
+	 * mid/side stereo to them if the position is the illegal one that turns intensity stereo off.
+	 */
+	private void intensity(int start, int end, int position, int illegalPosition, boolean mpeg1, int intensityScale, boolean midSide) {
+		if (mpeg1 ? position >= illegalPosition : position == illegalPosition) {
+			if (midSide) midSide(start, end);
+			return;
+		}
+		float leftFactor;
+		float rightFactor;
+		if (mpeg1) {
+			leftFactor = Layer3Tables.INTENSITY_LEFT[position];
+			rightFactor = Layer3Tables.INTENSITY_RIGHT[position];
+		} else if ((position & 1) != 0) {
+			leftFactor = Layer3Tables.LSF_INTENSITY[intensityScale][position];
+			rightFactor = 1.0f;
+		} else {
+			leftFactor = 1.0f;
+			rightFactor = Layer3Tables.LSF_INTENSITY[intensityScale][position];
+		}
+		float[] left = spectrum[0];
+		float[] right = spectrum[1];
+		for (int i = start; i < end; i++) {
+			float value = left[i];
+			left[i] = value * leftFactor;
+			right[i] = value * rightFactor;
+		}
+	}
+
+	/**
+	 * Reorders the short block lines from window order within each band to frequency order, so
+	 * that each subband holds its six lines of the three windows interleaved.
+	 *
+	 * @return the new bound past which all lines are 0
+	 */
+	private int reorder(float[] xr, int sampleRateIndex, boolean mixed, int bound) {
+		int[] shortBands = Layer3Tables.SHORT_BANDS[sampleRateIndex];
+		int sfb = mixed ? 3 : 0;
+		for (; sfb < 13 && 3 * shortBands[sfb] < bound; sfb++) {
+			int start = 3 * shortBands[sfb];
+			int width = shortBands[sfb + 1] - shortBands[sfb];
+			for (int window = 0; window < 3; window++) {
+				for (int i = 0; i < width; i++) {
+					reordered[start + 3 * i + window] = xr[start + window * width + i];
+				}
+			}
+			System.arraycopy(reordered, start, xr, start, 3 * width);
+		}
+		return Math.max(bound, 3 * shortBands[sfb]);
+	}
+
+	/**
+	 * @return the new bound past which all lines are 0
+	 */
+	private static int antialias(float[] xr, Granule granule, int bound) {
+		int subbandLimit;
+		if (granule.blockType == 2) {
+			if (!granule.mixed) return bound;
+			subbandLimit = 1;
+		} else {
+			subbandLimit = Math.min((bound + SUBBAND_LENGTH - 1) / SUBBAND_LENGTH, 31);
+		}
+		float[] cs = Layer3Tables.ANTIALIAS_CS;
+		float[] ca = Layer3Tables.ANTIALIAS_CA;
+		for (int sb = 1; sb <= subbandLimit; sb++) {
+			int boundary = sb * SUBBAND_LENGTH;
+			for (int i = 0; i < 8; i++) {
+				float lower = xr[boundary - 1 - i];
+				float upper = xr[boundary + i];
+				xr[boundary - 1 - i] = lower * cs[i] - upper * ca[i];
+				xr[boundary + i] = upper * cs[i] + lower * ca[i];
+			}
+		}
+		return Math.max(bound, Math.min((subbandLimit + 1) * SUBBAND_LENGTH, GRANULE_LENGTH));
+	}
+
+	/**
+	 * Runs the IMDCT of each subband, overlaps it with the previous granule and writes the
+	 * result to subbandSamples in time order, 32 subbands per time slot.
+	 */
+	private void hybrid(int ch, Granule granule, int bound) {
+		float[] xr = spectrum[ch];
+		float[] previous = overlap[ch];
+		float[] imdct = this.imdct;
+		int subbands = (bound + SUBBAND_LENGTH - 1) / SUBBAND_LENGTH;
+		for (int sb = 0; sb < 32; sb++) {
+			int start = sb * SUBBAND_LENGTH;
+			if (sb >= subbands) {
+				for (int t = 0; t < SUBBAND_LENGTH; t++) {
+					subbandSamples[32 * t + sb] = previous[start + t];
+				}
+				Arrays.fill(previous, start, start + SUBBAND_LENGTH, 0.0f);
+			} else {
+				int blockType = granule.mixed && sb < 2 ? 0 : granule.blockType;
+				if (blockType == 2) {
+					imdctShort(xr, start, imdct);
+				} else {
+					imdctLong(xr, start, Layer3Tables.IMDCT_WINDOWS[blockType], imdct);
+				}
+				for (int t = 0; t < SUBBAND_LENGTH; t++) {
+					subbandSamples[32 * t + sb] = imdct[t] + previous[start + t];
+					previous[start + t] = imdct[t + SUBBAND_LENGTH];
+				}
+			}
+			if ((sb & 1) != 0) {
+				// frequency inversion of the odd subbands
+				for (int t = 1; t < SUBBAND_LENGTH; t += 2) {
+					subbandSamples[32 * t + sb] = -subbandSamples[32 * t + sb];
+				}
+			}
+		}
+	}
+
+	private static void imdctLong(float[] xr, int start, float[] window, float[] out) {
+		float[][] cosines = Layer3Tables.IMDCT_LONG_COSINES;
+		for (int i = 0; i < 9; i++) {
+			float[] first = cosines[i];
+			float[] second = cosines[i + 9];
+			float a = 0.0f;
+			float b = 0.0f;
+			for (int k = 0; k < 18; k++) {
+				float value = xr[start + k];
+				a += value * first[k];
+				b += value * second[k];
+			}
+			out[i] = a * window[i];
+			out[17 - i] = -a * window[17 - i];
+			out[18 + i] = b * window[18 + i];
+			out[35 - i] = b * window[35 - i];
+		}
+	}
+
+	private static void imdctShort(float[] xr, int start, float[] out) {
+		float[][] cosines = Layer3Tables.IMDCT_SHORT_COSINES;
+		float[] window = Layer3Tables.IMDCT_WINDOWS[2];
+		Arrays.fill(out, 0.0f);
+		for (int w = 0; w < 3; w++) {
+			for (int i = 0; i < 12; i++) {
+				float[] row = cosines[i];
+				float sum = 0.0f;
+				for (int k = 0; k < 6; k++) {
+					sum += xr[start + 3 * k + w] * row[k];
+				}
+				out[6 + 6 * w + i] += sum * window[i];
+			}
+		}
+	}
+
+	/**
+	 * Side information of one channel in one granule.
+	 */
+	private static final class Granule {
+		int part23Length;
+		int bigValues;
+		int globalGain;
+		int scalefacCompress;
+		boolean windowSwitching;
+		int blockType;
+		boolean mixed;
+		final int[] tableSelect = new int[3];
+		final int[] subblockGain = new int[3];
+		int region0Count;
+		int region1Count;
+		int preflag;
+		int scalefacScale;
+		int count1Table;
+	}
+}
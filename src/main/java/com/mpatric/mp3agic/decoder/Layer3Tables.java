@@ -0,0 +1,231 @@
+package com.mpatric.mp3agic.decoder;
+
+/**
+ * Constant tables of ISO/IEC 11172-3 and 13818-3 for Layer III decoding. Tables that are
+ * defined by a formula are computed at class initialisation.
+ */
+final class Layer3Tables {
+	private Layer3Tables() {}
+
+	/**
+	 * Scalefactor band boundaries for long blocks, indexed by the sample rate index: 44100, 48000
+	 * and 32000 Hz for MPEG 1, 22050, 24000 and 16000 Hz for MPEG 2 and 11025, 12000 and 8000 Hz
+	 * for MPEG 2.5.
+	 */
+	static final int[][] LONG_BANDS = {
+			{0, 4, 8, 12, 16, 20, 24, 30, 36, 44, 52, 62, 74, 90, 110, 134, 162, 196, 238, 288, 342, 418, 576},
+			{0, 4, 8, 12, 16, 20, 24, 30, 36, 42, 50, 60, 72, 88, 106, 128, 156, 190, 230, 276, 330, 384, 576},
+			{0, 4, 8, 12, 16, 20, 24, 30, 36, 44, 54, 66, 82, 102, 126, 156, 194, 240, 296, 364, 448, 550, 576},
+			{0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168, 200, 238, 284, 336, 396, 464, 522, 576},
+			{0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 114, 136, 162, 194, 232, 278, 330, 394, 464, 540, 576},
+			{0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168, 200, 238, 284, 336, 396, 464, 522, 576},
+			{0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168, 200, 238, 284, 336, 396, 464, 522, 576},
+			{0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168, 200, 238, 284, 336, 396, 464, 522, 576},
+			{0, 12, 24, 36, 48, 60, 72, 88, 108, 132, 160, 192, 232, 280, 336, 400, 476, 566, 568, 570, 572, 574, 576}};
+
+	/**
+	 * Scalefactor band boundaries within one window of a short block, indexed like LONG_BANDS.
+	 */
+	static final int[][] SHORT_BANDS = {
+			{0, 4, 8, 12, 16, 22, 30, 40, 52, 66, 84, 106, 136, 192},
+			{0, 4, 8, 12, 16, 22, 28, 38, 50, 64, 80, 100, 126, 192},
+			{0, 4, 8, 12, 16, 22, 30, 42, 58, 78, 104, 138, 180, 192},
+			{0, 4, 8, 12, 18, 24, 32, 42, 56, 74, 100, 132, 174, 192},
+			{0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 136, 180, 192},
+			{0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 134, 174, 192},
+			{0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 134, 174, 192},
+			{0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 134, 174, 192},
+			{0, 8, 16, 24, 36, 52, 72, 96, 124, 160, 162, 164, 166, 192}};
+
+	static final int[] PRETAB = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 3, 3, 3, 2, 0};
+
+	/**
+	 * Bit lengths of the two groups of MPEG 1 scalefactors, indexed by scalefac_compress.
+	 */
+	static final int[] SLEN1 = {0, 0, 0, 0, 3, 1, 1, 1, 2, 2, 2, 3, 3, 3, 4, 4};
+	static final int[] SLEN2 = {0, 1, 2, 3, 0, 1, 2, 3, 1, 2, 3, 1, 2, 3, 2, 3};
+
+	/**
+	 * Number of MPEG 2 scalefactors in each of the four partitions, indexed by the six ways of
+	 * coding scalefac_compress and then by long, short and mixed blocks.
+	 */
+	static final int[][][] PARTITION_LENGTHS = {
+			{{6, 5, 5, 5}, {9, 9, 9, 9}, {6, 9, 9, 9}},
+			{{6, 5, 7, 3}, {9, 9, 12, 6}, {6, 9, 12, 6}},
+			{{11, 10, 0, 0}, {18, 18, 0, 0}, {15, 18, 0, 0}},
+			{{7, 7, 7, 0}, {12, 12, 12, 0}, {6, 15, 12, 0}},
+			{{6, 6, 6, 3}, {12, 9, 9, 6}, {6, 12, 9, 6}},
+			{{8, 8, 5, 0}, {15, 12, 9, 0}, {6, 18, 9, 0}}};
+
+	private static final float[] ANTIALIAS_COEFFICIENTS = {-0.6f, -0.535f, -0.33f, -0.185f, -0.095f, -0.041f, -0.0142f, -0.0037f};
+	static final float[] ANTIALIAS_CS = new float[8];
+	static final float[] ANTIALIAS_CA = new float[8];
+
+	/**
+	 * |x|^(4/3) for every value a Huffman table with linbits can produce.
+	 */
+	static final float[] POW_4_3 = new float[8207];
+
+	/**
+	 * 2^(q/4) for q from -POW_2_OFFSET up, the gain of a requantised band in quarter steps.
+	 */
+	static final int POW_2_OFFSET = 480;
+	static final float[] POW_2_QUARTER = new float[POW_2_OFFSET + 64];
+
+	/**
+	 * IMDCT windows for block types 0 to 3, of which type 2 uses the first 12 entries.
+	 */
+	static final float[][] IMDCT_WINDOWS = new float[4][36];
+
+	/**
+	 * Cosines of the 36 point IMDCT for outputs 0 to 8 and 18 to 26; the others follow by symmetry.
+	 */
+	static final float[][] IMDCT_LONG_COSINES = new float[18][18];
+
+	/**
+	 * Cosines of the 12 point IMDCT of a short block window.
+	 */
+	static final float[][] IMDCT_SHORT_COSINES = new float[12][6];
+
+	/**
+	 * Intensity stereo factors of the left and right channel for MPEG 1 is_pos 0 to 6.
+	 */
+	static final float[] INTENSITY_LEFT = new float[7];
+	static final float[] INTENSITY_RIGHT = new float[7];
+
+	/**
+	 * MPEG 2 intensity stereo scaling, io^((is_pos + 1) / 2) in [intensity_scale][is_pos].
+	 */
+	static final float[][] LSF_INTENSITY = new float[2][32];
+
+	/**
+	 * The synthesis window D[i] of table B.3.
+	 */
+	static final float[] SYNTHESIS_WINDOW = {
+			0.000000000f, -0.000015259f, -0.000015259f, -0.000015259f, -0.000015259f, -0.000015259f, -0.000015259f, -0.000030518f,
+			-0.000030518f, -0.000030518f, -0.000030518f, -0.000045776f, -0.000045776f, -0.000061035f, -0.000061035f, -0.000076294f,
+			-0.000076294f, -0.000091553f, -0.000106812f, -0.000106812f, -0.000122070f, -0.000137329f, -0.000152588f, -0.000167847f,
+			-0.000198364f, -0.000213623f, -0.000244141f, -0.000259399f, -0.000289917f, -0.000320435f, -0.000366211f, -0.000396729f,
+			-0.000442505f, -0.000473022f, -0.000534058f, -0.000579834f, -0.000625610f, -0.000686646f, -0.000747681f, -0.000808716f,
+			-0.000885010f, -0.000961304f, -0.001037598f, -0.001113892f, -0.001205444f, -0.001296997f, -0.001388550f, -0.001480103f,
+			-0.001586914f, -0.001693726f, -0.001785278f, -0.001907349f, -0.002014160f, -0.002120972f, -0.002243042f, -0.002349854f,
+			-0.002456665f, -0.002578735f, -0.002685547f, -0.002792358f, -0.002899170f, -0.002990723f, -0.003082275f, -0.003173828f,
+			0.003250122f, 0.003326416f, 0.003387451f, 0.003433228f, 0.003463745f, 0.003479004f, 0.003479004f, 0.003463745f,
+			0.003417969f, 0.003372192f, 0.003280640f, 0.003173828f, 0.003051758f, 0.002883911f, 0.002700806f, 0.002487183f,
+			0.002227783f, 0.001937866f, 0.001617432f, 0.001266479f, 0.000869751f, 0.000442505f, -0.000030518f, -0.000549316f,
+			-0.001098633f, -0.001693726f, -0.002334595f, -0.003005981f, -0.003723145f, -0.004486084f, -0.005294800f, -0.006118774f,
+			-0.007003784f, -0.007919312f, -0.008865356f, -0.009841919f, -0.010848999f, -0.011886597f, -0.012939453f, -0.014022827f,
+			-0.015121460f, -0.016235352f, -0.017349243f, -0.018463135f, -0.019577026f, -0.020690918f, -0.021789550f, -0.022857666f,
+			-0.023910522f, -0.024932861f, -0.025909424f, -0.026840210f, -0.027725220f, -0.028533936f, -0.029281616f, -0.029937744f,
+			-0.030532837f, -0.031005860f, -0.031387330f, -0.031661987f, -0.031814575f, -0.031845093f, -0.031738280f, -0.031478880f,
+			0.031082153f, 0.030517578f, 0.029785156f, 0.028884888f, 0.027801514f, 0.026535034f, 0.025085450f, 0.023422241f,
+			0.021575928f, 0.019531250f, 0.017257690f, 0.014801025f, 0.012115479f, 0.009231567f, 0.006134033f, 0.002822876f,
+			-0.000686646f, -0.004394531f, -0.008316040f, -0.012420654f, -0.016708374f, -0.021179200f, -0.025817871f, -0.030609130f,
+			-0.035552980f, -0.040634155f, -0.045837402f, -0.051132202f, -0.056533813f, -0.061996460f, -0.067520140f, -0.073059080f,
+			-0.078628540f, -0.084182740f, -0.089706420f, -0.095169070f, -0.100540160f, -0.105819700f, -0.110946655f, -0.115921020f,
+			-0.120697020f, -0.125259400f, -0.129562380f, -0.133590700f, -0.137298580f, -0.140670780f, -0.143676760f, -0.146255500f,
+			-0.148422240f, -0.150115970f, -0.151306150f, -0.151962280f, -0.152069090f, -0.151596070f, -0.150497440f, -0.148773200f,
+			-0.146362300f, -0.143264770f, -0.139450070f, -0.134887700f, -0.129577640f, -0.123474120f, -0.116577150f, -0.108856200f,
+			0.100311280f, 0.090927124f, 0.080688480f, 0.069595340f, 0.057617188f, 0.044784546f, 0.031082153f, 0.016510010f,
+			0.001068115f, -0.015228271f, -0.032379150f, -0.050354004f, -0.069168090f, -0.088775635f, -0.109161380f, -0.130310060f,
+			-0.152206420f, -0.174789430f, -0.198059080f, -0.221984860f, -0.246505740f, -0.271591200f, -0.297210700f, -0.323318480f,
+			-0.349868770f, -0.376800540f, -0.404083250f, -0.431655880f, -0.459472660f, -0.487472530f, -0.515609740f, -0.543823240f,
+			-0.572036740f, -0.600219700f, -0.628295900f, -0.656219500f, -0.683914200f, -0.711318970f, -0.738372800f, -0.765029900f,
+			-0.791214000f, -0.816864000f, -0.841949460f, -0.866363500f, -0.890090940f, -0.913055400f, -0.935195900f, -0.956481930f,
+			-0.976852400f, -0.996246340f, -1.014617900f, -1.031936600f, -1.048156700f, -1.063217200f, -1.077117900f, -1.089782700f,
+			-1.101211500f, -1.111373900f, -1.120224000f, -1.127746600f, -1.133926400f, -1.138763400f, -1.142211900f, -1.144287100f,
+			1.144989000f, 1.144287100f, 1.142211900f, 1.138763400f, 1.133926400f, 1.127746600f, 1.120224000f, 1.111373900f,
+			1.101211500f, 1.089782700f, 1.077117900f, 1.063217200f, 1.048156700f, 1.031936600f, 1.014617900f, 0.996246340f,
+			0.976852400f, 0.956481930f, 0.935195900f, 0.913055400f, 0.890090940f, 0.866363500f, 0.841949460f, 0.816864000f,
+			0.791214000f, 0.765029900f, 0.738372800f, 0.711318970f, 0.683914200f, 0.656219500f, 0.628295900f, 0.600219700f,
+			0.572036740f, 0.543823240f, 0.515609740f, 0.487472530f, 0.459472660f, 0.431655880f, 0.404083250f, 0.376800540f,
+			0.349868770f, 0.323318480f, 0.297210700f, 0.271591200f, 0.246505740f, 0.221984860f, 0.198059080f, 0.174789430f,
+			0.152206420f, 0.130310060f, 0.109161380f, 0.088775635f, 0.069168090f, 0.050354004f, 0.032379150f, 0.015228271f,
+			-0.001068115f, -0.016510010f, -0.031082153f, -0.044784546f, -0.057617188f, -0.069595340f, -0.080688480f, -0.090927124f,
+			0.100311280f, 0.108856200f, 0.116577150f, 0.123474120f, 0.129577640f, 0.134887700f, 0.139450070f, 0.143264770f,
+			0.146362300f, 0.148773200f, 0.150497440f, 0.151596070f, 0.152069090f, 0.151962280f, 0.151306150f, 0.150115970f,
+			0.148422240f, 0.146255500f, 0.143676760f, 0.140670780f, 0.137298580f, 0.133590700f, 0.129562380f, 0.125259400f,
+			0.120697020f, 0.115921020f, 0.110946655f, 0.105819700f, 0.100540160f, 0.095169070f, 0.089706420f, 0.084182740f,
+			0.078628540f, 0.073059080f, 0.067520140f, 0.061996460f, 0.056533813f, 0.051132202f, 0.045837402f, 0.040634155f,
+			0.035552980f, 0.030609130f, 0.025817871f, 0.021179200f, 0.016708374f, 0.012420654f, 0.008316040f, 0.004394531f,
+			0.000686646f, -0.002822876f, -0.006134033f, -0.009231567f, -0.012115479f, -0.014801025f, -0.017257690f, -0.019531250f,
+			-0.021575928f, -0.023422241f, -0.025085450f, -0.026535034f, -0.027801514f, -0.028884888f, -0.029785156f, -0.030517578f,
+			0.031082153f, 0.031478880f, 0.031738280f, 0.031845093f, 0.031814575f, 0.031661987f, 0.031387330f, 0.031005860f,
+			0.030532837f, 0.029937744f, 0.029281616f, 0.028533936f, 0.027725220f, 0.026840210f, 0.025909424f, 0.024932861f,
+			0.023910522f, 0.022857666f, 0.021789550f, 0.020690918f, 0.019577026f, 0.018463135f, 0.017349243f, 0.016235352f,
+			0.015121460f, 0.014022827f, 0.012939453f, 0.011886597f, 0.010848999f, 0.009841919f, 0.008865356f, 0.007919312f,
+			0.007003784f, 0.006118774f, 0.005294800f, 0.004486084f, 0.003723145f, 0.003005981f, 0.002334595f, 0.001693726f,
+			0.001098633f, 0.000549316f, 0.000030518f, -0.000442505f, -0.000869751f, -0.001266479f, -0.001617432f, -0.001937866f,
+			-0.002227783f, -0.002487183f, -0.002700806f, -0.002883911f, -0.003051758f, -0.003173828f, -0.003280640f, -0.003372192f,
+			-0.003417969f, -0.003463745f, -0.003479004f, -0.003479004f, -0.003463745f, -0.003433228f, -0.003387451f, -0.003326416f,
+			0.003250122f, 0.003173828f, 0.003082275f, 0.002990723f, 0.002899170f, 0.002792358f, 0.002685547f, 0.002578735f,
+			0.002456665f, 0.002349854f, 0.002243042f, 0.002120972f, 0.002014160f, 0.001907349f, 0.001785278f, 0.001693726f,
+			0.001586914f, 0.001480103f, 0.001388550f, 0.001296997f, 0.001205444f, 0.001113892f, 0.001037598f, 0.000961304f,
+			0.000885010f, 0.000808716f, 0.000747681f, 0.000686646f, 0.000625610f, 0.000579834f, 0.000534058f, 0.000473022f,
+			0.000442505f, 0.000396729f, 0.000366211f, 0.000320435f, 0.000289917f, 0.000259399f, 0.000244141f, 0.000213623f,
+			0.000198364f, 0.000167847f, 0.000152588f, 0.000137329f, 0.000122070f, 0.000106812f, 0.000106812f, 0.000091553f,
+			0.000076294f, 0.000076294f, 0.000061035f, 0.000061035f, 0.000045776f, 0.000045776f, 0.000030518f, 0.000030518f,
+			0.000030518f, 0.000030518f, 0.000015259f, 0.000015259f, 0.000015259f, 0.000015259f, 0.000015259f, 0.000015259f};
+
+	static {
+		for (int i = 0; i < 8; i++) {
+			double c = ANTIALIAS_COEFFICIENTS[i];
+			double sq = Math.sqrt(1.0 + c * c);
+			ANTIALIAS_CS[i] = (float) (1.0 / sq);
+			ANTIALIAS_CA[i] = (float) (c / sq);
+		}
+		for (int i = 0; i < POW_4_3.length; i++) {
+			POW_4_3[i] = (float) Math.pow(i, 4.0 / 3.0);
+		}
+		for (int i = 0; i < POW_2_QUARTER.length; i++) {
+			POW_2_QUARTER[i] = (float) Math.pow(2.0, (i - POW_2_OFFSET) / 4.0);
+		}
+		for (int i = 0; i < 36; i++) {
+			IMDCT_WINDOWS[0][i] = (float) Math.sin(Math.PI / 36 * (i + 0.5));
+		}
+		for (int i = 0; i < 18; i++) {
+			IMDCT_WINDOWS[1][i] = IMDCT_WINDOWS[0][i];
+			IMDCT_WINDOWS[3][i + 18] = IMDCT_WINDOWS[0][i + 18];
+		}
+		for (int i = 0; i < 6; i++) {
+			IMDCT_WINDOWS[1][i + 18] = 1.0f;
+			IMDCT_WINDOWS[1][i + 24] = (float) Math.sin(Math.PI / 12 * (i + 6.5));
+			IMDCT_WINDOWS[3][i + 6] = (float) Math.sin(Math.PI / 12 * (i + 0.5));
+			IMDCT_WINDOWS[3][i + 12] = 1.0f;
+		}
+		for (int i = 0; i < 12; i++) {
+			IMDCT_WINDOWS[2][i] = (float) Math.sin(Math.PI / 12 * (i + 0.5));
+		}
+		for (int i = 0; i < 9; i++) {
+			for (int k = 0; k < 18; k++) {
+				IMDCT_LONG_COSINES[i][k] = (float) Math.cos(Math.PI / 72 * (2 * i + 19) * (2 * k + 1));
+				IMDCT_LONG_COSINES[i + 9][k] = (float) Math.cos(Math.PI / 72 * (2 * (i + 18) + 19) * (2 * k + 1));
+			}
+		}
+		for (int i = 0; i < 12; i++) {
+			for (int k = 0; k < 6; k++) {
+				IMDCT_SHORT_COSINES[i][k] = (float) Math.cos(Math.PI / 24 * (2 * i + 7) * (2 * k + 1));
+			}
+		}
+		for (int i = 0; i < 6; i++) {
+			double ratio = Math.tan(i * Math.PI / 12);
+			INTENSITY_LEFT[i] = (float) (ratio / (1.0 + ratio));
+			INTENSITY_RIGHT[i] = (float) (1.0 / (1.0 + ratio));
+		}
+		INTENSITY_LEFT[6] = 1.0f;
+		INTENSITY_RIGHT[6] = 0.0f;
+		for (int i = 0; i < 32; i++) {
+			LSF_INTENSITY[0][i] = (float) Math.pow(2.0, -0.25 * ((i + 1) / 2));
+			LSF_INTENSITY[1][i] = (float) Math.pow(2.0, -0.5 * ((i + 1) / 2));
+		}
+	}
+
+	/**
+	 * @return the index of the header's sample rate into LONG_BANDS and SHORT_BANDS
+	 */
+	static int getSampleRateIndex(int header) {
+		int version = (header >>> 19) & 0x3;
+		int sampleRate = (header >>> 10) & 0x3;
+		return (version == 3 ? 0 : version == 2 ? 3 : 6) + sampleRate;
+	}
+}
@@ -0,0 +1,167 @@
+package com.mpatric.mp3agic.decoder;
+
+import com.mpatric.mp3agic.InvalidDataException;
+import com.mpatric.mp3agic.Mp3File;
+import com.mpatric.mp3agic.MpegFrame;
+import com.mpatric.mp3agic.MpegFrameHeader;
+import com.mpatric.mp3agic.MpegFrameIndex;
+import com.mpatric.mp3agic.NotSupportedException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Decodes the audio of a Layer III file frame by frame between a start and an end frame, using
+ * the byte offsets of the frame index that Mp3File builds with ScanOption.FRAME_INDEX. A seek
+ * decodes the frames that the target frame's bit reservoir and overlap depend on and discards
+ * their output, so the samples read from any frame are the same as those of a decode from the
+ * start of the file.
+ */
+public class Mp3PcmReader implements Closeable {
+
+	private static final int BUFFER_LENGTH = 65536;
+	// frames before a seek target that are decoded in full: the one whose overlap the target
+	// uses and the one before it, whose overlap the filterbank history of the first depends on
+	private static final int OVERLAP_FRAMES = 2;
+	private static final int MAXIMUM_FRAME_OVERHEAD = 4 + 2 + 32;
+
+	private final MpegFrameIndex frameIndex;
+	private final FileChannel channel;
+	private final long fileLength;
+	private final Layer3Decoder decoder = new Layer3Decoder();
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_LENGTH);
+	private final float[] discarded = new float[Layer3Decoder.MAXIMUM_CHANNELS * Layer3Decoder.MAXIMUM_SAMPLES_PER_FRAME];
+	private final int channelCount;
+	private long bufferOffset;
+	private int nextFrame;
+	private int endFrame;
+
+	/**
+	 * @param mp3File a file scanned with ScanOption.FRAME_INDEX
+	 */
+	public Mp3PcmReader(Mp3File mp3File) throws IOException, NotSupportedException {
+		frameIndex = mp3File.getFrameIndex();
+		if (frameIndex == null) throw new IllegalArgumentException("File was not scanned with a frame index");
+		if (!MpegFrame.MPEG_LAYER_3.equals(mp3File.getLayer())) throw new NotSupportedException("Only Layer III audio can be decoded");
+		channelCount = MpegFrame.CHANNEL_MODE_MONO.equals(mp3File.getChannelMode()) ? 1 : 2;
+		endFrame = frameIndex.getFrameCount();
+		channel = FileChannel.open(Paths.get(mp3File.getFilename()), StandardOpenOption.READ);
+		fileLength = channel.size();
+		buffer.limit(0);
+	}
+
+	public MpegFrameIndex getFrameIndex() {
+		return frameIndex;
+	}
+
+	public int getChannelCount() {
+		return channelCount;
+	}
+
+	public int getSampleRate() {
+		return frameIndex.getSampleRate();
+	}
+
+	public int getSamplesPerFrame() {
+		return frameIndex.getSamplesPerFrame();
+	}
+
+	/**
+	 * @return the frame that the next read decodes
+	 */
+	public int getFrame() {
+		return nextFrame;
+	}
+
+	public int getEndFrame() {
+		return endFrame;
+	}
+
+	/**
+	 * @param endFrame the frame at which reading stops, which is not itself read
+	 */
+	public void setEndFrame(int endFrame) {
+		if (endFrame < 0 || endFrame > frameIndex.getFrameCount()) throw new IllegalArgumentException("End frame out of range");
+		this.endFrame = endFrame;
+	}
+
+	/**
+	 * Positions the reader at the given frame, decoding the frames before it that it depends on.
+	 */
+	public void seekToFrame(int frame) throws IOException, InvalidDataException {
+		if (frame < 0 || frame > frameIndex.getFrameCount()) throw new IllegalArgumentException("Frame out of range");
+		decoder.reset();
+		int first = Math.max(frame - OVERLAP_FRAMES, 0);
+		// go back far enough for the first fully decoded frame's main data to be in the reservoir
+		long mainDataLength = 0;
+		while (first > 0 && mainDataLength < Layer3Decoder.MAXIMUM_MAIN_DATA_BEGIN) {
+			first--;
+			mainDataLength += frameIndex.getFrameOffset(first + 1) - frameIndex.getFrameOffset(first) - MAXIMUM_FRAME_OVERHEAD;
+		}
+		for (int preroll = first; preroll < frame; preroll++) {
+			decoder.decodeFrame(buffer, bufferFrame(preroll), discarded, 0);
+		}
+		nextFrame = frame;
+	}
+
+	/**
+	 * Positions the reader at the frame holding the given time, as seekToFrame() does.
+	 */
+	public void seekToTime(long milliseconds) throws IOException, InvalidDataException {
+		seekToFrame(frameIndex.getFrameForTime(milliseconds));
+	}
+
+	/**
+	 * Decodes the next frame into pcm, interleaving the channels of stereo audio.
+	 *
+	 * @param pcm receives getSamplesPerFrame() samples per channel, scaled to -1.0 to 1.0
+	 * @return the number of samples per channel written, or -1 at the end frame
+	 */
+	public int readFrame(float[] pcm, int pcmOffset) throws IOException, InvalidDataException {
+		if (nextFrame >= endFrame) return -1;
+		int samples = decoder.decodeFrame(buffer, bufferFrame(nextFrame), pcm, pcmOffset);
+		nextFrame++;
+		return samples;
+	}
+
+	/**
+	 * Decodes the next frame into pcm as signed 16-bit samples, interleaving the channels of
+	 * stereo audio.
+	 *
+	 * @return the number of samples per channel written, or -1 at the end frame
+	 */
+	public int readFrame(short[] pcm, int pcmOffset) throws IOException, InvalidDataException {
+		if (nextFrame >= endFrame) return -1;
+		int samples = decoder.decodeFrame(buffer, bufferFrame(nextFrame), pcm, pcmOffset);
+		nextFrame++;
+		return samples;
+	}
+
+	/**
+	 * Makes sure the buffer holds the frame, reading ahead from it if not.
+	 *
+	 * @return the offset of the frame within the buffer
+	 */
+	private int bufferFrame(int frame) throws IOException {
+		long offset = frameIndex.getFrameOffset(frame);
+		long bufferEnd = bufferOffset + buffer.limit();
+		if (offset < bufferOffset || (offset + MpegFrameHeader.MAXIMUM_FRAME_LENGTH > bufferEnd && bufferEnd < fileLength)) {
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, offset + buffer.position()) < 0) break;
+			}
+			buffer.flip();
+			bufferOffset = offset;
+		}
+		return (int) (offset - bufferOffset);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
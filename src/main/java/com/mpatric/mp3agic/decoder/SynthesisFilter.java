@@ -0,0 +1,92 @@
+package com.mpatric.mp3agic.decoder;
+
+import java.util.Arrays;
+
+/**
+ * The polyphase synthesis filterbank of ISO/IEC 11172-3 section 2.4.3.2.2, turning 32 subband
+ * samples into 32 PCM samples for one channel. The matrixing is done with a 32 point DCT-II
+ * split recursively into halves (Lee's algorithm), and the vector V is kept in a ring of 1024
+ * entries rather than shifted.
+ */
+final class SynthesisFilter {
+
+	private static final float[] WINDOW = Layer3Tables.SYNTHESIS_WINDOW;
+
+	// INVERSE_COSINES[n] holds 1 / (2 cos((2k + 1) pi / 2n)) for a DCT of length n
+	private static final float[][] INVERSE_COSINES = new float[33][];
+
+	static {
+		for (int n = 2; n <= 32; n *= 2) {
+			INVERSE_COSINES[n] = new float[n / 2];
+			for (int k = 0; k < n / 2; k++) {
+				INVERSE_COSINES[n][k] = (float) (0.5 / Math.cos((2 * k + 1) * Math.PI / (2 * n)));
+			}
+		}
+	}
+
+	private final float[] v = new float[1024];
+	private final float[] dct = new float[32];
+	private final float[] scratch = new float[32];
+	private int offset;
+
+	void reset() {
+		Arrays.fill(v, 0.0f);
+		offset = 0;
+	}
+
+	/**
+	 * @param samples 32 subband samples starting at samplesOffset
+	 * @param pcm receives 32 PCM samples starting at pcmOffset
+	 */
+	void synthesize(float[] samples, int samplesOffset, float[] pcm, int pcmOffset) {
+		System.arraycopy(samples, samplesOffset, dct, 0, 32);
+		dct(dct, 0, 32, scratch);
+		offset = (offset - 64) & 1023;
+		float[] v = this.v;
+		int o = offset;
+		for (int i = 0; i < 16; i++) {
+			v[o + i] = dct[i + 16];
+		}
+		v[o + 16] = 0.0f;
+		for (int i = 17; i < 48; i++) {
+			v[o + i] = -dct[48 - i];
+		}
+		v[o + 48] = -dct[0];
+		for (int i = 49; i < 64; i++) {
+			v[o + i] = -dct[i - 48];
+		}
+		Arrays.fill(pcm, pcmOffset, pcmOffset + 32, 0.0f);
+		for (int i = 0; i < 8; i++) {
+			int first = (o + 128 * i) & 1023;
+			int second = (o + 128 * i + 96) & 1023;
+			int window = 64 * i;
+			for (int j = 0; j < 32; j++) {
+				pcm[pcmOffset + j] += v[first + j] * WINDOW[window + j] + v[second + j] * WINDOW[window + 32 + j];
+			}
+		}
+	}
+
+	/**
+	 * Computes the unscaled DCT-II of the n values at offset in place, using the same range of
+	 * scratch as working space.
+	 */
+	private static void dct(float[] values, int offset, int n, float[] scratch) {
+		if (n == 1) return;
+		int half = n / 2;
+		float[] inverseCosines = INVERSE_COSINES[n];
+		for (int k = 0; k < half; k++) {
+			float a = values[offset + k];
+			float b = values[offset + n - 1 - k];
+			scratch[offset + k] = a + b;
+			scratch[offset + half + k] = (a - b) * inverseCosines[k];
+		}
+		dct(scratch, offset, half, values);
+		dct(scratch, offset + half, half, values);
+		for (int i = 0; i < half - 1; i++) {
+			values[offset + 2 * i] = scratch[offset + i];
+			values[offset + 2 * i + 1] = scratch[offset + half + i] + scratch[offset + half + i + 1];
+		}
+		values[offset + n - 2] = scratch[offset + half - 1];
+		values[offset + n - 1] = scratch[offset + n - 1];
+	}
+}
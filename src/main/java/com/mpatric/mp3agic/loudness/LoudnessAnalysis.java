@@ -0,0 +1,132 @@
+package com.mpatric.mp3agic.loudness;
+
+import com.mpatric.mp3agic.ID3v2;
+
+import java.util.Locale;
+
+/**
+ * The loudness of a track, and its ReplayGain 2.0 form: a gain that brings the track to
+ * REFERENCE_LOUDNESS and the peak that the gain must not push past full scale. writeTo() stores
+ * it in user-defined text (TXXX) frames under the descriptions that ReplayGain players read,
+ * together with the audio hash the measurement was made on, so a later sweep can tell that the
+ * audio has not changed since.
+ */
+public class LoudnessAnalysis {
+
+	/**
+	 * The target loudness of ReplayGain 2.0 in LUFS.
+	 */
+	public static final double REFERENCE_LOUDNESS = -18.0;
+
+	public static final String TRACK_GAIN = "REPLAYGAIN_TRACK_GAIN";
+	public static final String TRACK_PEAK = "REPLAYGAIN_TRACK_PEAK";
+	public static final String TRACK_RANGE = "REPLAYGAIN_TRACK_RANGE";
+	public static final String REFERENCE = "REPLAYGAIN_REFERENCE_LOUDNESS";
+	public static final String AUDIO_HASH = "MP3AGIC_AUDIO_HASH";
+
+	private final double integratedLoudness;
+	private final double loudnessRange;
+	private final double truePeak;
+	private final String audioHash;
+
+	/**
+	 * @param integratedLoudness in LUFS, or negative infinity for a silent track
+	 * @param loudnessRange in LU
+	 * @param truePeak where 1.0 is full scale
+	 * @param audioHash the Mp3File.getAudioHash() of the measured audio, or null
+	 */
+	public LoudnessAnalysis(double integratedLoudness, double loudnessRange, double truePeak, String audioHash) {
+		this.integratedLoudness = integratedLoudness;
+		this.loudnessRange = loudnessRange;
+		this.truePeak = truePeak;
+		this.audioHash = audioHash;
+	}
+
+	public double getIntegratedLoudness() {
+		return integratedLoudness;
+	}
+
+	public double getLoudnessRange() {
+		return loudnessRange;
+	}
+
+	public double getTruePeak() {
+		return truePeak;
+	}
+
+	/**
+	 * @return the true peak in dB relative to full scale (dBTP)
+	 */
+	public double getTruePeakDecibels() {
+		return 20.0 * Math.log10(truePeak);
+	}
+
+	/**
+	 * @return the gain in dB that brings the track to REFERENCE_LOUDNESS, or 0 for a silent track
+	 */
+	public double getTrackGain() {
+		if (Double.isInfinite(integratedLoudness)) return 0;
+		return REFERENCE_LOUDNESS - integratedLoudness;
+	}
+
+	public String getAudioHash() {
+		return audioHash;
+	}
+
+	/**
+	 * Replaces the ReplayGain frames of the tag with this analysis.
+	 */
+	public void writeTo(ID3v2 tag) {
+		tag.setUserText(TRACK_GAIN, String.format(Locale.ROOT, "%.2f dB", getTrackGain()));
+		tag.setUserText(TRACK_PEAK, String.format(Locale.ROOT, "%.6f", truePeak));
+		tag.setUserText(TRACK_RANGE, String.format(Locale.ROOT, "%.2f dB", loudnessRange));
+		tag.setUserText(REFERENCE, String.format(Locale.ROOT, "%.2f LUFS", REFERENCE_LOUDNESS));
+		tag.setUserText(AUDIO_HASH, audioHash);
+	}
+
+	/**
+	 * Reads the ReplayGain frames of a tag, whether written by writeTo() or by another program.
+	 * The reference loudness is only used if it is in LUFS. ReplayGain 1 programs store a sound
+	 * pressure level such as "89.0 dB" there instead, and their gains are taken as relative to
+	 * REFERENCE_LOUDNESS, which ReplayGain 2.0 defines as equivalent.
+	 *
+	 * @return the analysis, with NaN for the values the tag does not hold, or null if the tag has
+	 * no usable track gain
+	 */
+	public static LoudnessAnalysis readFrom(ID3v2 tag) {
+		double gain = parseValue(tag.getUserText(TRACK_GAIN));
+		if (Double.isNaN(gain)) return null;
+		double reference = parseReference(tag.getUserText(REFERENCE));
+		return new LoudnessAnalysis(reference - gain, parseValue(tag.getUserText(TRACK_RANGE)), parseValue(tag.getUserText(TRACK_PEAK)), tag.getUserText(AUDIO_HASH));
+	}
+
+	/**
+	 * @return the reference loudness if the value is given in LUFS (or LKFS), or has no unit and
+	 * lies where a loudness in LUFS can, otherwise REFERENCE_LOUDNESS
+	 */
+	private static double parseReference(String value) {
+		double reference = parseValue(value);
+		if (Double.isNaN(reference) || reference < LoudnessMeter.ABSOLUTE_GATE || reference > 0) return REFERENCE_LOUDNESS;
+		String unit = value.trim();
+		int end = 0;
+		while (end < unit.length() && "+-.0123456789".indexOf(unit.charAt(end)) >= 0) end++;
+		unit = unit.substring(end).trim();
+		if (unit.isEmpty() || unit.equalsIgnoreCase("LUFS") || unit.equalsIgnoreCase("LKFS")) return reference;
+		return REFERENCE_LOUDNESS;
+	}
+
+	/**
+	 * @return the number at the start of a value such as "-6.54 dB", or NaN
+	 */
+	private static double parseValue(String value) {
+		if (value == null) return Double.NaN;
+		String number = value.trim();
+		int end = 0;
+		while (end < number.length() && "+-.0123456789".indexOf(number.charAt(end)) >= 0) end++;
+		try {
+			return Double.parseDouble(number.substring(0, end));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package com.mpatric.mp3agic.loudness;
+
+import com.mpatric.mp3agic.InvalidDataException;
+import com.mpatric.mp3agic.decoder.Mp3PcmReader;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Measures loudness as ITU-R BS.1770-4 and EBU R 128 define it: the audio is K-weighted, its
+ * mean square is taken over 400 ms blocks for the gated integrated loudness and over 3 s blocks
+ * for the loudness range of EBU Tech 3342, and the true peak is found by 4x oversampling. Both
+ * kinds of block advance in 100 ms steps, so only the mean square of each 100 ms step is kept
+ * while the audio streams through. A meter holds its working arrays across reset() calls, so
+ * one meter per thread can measure any number of tracks.
+ */
+public class LoudnessMeter {
+
+	/**
+	 * The loudness in LUFS below which blocks are ignored.
+	 */
+	public static final double ABSOLUTE_GATE = -70.0;
+
+	private static final double RELATIVE_GATE = -10.0;
+	private static final double RANGE_RELATIVE_GATE = -20.0;
+	private static final double RANGE_LOW_PERCENTILE = 0.10;
+	private static final double RANGE_HIGH_PERCENTILE = 0.95;
+	private static final double LOUDNESS_OFFSET = -0.691;
+	private static final int STEPS_PER_SECOND = 10;
+	private static final int STEPS_PER_BLOCK = 4;
+	private static final int STEPS_PER_SHORT_TERM_BLOCK = 30;
+	private static final int INITIAL_CAPACITY = 4096;
+
+	// the interpolation filter of BS.1770-4 Annex 2, one row of 12 taps for each of the 4 phases
+	private static final double[][] OVERSAMPLING_PHASES = {
+			{0.0017089843750, 0.0109863281250, -0.0196533203125, 0.0332031250000, -0.0594482421875, 0.1373291015625,
+					0.9721679687500, -0.1022949218750, 0.0476074218750, -0.0266113281250, 0.0148925781250, -0.0083007812500},
+			{-0.0291748046875, 0.0292968750000, -0.0517578125000, 0.0891113281250, -0.1665039062500, 0.4650878906250,
+					0.7797851562500, -0.2003173828125, 0.1015625000000, -0.0582275390625, 0.0330810546875, -0.0189208984375},
+			{-0.0189208984375, 0.0330810546875, -0.0582275390625, 0.1015625000000, -0.2003173828125, 0.7797851562500,
+					0.4650878906250, -0.1665039062500, 0.0891113281250, -0.0517578125000, 0.0292968750000, -0.0291748046875},
+			{-0.0083007812500, 0.0148925781250, -0.0266113281250, 0.0476074218750, -0.1022949218750, 0.9721679687500,
+					0.1373291015625, -0.0594482421875, 0.0332031250000, -0.0196533203125, 0.0109863281250, 0.0017089843750}
+	};
+	private static final int OVERSAMPLING_TAPS = 12;
+	// the largest factor by which any phase can scale the samples it sees
+	private static final double OVERSAMPLING_GAIN;
+
+	static {
+		double gain = 0;
+		for (double[] phase : OVERSAMPLING_PHASES) {
+			double sum = 0;
+			for (double tap : phase) sum += Math.abs(tap);
+			gain = Math.max(gain, sum);
+		}
+		OVERSAMPLING_GAIN = gain;
+	}
+
+	private int sampleRate;
+	private int channelCount;
+	// the two K-weighting biquads, a high shelf and a high pass, as b0, b1, b2, a1, a2
+	private final double[] shelf = new double[5];
+	private final double[] highPass = new double[5];
+	// per channel: the two delay elements of each biquad
+	private double[][] filterStates = new double[0][];
+	// per channel: a ring of the last OVERSAMPLING_TAPS samples, each written at historyPosition
+	// and again OVERSAMPLING_TAPS further on, so that the taps always read a contiguous run
+	private double[][] histories = new double[0][];
+	private int historyPosition;
+	// per channel: the number of samples since the last that could take the true peak higher
+	private int[] quietSamples = new int[0];
+	private double truePeak;
+	private double samplePeak;
+
+	private long samplesDone;
+	private long stepEnd;
+	private int stepSamples;
+	private double stepSum;
+	// the sums of squares and lengths of the last STEPS_PER_SHORT_TERM_BLOCK steps
+	private final double[] stepSums = new double[STEPS_PER_SHORT_TERM_BLOCK];
+	private final int[] stepLengths = new int[STEPS_PER_SHORT_TERM_BLOCK];
+	private int stepCount;
+
+	private double[] blockEnergies = new double[INITIAL_CAPACITY];
+	private int blockCount;
+	private double[] shortTermEnergies = new double[INITIAL_CAPACITY];
+	private int shortTermCount;
+
+	public LoudnessMeter() {
+	}
+
+	/**
+	 * Clears the meter for a new track.
+	 */
+	public void reset(int sampleRate, int channelCount) {
+		if (sampleRate <= 0) throw new IllegalArgumentException("Invalid sample rate");
+		if (channelCount < 1) throw new IllegalArgumentException("Channel count must be at least 1");
+		if (sampleRate != this.sampleRate) {
+			designFilters(sampleRate);
+			this.sampleRate = sampleRate;
+		}
+		if (channelCount != this.channelCount) {
+			filterStates = new double[channelCount][4];
+			histories = new double[channelCount][2 * OVERSAMPLING_TAPS];
+			quietSamples = new int[channelCount];
+			this.channelCount = channelCount;
+		} else {
+			for (int channel = 0; channel < channelCount; channel++) {
+				Arrays.fill(filterStates[channel], 0.0);
+				Arrays.fill(histories[channel], 0.0);
+			}
+			Arrays.fill(quietSamples, 0);
+		}
+		historyPosition = 0;
+		truePeak = 0;
+		samplePeak = 0;
+		samplesDone = 0;
+		stepEnd = stepEnd(1);
+		stepSamples = 0;
+		stepSum = 0;
+		stepCount = 0;
+		blockCount = 0;
+		shortTermCount = 0;
+	}
+
+	/**
+	 * Computes the K-weighting coefficients for the sample rate by the bilinear transform of the
+	 * analogue prototypes behind the 48 kHz coefficients given in BS.1770.
+	 */
+	private void designFilters(int sampleRate) {
+		double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+		double q = 0.7071752369554196;
+		double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1.0 + k / q + k * k;
+		shelf[0] = (vh + vb * k / q + k * k) / a0;
+		shelf[1] = 2.0 * (k * k - vh) / a0;
+		shelf[2] = (vh - vb * k / q + k * k) / a0;
+		shelf[3] = 2.0 * (k * k - 1.0) / a0;
+		shelf[4] = (1.0 - k / q + k * k) / a0;
+		k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+		q = 0.5003270373238773;
+		a0 = 1.0 + k / q + k * k;
+		highPass[0] = 1.0;
+		highPass[1] = -2.0;
+		highPass[2] = 1.0;
+		highPass[3] = 2.0 * (k * k - 1.0) / a0;
+		highPass[4] = (1.0 - k / q + k * k) / a0;
+	}
+
+	/**
+	 * @param pcm sampleCount samples per channel starting at offset, with the channels interleaved
+	 */
+	public void process(float[] pcm, int offset, int sampleCount) {
+		if (channelCount == 0) throw new IllegalStateException("Meter has not been reset");
+		int index = offset;
+		for (int sample = 0; sample < sampleCount; sample++) {
+			double sum = 0;
+			for (int channel = 0; channel < channelCount; channel++) {
+				double x = pcm[index++];
+				measurePeak(channel, x);
+				sum += weight(filterStates[channel], x);
+			}
+			historyPosition = historyPosition == OVERSAMPLING_TAPS - 1 ? 0 : historyPosition + 1;
+			stepSum += sum;
+			stepSamples++;
+			if (++samplesDone == stepEnd) {
+				endStep();
+			}
+		}
+	}
+
+	/**
+	 * Measures all the frames of the reader from its current frame to its end frame, after
+	 * resetting the meter to the reader's format.
+	 *
+	 * @param pcm a buffer for at least one decoded frame
+	 */
+	public void process(Mp3PcmReader reader, float[] pcm) throws IOException, InvalidDataException {
+		reset(reader.getSampleRate(), reader.getChannelCount());
+		int sampleCount;
+		while ((sampleCount = reader.readFrame(pcm, 0)) >= 0) {
+			process(pcm, 0, sampleCount);
+		}
+	}
+
+	/**
+	 * @return the square of the K-weighted sample
+	 */
+	private double weight(double[] state, double x) {
+		// transposed direct form II, so each biquad keeps two values of state
+		double y = shelf[0] * x + state[0];
+		state[0] = shelf[1] * x - shelf[3] * y + state[1];
+		state[1] = shelf[2] * x - shelf[4] * y;
+		double z = y + state[2];
+		state[2] = -2.0 * y - highPass[3] * z + state[3];
+		state[3] = y - highPass[4] * z;
+		return z * z;
+	}
+
+	private void measurePeak(int channel, double x) {
+		double[] history = histories[channel];
+		history[historyPosition] = x;
+		history[historyPosition + OVERSAMPLING_TAPS] = x;
+		double magnitude = Math.abs(x);
+		if (magnitude > samplePeak) samplePeak = magnitude;
+		// the filter cannot exceed the true peak while all the samples it sees are small enough,
+		// which holds for most samples once the peak of a loud track has been found
+		if (magnitude * OVERSAMPLING_GAIN > truePeak) {
+			quietSamples[channel] = 0;
+		} else if (++quietSamples[channel] >= OVERSAMPLING_TAPS) {
+			return;
+		}
+		int newest = historyPosition + OVERSAMPLING_TAPS;
+		for (double[] phase : OVERSAMPLING_PHASES) {
+			double y = 0;
+			for (int tap = 0; tap < OVERSAMPLING_TAPS; tap++) {
+				y += phase[tap] * history[newest - tap];
+			}
+			magnitude = Math.abs(y);
+			if (magnitude > truePeak) truePeak = magnitude;
+		}
+	}
+
+	private long stepEnd(long step) {
+		// steps of a tenth of a second are a fractional number of samples at 11025 Hz
+		return step * sampleRate / STEPS_PER_SECOND;
+	}
+
+	private void endStep() {
+		int slot = stepCount % STEPS_PER_SHORT_TERM_BLOCK;
+		stepSums[slot] = stepSum;
+		stepLengths[slot] = stepSamples;
+		stepCount++;
+		stepSum = 0;
+		stepSamples = 0;
+		stepEnd = stepEnd(stepCount + 1);
+		if (stepCount >= STEPS_PER_BLOCK) {
+			blockEnergies = add(blockEnergies, blockCount++, energy(STEPS_PER_BLOCK));
+		}
+		if (stepCount >= STEPS_PER_SHORT_TERM_BLOCK) {
+			shortTermEnergies = add(shortTermEnergies, shortTermCount++, energy(STEPS_PER_SHORT_TERM_BLOCK));
+		}
+	}
+
+	/**
+	 * @return the mean square, summed over the channels, of the last steps steps
+	 */
+	private double energy(int steps) {
+		double sum = 0;
+		long length = 0;
+		for (int step = stepCount - steps; step < stepCount; step++) {
+			int slot = step % STEPS_PER_SHORT_TERM_BLOCK;
+			sum += stepSums[slot];
+			length += stepLengths[slot];
+		}
+		return sum / length;
+	}
+
+	private static double[] add(double[] values, int count, double value) {
+		if (count == values.length) {
+			values = Arrays.copyOf(values, values.length * 2);
+		}
+		values[count] = value;
+		return values;
+	}
+
+	private static double loudness(double energy) {
+		return LOUDNESS_OFFSET + 10.0 * Math.log10(energy);
+	}
+
+	private static double energy(double loudness) {
+		return Math.pow(10.0, (loudness - LOUDNESS_OFFSET) / 10.0);
+	}
+
+	/**
+	 * @return the mean of the energies above the gate, or 0 if there are none
+	 */
+	private static double gatedMean(double[] energies, int count, double gate) {
+		double sum = 0;
+		int gated = 0;
+		for (int i = 0; i < count; i++) {
+			if (energies[i] > gate) {
+				sum += energies[i];
+				gated++;
+			}
+		}
+		return gated == 0 ? 0 : sum / gated;
+	}
+
+	/**
+	 * @return the gated loudness in LUFS of the audio processed since the last reset, or negative
+	 * infinity if no block is louder than ABSOLUTE_GATE
+	 */
+	public double getIntegratedLoudness() {
+		double absoluteGate = energy(ABSOLUTE_GATE);
+		double mean = gatedMean(blockEnergies, blockCount, absoluteGate);
+		if (mean == 0) return Double.NEGATIVE_INFINITY;
+		double relativeGate = Math.max(energy(loudness(mean) + RELATIVE_GATE), absoluteGate);
+		return loudness(gatedMean(blockEnergies, blockCount, relativeGate));
+	}
+
+	/**
+	 * @return the loudness range in LU, the spread between the 10th and 95th percentiles of the
+	 * gated 3 s loudness, or 0 for audio shorter than 3 s
+	 */
+	public double getLoudnessRange() {
+		double absoluteGate = energy(ABSOLUTE_GATE);
+		double mean = gatedMean(shortTermEnergies, shortTermCount, absoluteGate);
+		if (mean == 0) return 0;
+		double relativeGate = Math.max(energy(loudness(mean) + RANGE_RELATIVE_GATE), absoluteGate);
+		double[] gated = new double[shortTermCount];
+		int count = 0;
+		for (int i = 0; i < shortTermCount; i++) {
+			if (shortTermEnergies[i] > relativeGate) gated[count++] = shortTermEnergies[i];
+		}
+		Arrays.sort(gated, 0, count);
+		double low = gated[(int) Math.round((count - 1) * RANGE_LOW_PERCENTILE)];
+		double high = gated[(int) Math.round((count - 1) * RANGE_HIGH_PERCENTILE)];
+		return loudness(high) - loudness(low);
+	}
+
+	/**
+	 * @return the largest magnitude of the 4x oversampled audio, or of the samples themselves if
+	 * that is larger, where 1.0 is full scale
+	 */
+	public double getTruePeak() {
+		return Math.max(truePeak, samplePeak);
+	}
+
+	/**
+	 * @return the largest magnitude of the samples, where 1.0 is full scale
+	 */
+	public double getSamplePeak() {
+		return samplePeak;
+	}
+}
@@ -0,0 +1,222 @@
+package com.mpatric.mp3agic.loudness;
+
+import com.mpatric.mp3agic.BaseException;
+import com.mpatric.mp3agic.ID3v24Tag;
+import com.mpatric.mp3agic.ID3v2;
+import com.mpatric.mp3agic.Mp3File;
+import com.mpatric.mp3agic.ScanMode;
+import com.mpatric.mp3agic.ScanOption;
+import com.mpatric.mp3agic.decoder.Layer3Decoder;
+import com.mpatric.mp3agic.decoder.Mp3PcmReader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the loudness of many files on a fixed number of worker threads and writes the results
+ * as ReplayGain frames, saving each file as BatchTagger does. Every worker keeps one decode
+ * buffer and one LoudnessMeter for all its files. A file whose tag already holds an analysis
+ * made on the same audio hash is not decoded again, so re-tagging a file does not make the next
+ * sweep measure it. Decoding is bound by the processor rather than the storage, so by default
+ * there is one thread per processor.
+ */
+public class LoudnessScanner {
+
+	private final int threadCount;
+	private boolean writeTags = true;
+	private boolean allowInPlace = false;
+
+	public LoudnessScanner() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public LoudnessScanner(int threadCount) {
+		if (threadCount < 1) throw new IllegalArgumentException("Thread count must be at least 1");
+		this.threadCount = threadCount;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	public boolean isWriteTags() {
+		return writeTags;
+	}
+
+	/**
+	 * @param writeTags false to only measure the files, leaving them unchanged
+	 */
+	public void setWriteTags(boolean writeTags) {
+		this.writeTags = writeTags;
+	}
+
+	public boolean isAllowInPlace() {
+		return allowInPlace;
+	}
+
+	/**
+	 * @param allowInPlace true to let tags that fit their old space be overwritten in place, see
+	 * BatchTagger.setAllowInPlace()
+	 */
+	public void setAllowInPlace(boolean allowInPlace) {
+		this.allowInPlace = allowInPlace;
+	}
+
+	/**
+	 * Measures the files and waits for all of them. A file that fails does not stop the others. If
+	 * the calling thread is interrupted, the workers are interrupted too, no further files are
+	 * started and InterruptedException is thrown.
+	 */
+	public Report run(List<Path> paths) throws InterruptedException {
+		Result[] results = new Result[paths.size()];
+		AtomicInteger nextPath = new AtomicInteger();
+		long startTime = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, Math.max(paths.size(), 1)));
+		try {
+			for (int i = 0; i < threadCount && i < paths.size(); i++) {
+				executor.execute(() -> {
+					float[] pcm = new float[Layer3Decoder.MAXIMUM_CHANNELS * Layer3Decoder.MAXIMUM_SAMPLES_PER_FRAME];
+					LoudnessMeter meter = new LoudnessMeter();
+					int index;
+					while (!Thread.currentThread().isInterrupted() && (index = nextPath.getAndIncrement()) < paths.size()) {
+						results[index] = scanFile(paths.get(index), pcm, meter);
+					}
+				});
+			}
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			throw e;
+		}
+		return new Report(Arrays.asList(results), System.nanoTime() - startTime);
+	}
+
+	private Result scanFile(Path path, float[] pcm, LoudnessMeter meter) {
+		long startTime = System.nanoTime();
+		try {
+			// the audio hash walks every frame anyway, and the frame index is what the reader seeks with
+			Mp3File mp3File = new Mp3File(path, ScanMode.MAPPED, ScanOption.FRAME_INDEX, ScanOption.AUDIO_HASH);
+			if (mp3File.hasId3v2Tag()) {
+				LoudnessAnalysis previous = LoudnessAnalysis.readFrom(mp3File.getId3v2Tag());
+				if (previous != null && mp3File.getAudioHash().equals(previous.getAudioHash())) {
+					return new Result(path, previous, true, null, System.nanoTime() - startTime);
+				}
+			}
+			try (Mp3PcmReader reader = new Mp3PcmReader(mp3File)) {
+				meter.process(reader, pcm);
+			}
+			LoudnessAnalysis analysis = new LoudnessAnalysis(meter.getIntegratedLoudness(), meter.getLoudnessRange(), meter.getTruePeak(), mp3File.getAudioHash());
+			if (writeTags) {
+				if (!mp3File.hasId3v2Tag()) mp3File.setId3v2Tag(new ID3v24Tag());
+				ID3v2 tag = mp3File.getId3v2Tag();
+				analysis.writeTo(tag);
+				mp3File.save(allowInPlace);
+			}
+			return new Result(path, analysis, false, null, System.nanoTime() - startTime);
+		} catch (IOException | BaseException | RuntimeException e) {
+			return new Result(path, null, false, e, System.nanoTime() - startTime);
+		}
+	}
+
+	public static class Result {
+		private final Path path;
+		private final LoudnessAnalysis analysis;
+		private final boolean skipped;
+		private final Exception exception;
+		private final long durationNanos;
+
+		Result(Path path, LoudnessAnalysis analysis, boolean skipped, Exception exception, long durationNanos) {
+			this.path = path;
+			this.analysis = analysis;
+			this.skipped = skipped;
+			this.exception = exception;
+			this.durationNanos = durationNanos;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public boolean isSuccess() {
+			return exception == null;
+		}
+
+		/**
+		 * @return the analysis, read from the tag if the file was skipped, or null if the file failed
+		 */
+		public LoudnessAnalysis getAnalysis() {
+			return analysis;
+		}
+
+		/**
+		 * @return true if the tag already held an analysis of the same audio
+		 */
+		public boolean isSkipped() {
+			return skipped;
+		}
+
+		/**
+		 * @return the exception that made the file fail, or null; the file is then left unchanged
+		 */
+		public Exception getException() {
+			return exception;
+		}
+
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+	}
+
+	public static class Report {
+		private final List<Result> results;
+		private final long elapsedNanos;
+		private int successCount;
+		private int skippedCount;
+
+		Report(List<Result> results, long elapsedNanos) {
+			this.results = Collections.unmodifiableList(new ArrayList<>(results));
+			this.elapsedNanos = elapsedNanos;
+			for (Result result : results) {
+				if (result == null || !result.isSuccess()) continue;
+				successCount++;
+				if (result.isSkipped()) skippedCount++;
+			}
+		}
+
+		/**
+		 * @return one result per path, in path order
+		 */
+		public List<Result> getResults() {
+			return results;
+		}
+
+		public int getSuccessCount() {
+			return successCount;
+		}
+
+		/**
+		 * @return the number of successful files that were not decoded because their audio was unchanged
+		 */
+		public int getSkippedCount() {
+			return skippedCount;
+		}
+
+		public int getFailureCount() {
+			return results.size() - successCount;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.mpatric.mp3agic.loudness;
+
+import com.mpatric.mp3agic.FileWrapper;
+
+/**
+ * The part of a track between its leading and trailing silence, as sample offsets into the
+ * decoded audio. Sample 0 is the first sample of the first audio frame, the same origin as
+ * Mp3File.getEncoderDelay() uses, so the bounds can be combined with the gapless trim.
+ */
+public class SilenceBounds {
+
+	private final long startSample;
+	private final long endSample;
+	private final long sampleCount;
+	private final int sampleRate;
+	private final long sourceLength;
+	private final long sourceLastModified;
+
+	SilenceBounds(long startSample, long endSample, long sampleCount, int sampleRate, long sourceLength, long sourceLastModified) {
+		this.startSample = startSample;
+		this.endSample = endSample;
+		this.sampleCount = sampleCount;
+		this.sampleRate = sampleRate;
+		this.sourceLength = sourceLength;
+		this.sourceLastModified = sourceLastModified;
+	}
+
+	/**
+	 * @return the first sample that is not silent
+	 */
+	public long getStartSample() {
+		return startSample;
+	}
+
+	/**
+	 * @return the sample after the last one that is not silent
+	 */
+	public long getEndSample() {
+		return endSample;
+	}
+
+	/**
+	 * @return the number of samples the frames decode to, silence included
+	 */
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public long getStartTimeInMilliseconds() {
+		return startSample * 1000 / sampleRate;
+	}
+
+	public long getEndTimeInMilliseconds() {
+		return (endSample * 1000 + sampleRate - 1) / sampleRate;
+	}
+
+	/**
+	 * @return true if the track has silence to trim at either end
+	 */
+	public boolean hasSilence() {
+		return startSample > 0 || endSample < sampleCount;
+	}
+
+	/**
+	 * @return true if the bounds were found in a file with the given length and modification time
+	 */
+	public boolean isCurrent(FileWrapper file) {
+		return file.getLength() == sourceLength && file.getLastModified() == sourceLastModified;
+	}
+}
@@ -0,0 +1,181 @@
+package com.mpatric.mp3agic.loudness;
+
+import com.mpatric.mp3agic.BaseException;
+import com.mpatric.mp3agic.FileWrapper;
+import com.mpatric.mp3agic.LoudnessEnvelope;
+import com.mpatric.mp3agic.Mp3File;
+import com.mpatric.mp3agic.MpegFrame;
+import com.mpatric.mp3agic.ScanMode;
+import com.mpatric.mp3agic.ScanOption;
+import com.mpatric.mp3agic.decoder.Layer3Decoder;
+import com.mpatric.mp3agic.decoder.Mp3PcmReader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the leading and trailing silence of tracks and caches the result per file. The loudness
+ * envelope that the scan collects narrows each end down to a granule without decoding anything.
+ * Its estimates can be several dB off, so it is read against a lower threshold than the one
+ * asked for, which errs towards keeping audio. If the file was also scanned with a frame index,
+ * the frames at each end are then decoded to find the exact sample where the audio rises above
+ * the threshold. A cached result is used for as long as the file keeps its length and
+ * modification time.
+ */
+public class SilenceDetector {
+
+	/**
+	 * The default level in dBFS that a sample must exceed to count as audio.
+	 */
+	public static final float DEFAULT_THRESHOLD = -60.0f;
+
+	// how far below the threshold the envelope is read, allowing for the error of its estimates
+	private static final float ENVELOPE_MARGIN = 12.0f;
+	// the frames decoded at a time when searching back from the end for the last sample of audio
+	private static final int END_SEARCH_FRAMES = 32;
+
+	private final Map<Path, SilenceBounds> cache = new ConcurrentHashMap<>();
+	private volatile float threshold = DEFAULT_THRESHOLD;
+
+	public float getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets the level in dBFS that a sample must exceed to count as audio, and clears the cache.
+	 */
+	public void setThreshold(float threshold) {
+		if (!(threshold < 0)) throw new IllegalArgumentException("Threshold must be below 0 dBFS");
+		this.threshold = threshold;
+		cache.clear();
+	}
+
+	/**
+	 * Returns the cached bounds of the file, or scans the file and finds them if they are not
+	 * cached or the file has changed.
+	 */
+	public SilenceBounds detect(Path path) throws IOException, BaseException {
+		SilenceBounds bounds = cache.get(path.toAbsolutePath());
+		if (bounds != null && bounds.isCurrent(new FileWrapper(path))) {
+			return bounds;
+		}
+		return detect(new Mp3File(path, ScanMode.MAPPED, ScanOption.LOUDNESS_ENVELOPE, ScanOption.FRAME_INDEX));
+	}
+
+	/**
+	 * Returns the cached bounds of the file if they are current, or finds them and caches them.
+	 *
+	 * @param mp3File a file scanned with ScanOption.LOUDNESS_ENVELOPE, and with
+	 * ScanOption.FRAME_INDEX for sample-accurate bounds
+	 */
+	public SilenceBounds detect(Mp3File mp3File) throws IOException, BaseException {
+		LoudnessEnvelope envelope = mp3File.getLoudnessEnvelope();
+		if (envelope == null) throw new IllegalArgumentException("File was not scanned with a loudness envelope");
+		Path path = Paths.get(mp3File.getFilename()).toAbsolutePath();
+		SilenceBounds bounds = cache.get(path);
+		if (bounds != null && bounds.isCurrent(mp3File)) {
+			return bounds;
+		}
+		bounds = findBounds(mp3File, envelope, threshold);
+		cache.put(path, bounds);
+		return bounds;
+	}
+
+	/**
+	 * @return the cached bounds of the file, whether or not they are current, or null
+	 */
+	public SilenceBounds getCached(Path path) {
+		return cache.get(path.toAbsolutePath());
+	}
+
+	public void clearCache() {
+		cache.clear();
+	}
+
+	private static SilenceBounds findBounds(Mp3File mp3File, LoudnessEnvelope envelope, float threshold) throws IOException, BaseException {
+		long sampleCount = (long) mp3File.getFrameCount() * mp3File.getSamplesPerFrame();
+		int granuleCount = envelope.getGranuleCount();
+		float envelopeThreshold = threshold - ENVELOPE_MARGIN;
+		int first = 0;
+		while (first < granuleCount && envelope.getLevel(first) <= envelopeThreshold) first++;
+		int last = granuleCount - 1;
+		while (last >= first && envelope.getLevel(last) <= envelopeThreshold) last--;
+		if (first > last) {
+			// nothing is loud enough to be sure of, so nothing is trimmed
+			return createBounds(mp3File, 0, sampleCount, sampleCount);
+		}
+		// the overlap of the transform and the delay of the synthesis filterbank spread a granule
+		// over its own output and that of the next two
+		long start = (long) first * LoudnessEnvelope.SAMPLES_PER_GRANULE;
+		long end = Math.min((long) (last + 3) * LoudnessEnvelope.SAMPLES_PER_GRANULE, sampleCount);
+		if (mp3File.getFrameIndex() != null && MpegFrame.MPEG_LAYER_3.equals(mp3File.getLayer())) {
+			try (Mp3PcmReader reader = new Mp3PcmReader(mp3File)) {
+				float amplitude = (float) Math.pow(10.0, threshold / 20.0);
+				long refinedStart = findFirstSample(reader, start, amplitude);
+				if (refinedStart < 0) {
+					return createBounds(mp3File, 0, sampleCount, sampleCount);
+				}
+				start = refinedStart;
+				end = findEndSample(reader, start, end, amplitude);
+			}
+		}
+		return createBounds(mp3File, start, end, sampleCount);
+	}
+
+	/**
+	 * @return the first sample at or after the frame holding fromSample that exceeds the
+	 * amplitude, or -1 if there is none
+	 */
+	private static long findFirstSample(Mp3PcmReader reader, long fromSample, float amplitude) throws IOException, BaseException {
+		int samplesPerFrame = reader.getSamplesPerFrame();
+		int channelCount = reader.getChannelCount();
+		float[] pcm = new float[Layer3Decoder.MAXIMUM_CHANNELS * Layer3Decoder.MAXIMUM_SAMPLES_PER_FRAME];
+		int frame = (int) (fromSample / samplesPerFrame);
+		reader.seekToFrame(frame);
+		int sampleCount;
+		while ((sampleCount = reader.readFrame(pcm, 0)) >= 0) {
+			for (int i = 0; i < sampleCount * channelCount; i++) {
+				if (Math.abs(pcm[i]) > amplitude) return (long) frame * samplesPerFrame + i / channelCount;
+			}
+			frame++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Searches back from toSample in runs of END_SEARCH_FRAMES frames.
+	 *
+	 * @return the sample after the last one before toSample that exceeds the amplitude, which is
+	 * after startSample since startSample exceeds it
+	 */
+	private static long findEndSample(Mp3PcmReader reader, long startSample, long toSample, float amplitude) throws IOException, BaseException {
+		int samplesPerFrame = reader.getSamplesPerFrame();
+		int channelCount = reader.getChannelCount();
+		float[] pcm = new float[Layer3Decoder.MAXIMUM_CHANNELS * Layer3Decoder.MAXIMUM_SAMPLES_PER_FRAME];
+		int startFrame = (int) (startSample / samplesPerFrame);
+		int endFrame = (int) ((toSample + samplesPerFrame - 1) / samplesPerFrame);
+		while (endFrame > startFrame) {
+			int frame = Math.max(endFrame - END_SEARCH_FRAMES, startFrame);
+			reader.seekToFrame(frame);
+			reader.setEndFrame(endFrame);
+			long endSample = -1;
+			int sampleCount;
+			while ((sampleCount = reader.readFrame(pcm, 0)) >= 0) {
+				for (int i = 0; i < sampleCount * channelCount; i++) {
+					if (Math.abs(pcm[i]) > amplitude) endSample = (long) frame * samplesPerFrame + i / channelCount + 1;
+				}
+				frame++;
+			}
+			if (endSample >= 0) return endSample;
+			endFrame -= END_SEARCH_FRAMES;
+		}
+		return startSample + 1;
+	}
+
+	private static SilenceBounds createBounds(Mp3File mp3File, long startSample, long endSample, long sampleCount) {
+		return new SilenceBounds(startSample, endSample, sampleCount, mp3File.getSampleRate(), mp3File.getLength(), mp3File.getLastModified());
+	}
+}
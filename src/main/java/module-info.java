@@ -3,6 +3,7 @@ module music.project {
     requires javafx.fxml;
     requires javafx.web;
     requires javafx.media; // Add this line to require javafx.media module
+    requires jdk.jfr;
 
     requires org.controlsfx.controls;
     requires com.dlsc.formsfx;
@@ -2,8 +2,11 @@ package music.project;
 
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.Slider;
@@ -11,22 +14,56 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
+import javafx.scene.paint.Color;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import com.mpatric.mp3agic.ID3v2;
+import com.mpatric.mp3agic.LoudnessEnvelope;
 import com.mpatric.mp3agic.Mp3File;
+import com.mpatric.mp3agic.ScanMode;
+import com.mpatric.mp3agic.ScanOption;
+import com.mpatric.mp3agic.loudness.LoudnessAnalysis;
+import com.mpatric.mp3agic.loudness.LoudnessScanner;
+import com.mpatric.mp3agic.loudness.SilenceBounds;
+import com.mpatric.mp3agic.loudness.SilenceDetector;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MPlayer2 extends Application {
+    // samples of delay added by an mp3 decoder on top of the encoder delay
+    private static final int DECODER_DELAY = 529;
+    // one bar of the seek bar waveform every 2 pixels
+    private static final int WAVEFORM_BUCKETS = 150;
+    // levels this far below the loudest bar are drawn as empty
+    private static final float WAVEFORM_RANGE = 48.0f;
+    // MediaPlayer can only turn the volume down, so every track is lowered by this much more than
+    // its ReplayGain to leave room for quiet tracks to be raised relative to loud ones
+    private static final double REPLAYGAIN_PREAMP = -6.0;
+
     private final String songsFolderPath = "songs";
     private Map<File, Metadata> metadata = new HashMap<>();
+    private final SilenceDetector silenceDetector = new SilenceDetector();
+    // reads the waveforms and finds the silence of the playing and the queued song, which need a
+    // walk of every frame, so that the FX thread never waits on a scan
+    private final ExecutorService analysisExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "track-analysis");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<File> analysedSongs = new HashSet<>();
     private List<File> songQueue = new ArrayList<>();
     private int currentSongIndex = -1;
     private MediaPlayer mediaPlayer;
+    private MediaPlayer nextMediaPlayer;
+    private File nextSongFile;
     private ImageView albumCoverView;
     private Label titleLabel;
     private Label artistLabel;
@@ -34,6 +71,7 @@ public class MPlayer2 extends Application {
     private Button nextButton;
     private Button prevButton;
     private Slider seekSlider;
+    private Canvas waveformCanvas;
 
     public MPlayer2() {
     }
@@ -110,6 +148,11 @@ public class MPlayer2 extends Application {
         seekSlider.setOnMousePressed(e -> seekMedia());
         seekSlider.setOnMouseDragged(e -> seekMedia());
 
+        // the waveform is drawn behind the slider, which stays on top to take the mouse
+        waveformCanvas = new Canvas(300, 40);
+        StackPane seekPane = new StackPane(waveformCanvas, seekSlider);
+        seekPane.setMaxWidth(300);
+
         HBox controlButtonsBox = new HBox(20);
         controlButtonsBox.setAlignment(javafx.geometry.Pos.CENTER);
         playPauseButton = new Button();
@@ -127,7 +170,7 @@ public class MPlayer2 extends Application {
         prevButton.setPrefSize(60, 60);
         prevButton.setOnAction(e -> playPreviousSong());
 
-        bottomControls.getChildren().addAll(titleLabel, artistLabel, seekSlider, controlButtonsBox);
+        bottomControls.getChildren().addAll(titleLabel, artistLabel, seekPane, controlButtonsBox);
         return bottomControls;
     }
 
@@ -158,6 +201,7 @@ public class MPlayer2 extends Application {
                 }
                 Collections.sort(songQueue, Comparator.comparing(File::getName));
                 playNextSong();
+                analyseLoudness();
             }
         }
     }
@@ -167,11 +211,6 @@ public class MPlayer2 extends Application {
             currentSongIndex = (currentSongIndex + 1) % songQueue.size();
             updateSongInfo();
             playSong(songQueue.get(currentSongIndex));
-
-            mediaPlayer.setOnEndOfMedia(() -> {
-                mediaPlayer.stop();
-                playNextSong();
-            });
         } else {
             stopPlayback();
         }
@@ -188,25 +227,126 @@ public class MPlayer2 extends Application {
     private void playSong(File songFile) {
         if (mediaPlayer != null) {
             mediaPlayer.stop();
+            mediaPlayer.dispose();
         }
 
-        Media media = new Media(songFile.toURI().toString());
-        mediaPlayer = new MediaPlayer(media);
+        // the next song's player is created while this one plays, so it is ready the moment this one ends
+        if (nextMediaPlayer != null && songFile.equals(nextSongFile)) {
+            mediaPlayer = nextMediaPlayer;
+        } else {
+            if (nextMediaPlayer != null) {
+                nextMediaPlayer.dispose();
+            }
+            mediaPlayer = createMediaPlayer(songFile);
+        }
+        nextMediaPlayer = null;
+        nextSongFile = null;
 
-        mediaPlayer.setOnReady(() -> {
-            seekSlider.setMax(mediaPlayer.getTotalDuration().toSeconds());
-            mediaPlayer.play();
-            playPauseButton.getStyleClass().remove("play-button");
-            playPauseButton.getStyleClass().add("pause-button");
-        });
+        MediaPlayer player = mediaPlayer;
+        player.setOnEndOfMedia(this::playNextSong);
+        if (player.getStatus() == MediaPlayer.Status.READY) {
+            startPlayer(player);
+        } else {
+            player.setOnReady(() -> startPlayer(player));
+        }
 
-        mediaPlayer.currentTimeProperty().addListener((observable, oldValue, newValue) -> {
+        player.currentTimeProperty().addListener((observable, oldValue, newValue) -> {
             if (!seekSlider.isValueChanging()) {
                 seekSlider.setValue(newValue.toSeconds());
             }
         });
     }
 
+    private void startPlayer(MediaPlayer player) {
+        seekSlider.setMax(player.getTotalDuration().toSeconds());
+        player.play();
+        playPauseButton.getStyleClass().remove("play-button");
+        playPauseButton.getStyleClass().add("pause-button");
+
+        nextSongFile = songQueue.get((currentSongIndex + 1) % songQueue.size());
+        nextMediaPlayer = createMediaPlayer(nextSongFile);
+        analyseTrack(nextSongFile);
+    }
+
+    private MediaPlayer createMediaPlayer(File songFile) {
+        MediaPlayer player = new MediaPlayer(new Media(songFile.toURI().toString()));
+        Metadata metadata = this.metadata.get(songFile);
+        // a song that has not been analysed yet is trimmed once analyseTrack() finds its silence
+        setPlayRange(player, metadata, silenceDetector.getCached(songFile.toPath()));
+        player.setVolume(getVolume(metadata));
+        return player;
+    }
+
+    private void setPlayRange(MediaPlayer player, Metadata metadata, SilenceBounds silence) {
+        // skip the encoder delay and padding so that gapless albums play without silence between tracks
+        Duration startTime = metadata != null ? metadata.getStartTime() : null;
+        Duration stopTime = metadata != null ? metadata.getStopTime() : null;
+        // and skip the silence at either end to cut the dead air between tracks
+        if (silence != null && silence.hasSilence()) {
+            Duration silenceStart = Duration.millis(silence.getStartTimeInMilliseconds());
+            Duration silenceStop = Duration.millis(silence.getEndTimeInMilliseconds());
+            startTime = startTime == null || silenceStart.greaterThan(startTime) ? silenceStart : startTime;
+            stopTime = stopTime == null || silenceStop.lessThan(stopTime) ? silenceStop : stopTime;
+        }
+        if (startTime != null) {
+            player.setStartTime(startTime);
+        }
+        if (stopTime != null) {
+            player.setStopTime(stopTime);
+        }
+    }
+
+    private double getVolume(Metadata metadata) {
+        // a track that has not been measured yet is played as if it were at the reference loudness,
+        // so it gets the preamp too; played at full volume it would be 6 dB louder than a measured
+        // track at the reference, and would drop by that much when its measurement arrived
+        double gain = metadata != null && !Double.isNaN(metadata.getTrackGain()) ? metadata.getTrackGain() : 0;
+        return Math.min(1.0, Math.pow(10.0, (gain + REPLAYGAIN_PREAMP) / 20.0));
+    }
+
+    private void analyseLoudness() {
+        List<Path> unmeasured = new ArrayList<>();
+        for (File file : songQueue) {
+            Metadata metadata = this.metadata.get(file);
+            if (metadata != null && Double.isNaN(metadata.getTrackGain())) {
+                unmeasured.add(file.toPath());
+            }
+        }
+        if (unmeasured.isEmpty()) {
+            return;
+        }
+        // decoding takes about a second a track, so it runs behind playback; the results are saved
+        // as ReplayGain tags, which updateMetadata() reads on the next start instead of measuring again
+        Thread thread = new Thread(() -> {
+            LoudnessScanner scanner = new LoudnessScanner(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+            try {
+                LoudnessScanner.Report report = scanner.run(unmeasured);
+                Platform.runLater(() -> applyLoudness(report));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "loudness-scan");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void applyLoudness(LoudnessScanner.Report report) {
+        for (LoudnessScanner.Result result : report.getResults()) {
+            Metadata metadata = this.metadata.get(result.getPath().toFile());
+            if (metadata != null && result.isSuccess()) {
+                metadata.setTrackGain(result.getAnalysis().getTrackGain());
+            } else if (!result.isSuccess()) {
+                System.err.println("Could not measure the loudness of " + result.getPath().getFileName() + ": " + result.getException().getMessage());
+            }
+        }
+        if (mediaPlayer != null) {
+            mediaPlayer.setVolume(getVolume(this.metadata.get(songQueue.get(currentSongIndex))));
+        }
+        if (nextMediaPlayer != null) {
+            nextMediaPlayer.setVolume(getVolume(this.metadata.get(nextSongFile)));
+        }
+    }
+
     private void stopPlayback() {
         if (mediaPlayer != null) {
             mediaPlayer.stop();
@@ -228,17 +368,101 @@ public class MPlayer2 extends Application {
             if (metadata != null) {
                 titleLabel.setText(metadata.getTitle());
                 artistLabel.setText(metadata.getArtist());
+                drawWaveform(metadata.getWaveform());
+                analyseTrack(currentSong);
             }
         }
     }
 
+    private void analyseTrack(File songFile) {
+        if (!songFile.getName().endsWith(".mp3") || !analysedSongs.add(songFile)) {
+            return;
+        }
+        analysisExecutor.execute(() -> {
+            float[] waveform = null;
+            SilenceBounds silence = null;
+            try {
+                // one walk gives both the waveform and the envelope the silence detector starts from
+                Mp3File mp3 = new Mp3File(songFile, ScanMode.MAPPED, ScanOption.LOUDNESS_ENVELOPE, ScanOption.FRAME_INDEX);
+                if (mp3.getLoudnessEnvelope().getGranuleCount() > 0) {
+                    waveform = mp3.getLoudnessEnvelope().getBuckets(WAVEFORM_BUCKETS);
+                }
+                try {
+                    silence = silenceDetector.detect(mp3);
+                } catch (Exception e) {
+                    // the song is then played untrimmed
+                    System.err.println("Could not detect the silence of " + songFile.getName() + ": " + e.getMessage());
+                }
+            } catch (Exception e) {
+                System.err.println("Could not read the waveform of " + songFile.getName() + ": " + e.getMessage());
+            }
+            float[] loadedWaveform = waveform;
+            SilenceBounds loadedSilence = silence;
+            Platform.runLater(() -> applyAnalysis(songFile, loadedWaveform, loadedSilence));
+        });
+    }
+
+    private void applyAnalysis(File songFile, float[] waveform, SilenceBounds silence) {
+        Metadata metadata = this.metadata.get(songFile);
+        boolean current = currentSongIndex >= 0 && songQueue.get(currentSongIndex).equals(songFile);
+        if (metadata != null && waveform != null) {
+            metadata.setWaveform(waveform);
+            if (current) {
+                drawWaveform(waveform);
+            }
+        }
+        if (silence == null || !silence.hasSilence()) {
+            return;
+        }
+        if (nextMediaPlayer != null && songFile.equals(nextSongFile)) {
+            setPlayRange(nextMediaPlayer, metadata, silence);
+        }
+        if (current && mediaPlayer != null) {
+            setPlayRange(mediaPlayer, metadata, silence);
+            // a song that has started may already be playing the silence that has just been found
+            MediaPlayer.Status status = mediaPlayer.getStatus();
+            boolean started = status == MediaPlayer.Status.PLAYING || status == MediaPlayer.Status.PAUSED;
+            if (started && mediaPlayer.getCurrentTime().lessThan(mediaPlayer.getStartTime())) {
+                mediaPlayer.seek(mediaPlayer.getStartTime());
+            }
+        }
+    }
+
+    private void drawWaveform(float[] waveform) {
+        GraphicsContext graphics = waveformCanvas.getGraphicsContext2D();
+        double width = waveformCanvas.getWidth();
+        double height = waveformCanvas.getHeight();
+        graphics.clearRect(0, 0, width, height);
+        if (waveform == null) {
+            return;
+        }
+        float loudest = LoudnessEnvelope.SILENCE_LEVEL;
+        for (float level : waveform) {
+            loudest = Math.max(loudest, level);
+        }
+        double barWidth = width / waveform.length;
+        graphics.setFill(Color.web("#535353"));
+        for (int i = 0; i < waveform.length; i++) {
+            double fraction = Math.max(0, 1 - (loudest - waveform[i]) / WAVEFORM_RANGE);
+            double barHeight = fraction * height;
+            graphics.fillRect(i * barWidth, (height - barHeight) / 2, Math.max(1, barWidth - 1), barHeight);
+        }
+    }
+
     private static class Metadata {
         private final String title;
         private final String artist;
+        private final Duration startTime;
+        private final Duration stopTime;
+        private float[] waveform;
+        private double trackGain;
 
-        public Metadata(String title, String artist) {
+        public Metadata(String title, String artist, Duration startTime, Duration stopTime, double trackGain) {
             this.title = title;
             this.artist = artist;
+            this.startTime = startTime;
+            this.stopTime = stopTime;
+            this.trackGain = trackGain;
         }
 
         public String getTitle() {
@@ -248,16 +472,55 @@ public class MPlayer2 extends Application {
         public String getArtist() {
             return artist;
         }
+
+        public Duration getStartTime() {
+            return startTime;
+        }
+
+        public Duration getStopTime() {
+            return stopTime;
+        }
+
+        public float[] getWaveform() {
+            return waveform;
+        }
+
+        public void setWaveform(float[] waveform) {
+            this.waveform = waveform;
+        }
+
+        public double getTrackGain() {
+            return trackGain;
+        }
+
+        public void setTrackGain(double trackGain) {
+            this.trackGain = trackGain;
+        }
     }
 
     private void updateMetadata(File file) {
         try {
-            Mp3File mp3 = new Mp3File(file);
+            // the gapless info and the length are in the Xing frame, so only a file without one is
+            // walked here; the waveform is read once the song is playing or queued
+            Mp3File mp3 = new Mp3File(file, ScanMode.VBR_HEADER);
+            Duration startTime = null;
+            Duration stopTime = null;
+            if (mp3.hasGaplessInfo()) {
+                double sampleRate = mp3.getSampleRate();
+                long firstSample = mp3.getEncoderDelay() + DECODER_DELAY;
+                startTime = Duration.seconds(firstSample / sampleRate);
+                stopTime = Duration.seconds((firstSample + mp3.getSampleCount()) / sampleRate);
+            }
             if (mp3.hasId3v2Tag()) {
                 ID3v2 id3v2Tag = mp3.getId3v2Tag();
                 String title = id3v2Tag.getTitle();
                 String artist = id3v2Tag.getArtist();
-                metadata.put(file, new Metadata(title, artist));
+                // NaN until analyseLoudness() measures the track, unless the tag already has ReplayGain
+                LoudnessAnalysis loudness = LoudnessAnalysis.readFrom(id3v2Tag);
+                double trackGain = loudness != null ? loudness.getTrackGain() : Double.NaN;
+                metadata.put(file, new Metadata(title, artist, startTime, stopTime, trackGain));
+            } else {
+                metadata.put(file, new Metadata(null, null, startTime, stopTime, Double.NaN));
             }
         } catch (Exception e) {
             e.printStackTrace();
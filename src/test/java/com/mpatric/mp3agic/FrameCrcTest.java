@@ -0,0 +1,136 @@
+package com.mpatric.mp3agic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Scans protected frames whose CRCs are computed bit by bit here, then damages a frame inside
+ * and outside the region the CRC covers.
+ */
+public class FrameCrcTest {
+
+	// MPEG 1 Layer III, 128 kbit/s, 44.1 kHz, stereo, CRC: 32 bytes of side information
+	private static final int LAYER_3_STEREO = 0xFFFA9000;
+	// MPEG 2 Layer III, 64 kbit/s, 22.05 kHz, mono, CRC: 9 bytes of side information
+	private static final int LAYER_3_MPEG_2_MONO = 0xFFF280C0;
+	// MPEG 1 Layer I, 384 kbit/s, 44.1 kHz, stereo, CRC: 32 bytes of bit allocation
+	private static final int LAYER_1_STEREO = 0xFFFEC000;
+	// as above, in joint stereo with a bound of 8 subbands: (32 + 8) / 2 bytes of bit allocation
+	private static final int LAYER_1_JOINT_STEREO = 0xFFFEC050;
+	// MPEG 1 Layer I, 384 kbit/s, 44.1 kHz, mono, CRC: 16 bytes of bit allocation
+	private static final int LAYER_1_MONO = 0xFFFEC0C0;
+	// MPEG 1 Layer II, 192 kbit/s, 44.1 kHz, stereo, CRC, which is not checked
+	private static final int LAYER_2_STEREO = 0xFFFCA000;
+	private static final int FRAME_COUNT = 40;
+	private static final int CRC_OFFSET = 4;
+	private static final int PROTECTED_DATA_OFFSET = 6;
+	private static final int DAMAGED_FRAME = 17;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldPassIntactLayer3Frames() throws Exception {
+		assertNoCrcErrors(LAYER_3_STEREO, 32);
+		assertNoCrcErrors(LAYER_3_MPEG_2_MONO, 9);
+	}
+
+	@Test
+	public void shouldPassIntactLayer1Frames() throws Exception {
+		assertNoCrcErrors(LAYER_1_STEREO, 32);
+		assertNoCrcErrors(LAYER_1_JOINT_STEREO, 20);
+		assertNoCrcErrors(LAYER_1_MONO, 16);
+	}
+
+	@Test
+	public void shouldFailDamagedLayer3Frame() throws Exception {
+		assertCrcError(LAYER_3_STEREO, 32, ScanMode.BUFFERED);
+		assertCrcError(LAYER_3_STEREO, 32, ScanMode.MAPPED);
+		assertCrcError(LAYER_3_STEREO, 32, ScanMode.PARALLEL);
+		assertCrcError(LAYER_3_MPEG_2_MONO, 9, ScanMode.BUFFERED);
+	}
+
+	@Test
+	public void shouldFailDamagedLayer1Frame() throws Exception {
+		assertCrcError(LAYER_1_STEREO, 32, ScanMode.BUFFERED);
+		assertCrcError(LAYER_1_JOINT_STEREO, 20, ScanMode.BUFFERED);
+		assertCrcError(LAYER_1_MONO, 16, ScanMode.MAPPED);
+	}
+
+	@Test
+	public void shouldIgnoreDamageOutsideProtectedRegion() throws Exception {
+		// the main data of a Layer III frame and the samples of a Layer I frame are not covered
+		assertNoCrcErrors(LAYER_3_STEREO, 32, PROTECTED_DATA_OFFSET + 32);
+		assertNoCrcErrors(LAYER_1_JOINT_STEREO, 20, PROTECTED_DATA_OFFSET + 20);
+	}
+
+	@Test
+	public void shouldNotCheckLayer2Frames() throws Exception {
+		Path path = createFile(LAYER_2_STEREO, 0, -1);
+		Mp3File mp3File = new Mp3File(path, ScanMode.BUFFERED, ScanOption.VERIFY_CRC);
+		assertEquals(FRAME_COUNT, mp3File.getFrameCount());
+		assertEquals(0, mp3File.getCrcCheckedFrameCount());
+		assertEquals(0, mp3File.getCrcErrorOffsets().length);
+	}
+
+	private void assertNoCrcErrors(int header, int protectedLength) throws Exception {
+		assertNoCrcErrors(header, protectedLength, -1);
+	}
+
+	private void assertNoCrcErrors(int header, int protectedLength, int damagedByte) throws Exception {
+		Path path = createFile(header, protectedLength, damagedByte);
+		Mp3File mp3File = new Mp3File(path, ScanMode.BUFFERED, ScanOption.VERIFY_CRC);
+		assertEquals(FRAME_COUNT, mp3File.getFrameCount());
+		assertEquals(FRAME_COUNT, mp3File.getCrcCheckedFrameCount());
+		assertEquals(0, mp3File.getCrcErrorOffsets().length);
+	}
+
+	private void assertCrcError(int header, int protectedLength, ScanMode scanMode) throws Exception {
+		// the last protected byte, which the eight-byte steps of the check may leave to its tail
+		Path path = createFile(header, protectedLength, PROTECTED_DATA_OFFSET + protectedLength - 1);
+		Mp3File mp3File = new Mp3File(path, scanMode, ScanOption.VERIFY_CRC);
+		assertEquals(FRAME_COUNT, mp3File.getFrameCount());
+		assertEquals(FRAME_COUNT, mp3File.getCrcCheckedFrameCount());
+		long damagedOffset = (long) DAMAGED_FRAME * SyntheticMp3.frameLength(header);
+		assertArrayEquals(new long[]{damagedOffset}, mp3File.getCrcErrorOffsets());
+	}
+
+	/**
+	 * Writes FRAME_COUNT frames of random data, with a correct CRC over the protectedLength bytes
+	 * after it, and flips a bit of byte damagedByte of frame DAMAGED_FRAME if it is not -1.
+	 */
+	private Path createFile(int header, int protectedLength, int damagedByte) throws Exception {
+		Random random = new Random(header);
+		SyntheticMp3 mp3 = new SyntheticMp3();
+		for (int i = 0; i < FRAME_COUNT; i++) {
+			byte[] frame = SyntheticMp3.createFrame(header);
+			byte[] data = new byte[frame.length - PROTECTED_DATA_OFFSET];
+			random.nextBytes(data);
+			System.arraycopy(data, 0, frame, PROTECTED_DATA_OFFSET, data.length);
+			int crc = crc16(frame, protectedLength);
+			frame[CRC_OFFSET] = (byte) (crc >>> 8);
+			frame[CRC_OFFSET + 1] = (byte) crc;
+			if (i == DAMAGED_FRAME && damagedByte >= 0) frame[damagedByte] ^= 0x10;
+			mp3.frame(frame);
+		}
+		return mp3.write(tempDir.resolve(Integer.toHexString(header) + "-" + damagedByte + ".mp3"));
+	}
+
+	private static int crc16(byte[] frame, int protectedLength) {
+		int crc = 0xFFFF;
+		for (int i = 2; i < PROTECTED_DATA_OFFSET + protectedLength; i++) {
+			if (i == CRC_OFFSET) i = PROTECTED_DATA_OFFSET;
+			crc ^= (frame[i] & 0xFF) << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x8005 : crc << 1;
+			}
+			crc &= 0xFFFF;
+		}
+		return crc;
+	}
+}
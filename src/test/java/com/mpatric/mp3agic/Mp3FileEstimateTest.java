@@ -0,0 +1,80 @@
+package com.mpatric.mp3agic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the length that ESTIMATE extrapolates from a few samples with the length an exact
+ * scan of the same file gives.
+ */
+public class Mp3FileEstimateTest {
+
+	private static final int FRAME_COUNT = 3000;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldEstimatePaddedCbrFile() throws Exception {
+		Path path = new SyntheticMp3().cbrFrames(SyntheticMp3.LAYER_3_44100, FRAME_COUNT).write(tempDir.resolve("cbr.mp3"));
+		assertEstimatedLikeExactScan(path);
+	}
+
+	@Test
+	public void shouldEstimateUnpaddedCbrFile() throws Exception {
+		Path path = new SyntheticMp3().frames(SyntheticMp3.LAYER_3_48000, FRAME_COUNT).append(createId3v1Tag()).write(tempDir.resolve("cbr.mp3"));
+		assertEstimatedLikeExactScan(path);
+	}
+
+	@Test
+	public void shouldScanVbrFileExactly() throws Exception {
+		Random random = new Random(1);
+		SyntheticMp3 mp3 = new SyntheticMp3();
+		for (int i = 0; i < FRAME_COUNT; i++) {
+			// 112 to 192 kbit/s
+			mp3.frames(SyntheticMp3.withBitrateIndex(SyntheticMp3.LAYER_3_44100, 8 + random.nextInt(4)), 1);
+		}
+		Path path = mp3.write(tempDir.resolve("vbr.mp3"));
+		Mp3File exact = new Mp3File(path, ScanMode.BUFFERED);
+		Mp3File estimated = new Mp3File(path, ScanMode.ESTIMATE);
+		assertFalse(estimated.isLengthEstimated());
+		assertEquals(0, estimated.getLengthErrorInMilliseconds());
+		assertEquals(exact.getFrameCount(), estimated.getFrameCount());
+		assertEquals(exact.getEndOffset(), estimated.getEndOffset());
+		assertEquals(exact.getLengthInMilliseconds(), estimated.getLengthInMilliseconds());
+	}
+
+	@Test
+	public void shouldScanIrregularlyPaddedFileExactly() throws Exception {
+		// 44.1 kHz frames that are never padded are shorter on average than the bitrate says
+		Path path = new SyntheticMp3().frames(SyntheticMp3.LAYER_3_44100, FRAME_COUNT).write(tempDir.resolve("unpadded.mp3"));
+		Mp3File estimated = new Mp3File(path, ScanMode.ESTIMATE);
+		assertFalse(estimated.isLengthEstimated());
+		assertEquals(FRAME_COUNT, estimated.getFrameCount());
+	}
+
+	private static void assertEstimatedLikeExactScan(Path path) throws Exception {
+		Mp3File exact = new Mp3File(path, ScanMode.BUFFERED);
+		Mp3File estimated = new Mp3File(path, ScanMode.ESTIMATE);
+		assertEquals(FRAME_COUNT, exact.getFrameCount());
+		assertTrue(estimated.isLengthEstimated());
+		assertEquals(exact.getStartOffset(), estimated.getStartOffset());
+		assertEquals(exact.getEndOffset(), estimated.getEndOffset());
+		assertEquals(exact.getFrameCount(), estimated.getFrameCount(), 1);
+		assertEquals(exact.getBitrate(), estimated.getBitrate());
+		long error = Math.abs(exact.getLengthInMilliseconds() - estimated.getLengthInMilliseconds());
+		assertTrue(error <= estimated.getLengthErrorInMilliseconds(), "Estimate off by " + error + " ms");
+		assertEquals(exact.hasId3v1Tag(), estimated.hasId3v1Tag());
+	}
+
+	private static byte[] createId3v1Tag() throws NotSupportedException {
+		ID3v1Tag id3v1Tag = new ID3v1Tag();
+		id3v1Tag.setTitle("Estimate");
+		return id3v1Tag.toBytes();
+	}
+}
@@ -0,0 +1,152 @@
+package com.mpatric.mp3agic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Opens sparse files of more than 2 GB whose audio straddles offset 2^31. Everything before the
+ * audio is a hole, so the files take little more space on disk than their frames.
+ */
+public class Mp3FileLargeFileTest {
+
+	private static final int FRAME_HEADER = SyntheticMp3.LAYER_3_44100;
+	private static final int FRAME_LENGTH = SyntheticMp3.frameLength(FRAME_HEADER);
+	private static final int FRAME_COUNT = 2000;
+	private static final long AUDIO_LENGTH = (long) (FRAME_COUNT + 1) * FRAME_LENGTH;
+	// the Xing frame lies before 2^31 and the audio frames run past it
+	private static final long XING_OFFSET = (1L << 31) - 500L * FRAME_LENGTH;
+	private static final long START_OFFSET = XING_OFFSET + FRAME_LENGTH;
+	private static final long END_OFFSET = XING_OFFSET + AUDIO_LENGTH - 1;
+	private static final long FILE_LENGTH = END_OFFSET + 1 + ID3v1Tag.TAG_LENGTH;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldScanFramesPastTwoGigabytesBuffered() throws Exception {
+		assertScannedPastTwoGigabytes(ScanMode.BUFFERED);
+	}
+
+	@Test
+	public void shouldScanFramesPastTwoGigabytesMapped() throws Exception {
+		assertScannedPastTwoGigabytes(ScanMode.MAPPED);
+	}
+
+	@Test
+	public void shouldScanFramesPastTwoGigabytesFromVbrHeader() throws Exception {
+		Mp3File mp3File = assertScannedPastTwoGigabytes(ScanMode.VBR_HEADER);
+		assertTrue(mp3File.isVbrHeaderTrusted());
+	}
+
+	@Test
+	public void shouldIndexFramesPastTwoGigabytes() throws Exception {
+		Path path = createSparseFile("index.mp3");
+		Mp3File mp3File = new Mp3File(path, ScanMode.MAPPED, ScanOption.FRAME_INDEX);
+		MpegFrameIndex frameIndex = mp3File.getFrameIndex();
+		assertEquals(FRAME_COUNT, frameIndex.getFrameCount());
+		for (int frame = 0; frame < FRAME_COUNT; frame++) {
+			assertEquals(START_OFFSET + (long) frame * FRAME_LENGTH, frameIndex.getFrameOffset(frame));
+		}
+		int frameAtBoundary = (int) (((1L << 31) - START_OFFSET) / FRAME_LENGTH);
+		assertEquals(frameAtBoundary, frameIndex.getFrameAtByteOffset(1L << 31));
+	}
+
+	@Test
+	public void shouldSaveFramesFromPastTwoGigabytesBuffered() throws Exception {
+		assertSaveRoundTrip(ScanMode.BUFFERED);
+	}
+
+	@Test
+	public void shouldSaveFramesFromPastTwoGigabytesMapped() throws Exception {
+		assertSaveRoundTrip(ScanMode.MAPPED);
+	}
+
+	@Test
+	public void shouldSaveFramesFromPastTwoGigabytesFromVbrHeader() throws Exception {
+		assertSaveRoundTrip(ScanMode.VBR_HEADER);
+	}
+
+	private Mp3File assertScannedPastTwoGigabytes(ScanMode scanMode) throws Exception {
+		Path path = createSparseFile(scanMode.name() + ".mp3");
+		Mp3File mp3File = new Mp3File(path, scanMode);
+		assertEquals(FILE_LENGTH, mp3File.getLength());
+		assertEquals(XING_OFFSET, mp3File.getXingOffset());
+		assertEquals(START_OFFSET, mp3File.getStartOffset());
+		assertEquals(END_OFFSET, mp3File.getEndOffset());
+		assertEquals(FRAME_COUNT, mp3File.getFrameCount());
+		assertEquals(128, mp3File.getBitrate());
+		assertTrue(mp3File.hasId3v1Tag());
+		assertFalse(mp3File.hasCustomTag());
+		return mp3File;
+	}
+
+	private void assertSaveRoundTrip(ScanMode scanMode) throws Exception {
+		Path path = createSparseFile(scanMode.name() + ".mp3");
+		Mp3File mp3File = new Mp3File(path, scanMode);
+		ID3v2 id3v2Tag = new ID3v24Tag();
+		id3v2Tag.setTitle("Past two gigabytes");
+		mp3File.setId3v2Tag(id3v2Tag);
+		// the junk before the audio is not a tag, so the file cannot be saved in place
+		assertFalse(mp3File.save());
+		// the offsets are moved by the save, so the file can be saved again without reopening it
+		long audioOffset = mp3File.getXingOffset();
+		assertEquals(Files.size(path), mp3File.getLength());
+		assertEquals(audioOffset + AUDIO_LENGTH - 1, mp3File.getEndOffset());
+
+		Mp3File savedFile = new Mp3File(path, scanMode);
+		assertEquals(audioOffset + AUDIO_LENGTH + ID3v1Tag.TAG_LENGTH, savedFile.getLength());
+		assertEquals(audioOffset, savedFile.getXingOffset());
+		assertEquals(audioOffset + FRAME_LENGTH, savedFile.getStartOffset());
+		assertEquals(audioOffset + AUDIO_LENGTH - 1, savedFile.getEndOffset());
+		assertEquals(FRAME_COUNT, savedFile.getFrameCount());
+		assertEquals("Past two gigabytes", savedFile.getId3v2Tag().getTitle());
+		assertEquals("Sparse", savedFile.getId3v1Tag().getTitle());
+		assertArrayEquals(createAudio().toBytes(), readAudio(path, audioOffset));
+	}
+
+	/**
+	 * Writes a Xing frame followed by FRAME_COUNT frames at XING_OFFSET, and an ID3v1 tag after
+	 * them. The Xing frame holds the frame and byte counts, so a VBR_HEADER scan can take the
+	 * length from it.
+	 */
+	private Path createSparseFile(String filename) throws IOException, NotSupportedException {
+		Path path = tempDir.resolve(filename);
+		ID3v1Tag id3v1Tag = new ID3v1Tag();
+		id3v1Tag.setTitle("Sparse");
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+			ByteBuffer buffer = ByteBuffer.wrap(createAudio().append(id3v1Tag.toBytes()).toBytes());
+			long position = XING_OFFSET;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+		assertEquals(FILE_LENGTH, Files.size(path));
+		return path;
+	}
+
+	// the frames are numbered, so a misplaced frame shows in the saved audio
+	private static SyntheticMp3 createAudio() {
+		return new SyntheticMp3()
+				.xingFrame(FRAME_HEADER, FRAME_COUNT, (int) AUDIO_LENGTH)
+				.frames(FRAME_HEADER, FRAME_COUNT);
+	}
+
+	private static byte[] readAudio(Path path, long audioOffset) throws IOException {
+		ByteBuffer audio = ByteBuffer.allocate((int) AUDIO_LENGTH);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (audio.hasRemaining()) {
+				if (channel.read(audio, audioOffset + audio.position()) < 0) throw new IOException("Not enough bytes read");
+			}
+		}
+		return audio.array();
+	}
+}
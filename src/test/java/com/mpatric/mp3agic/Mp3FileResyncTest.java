@@ -0,0 +1,106 @@
+package com.mpatric.mp3agic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Puts junk full of false frame syncs in front of real frames and checks that the scan finds
+ * the first real frame while the bytes it reads and the resyncs it makes grow linearly with the
+ * length of the junk. A scan that went back over junk it had already examined would do sixteen
+ * times the work for four times the junk.
+ */
+public class Mp3FileResyncTest {
+
+	private static final int FRAME_HEADER = SyntheticMp3.LAYER_3_44100;
+	private static final int FRAME_LENGTH = SyntheticMp3.frameLength(FRAME_HEADER);
+	private static final int FRAME_COUNT = 200;
+	private static final int JUNK_LENGTH = 1 << 20;
+	// each group holds the start of a chain that breaks before it is long enough to be accepted
+	private static final int CHAIN_GROUP_LENGTH = (Mp3File.SYNC_CHAIN_LENGTH - 1) * FRAME_LENGTH + 20;
+	// the blocks of a buffered scan do not end where the junk does
+	private static final int BLOCK_SLACK = 65536;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldResyncLinearlyOnHeadersAtEveryWordBuffered() throws Exception {
+		assertLinearResync(ScanMode.BUFFERED, false);
+	}
+
+	@Test
+	public void shouldResyncLinearlyOnHeadersAtEveryWordMapped() throws Exception {
+		assertLinearResync(ScanMode.MAPPED, false);
+	}
+
+	@Test
+	public void shouldResyncLinearlyOnBrokenChainsBuffered() throws Exception {
+		assertLinearResync(ScanMode.BUFFERED, true);
+	}
+
+	@Test
+	public void shouldResyncLinearlyOnBrokenChainsMapped() throws Exception {
+		assertLinearResync(ScanMode.MAPPED, true);
+	}
+
+	private void assertLinearResync(ScanMode scanMode, boolean brokenChains) throws Exception {
+		long[] none = scan(scanMode, 0, brokenChains);
+		long[] single = scan(scanMode, JUNK_LENGTH, brokenChains);
+		long[] quadruple = scan(scanMode, 4 * JUNK_LENGTH, brokenChains);
+		assertEquals(0, none[1]);
+		assertTrue(single[1] > 0);
+		assertEquals(4.0, (double) quadruple[1] / single[1], 0.01);
+		long singleExtraBytes = single[0] - none[0];
+		long quadrupleExtraBytes = quadruple[0] - none[0];
+		assertEquals(4.0, (double) quadrupleExtraBytes / singleExtraBytes, 0.01);
+		// the scan reads the junk once, and it is read once more when looking for an ID3v2 tag before the audio
+		assertTrue(quadrupleExtraBytes <= 2L * 4 * JUNK_LENGTH + BLOCK_SLACK, "Read " + quadrupleExtraBytes + " bytes for " + 4 * JUNK_LENGTH + " bytes of junk");
+	}
+
+	/**
+	 * @return the bytes read and the resyncs made by opening a file with junkLength bytes of junk
+	 * before FRAME_COUNT frames
+	 */
+	private long[] scan(ScanMode scanMode, int junkLength, boolean brokenChains) throws Exception {
+		Path path = tempDir.resolve(scanMode + "-" + brokenChains + "-" + junkLength + ".mp3");
+		new SyntheticMp3().append(createJunk(junkLength, brokenChains)).frames(FRAME_HEADER, FRAME_COUNT).write(path);
+		long bytesRead = ScanStatistics.getBytesRead();
+		long resyncs = ScanStatistics.getResyncs();
+		Mp3File mp3File = new Mp3File(path, scanMode);
+		bytesRead = ScanStatistics.getBytesRead() - bytesRead;
+		resyncs = ScanStatistics.getResyncs() - resyncs;
+		assertEquals(junkLength, mp3File.getStartOffset());
+		assertEquals(junkLength + (long) FRAME_COUNT * FRAME_LENGTH - 1, mp3File.getEndOffset());
+		assertEquals(FRAME_COUNT, mp3File.getFrameCount());
+		return new long[]{bytesRead, resyncs};
+	}
+
+	/**
+	 * The junk either holds a frame header at every fourth byte, none of which is followed by
+	 * another header, or repeats groups of SYNC_CHAIN_LENGTH - 1 chained headers, each of which
+	 * starts a chain that breaks on the last frame the scan checks.
+	 */
+	private static byte[] createJunk(int junkLength, boolean brokenChains) {
+		byte[] header = SyntheticMp3.headerBytes(FRAME_HEADER);
+		ByteBuffer buffer = ByteBuffer.allocate(junkLength);
+		if (brokenChains) {
+			for (int group = 0; group + CHAIN_GROUP_LENGTH <= junkLength; group += CHAIN_GROUP_LENGTH) {
+				for (int frame = 0; frame < Mp3File.SYNC_CHAIN_LENGTH - 1; frame++) {
+					buffer.position(group + frame * FRAME_LENGTH);
+					buffer.put(header);
+				}
+			}
+		} else {
+			for (int offset = 0; offset < junkLength; offset += header.length) {
+				buffer.position(offset);
+				buffer.put(header);
+			}
+		}
+		return buffer.array();
+	}
+}
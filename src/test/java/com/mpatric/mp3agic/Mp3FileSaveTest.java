@@ -0,0 +1,104 @@
+package com.mpatric.mp3agic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Mp3FileSaveTest {
+
+	private static final int FRAME_HEADER = SyntheticMp3.LAYER_3_44100;
+	private static final int FRAME_COUNT = 50;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldRewriteTagInPlaceWhenItFits() throws Exception {
+		Path path = createTaggedFile("Before");
+		long length = Files.size(path);
+		Mp3File mp3File = new Mp3File(path);
+		long startOffset = mp3File.getStartOffset();
+		byte[] audio = readAudio(path, startOffset);
+		mp3File.getId3v2Tag().setTitle("After, and a little longer");
+		assertTrue(mp3File.save());
+		// the tag was re-padded to fill the region it had, so the audio has not moved
+		assertEquals(length, Files.size(path));
+		assertArrayEquals(audio, readAudio(path, startOffset));
+		Mp3File savedFile = new Mp3File(path);
+		assertEquals(startOffset, savedFile.getStartOffset());
+		assertEquals("After, and a little longer", savedFile.getId3v2Tag().getTitle());
+	}
+
+	@Test
+	public void shouldAppendAndRemoveId3v1TagInPlace() throws Exception {
+		Path path = createTaggedFile("Before");
+		long length = Files.size(path);
+		Mp3File mp3File = new Mp3File(path);
+		ID3v1Tag id3v1Tag = new ID3v1Tag();
+		id3v1Tag.setTitle("Version 1");
+		mp3File.setId3v1Tag(id3v1Tag);
+		assertTrue(mp3File.save());
+		assertEquals(length + ID3v1Tag.TAG_LENGTH, Files.size(path));
+		assertEquals("Version 1", new Mp3File(path).getId3v1Tag().getTitle());
+		mp3File.removeId3v1Tag();
+		assertTrue(mp3File.save());
+		assertEquals(length, Files.size(path));
+		assertFalse(new Mp3File(path).hasId3v1Tag());
+	}
+
+	@Test
+	public void shouldReplaceFileWhenTagDoesNotFit() throws Exception {
+		Path path = createTaggedFile("Before");
+		Mp3File mp3File = new Mp3File(path);
+		long startOffset = mp3File.getStartOffset();
+		byte[] audio = readAudio(path, startOffset);
+		char[] comment = new char[2 * mp3File.getPaddingReserve()];
+		Arrays.fill(comment, 'c');
+		mp3File.getId3v2Tag().setComment(new String(comment));
+		assertFalse(mp3File.save());
+		Mp3File savedFile = new Mp3File(path);
+		assertTrue(savedFile.getStartOffset() > startOffset + comment.length);
+		assertEquals(savedFile.getStartOffset(), mp3File.getStartOffset());
+		assertEquals(new String(comment), savedFile.getId3v2Tag().getComment());
+		assertEquals(FRAME_COUNT, savedFile.getFrameCount());
+		assertArrayEquals(audio, readAudio(path, savedFile.getStartOffset()));
+		// the replaced file holds a fresh padding reserve, so the next small change fits in place
+		savedFile.getId3v2Tag().setTitle("After");
+		assertTrue(savedFile.save());
+	}
+
+	@Test
+	public void shouldReplaceFileWhenCustomTagChanges() throws Exception {
+		Path path = createTaggedFile("Before");
+		Mp3File mp3File = new Mp3File(path);
+		mp3File.setCustomTag(new byte[]{1, 2, 3, 4});
+		assertFalse(mp3File.save());
+		Mp3File savedFile = new Mp3File(path);
+		assertEquals(FRAME_COUNT, savedFile.getFrameCount());
+		assertArrayEquals(new byte[]{1, 2, 3, 4}, savedFile.getCustomTag());
+	}
+
+	/**
+	 * Writes FRAME_COUNT frames and gives them an ID3v2 tag by saving, which has to rewrite the
+	 * untagged file and so leaves the padding reserve after the tag.
+	 */
+	private Path createTaggedFile(String title) throws Exception {
+		Path path = new SyntheticMp3().frames(FRAME_HEADER, FRAME_COUNT).write(tempDir.resolve("save.mp3"));
+		Mp3File mp3File = new Mp3File(path);
+		ID3v2 id3v2Tag = new ID3v24Tag();
+		id3v2Tag.setTitle(title);
+		mp3File.setId3v2Tag(id3v2Tag);
+		assertFalse(mp3File.save());
+		return path;
+	}
+
+	private static byte[] readAudio(Path path, long startOffset) throws Exception {
+		byte[] bytes = Files.readAllBytes(path);
+		return Arrays.copyOfRange(bytes, (int) startOffset, (int) startOffset + FRAME_COUNT * SyntheticMp3.frameLength(FRAME_HEADER));
+	}
+}
@@ -0,0 +1,83 @@
+package com.mpatric.mp3agic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MpegFrameIndexTest {
+
+	private static final int FRAME_COUNT = 100;
+	// the offset of the frame count in the sidecar header
+	private static final int FRAME_COUNT_OFFSET = 32;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldLoadSavedSidecar() throws Exception {
+		MpegFrameIndex frameIndex = createFrameIndex();
+		Path sidecar = tempDir.resolve("index.idx");
+		frameIndex.save(sidecar);
+		MpegFrameIndex loaded = MpegFrameIndex.load(sidecar);
+		assertEquals(FRAME_COUNT, loaded.getFrameCount());
+		for (int frame = 0; frame < FRAME_COUNT; frame++) {
+			assertEquals(frameIndex.getFrameOffset(frame), loaded.getFrameOffset(frame));
+		}
+	}
+
+	@Test
+	public void shouldRejectFrameCountBeyondSidecarLength() throws Exception {
+		Path sidecar = writeCorruptSidecar(Integer.MAX_VALUE);
+		assertThrows(InvalidDataException.class, () -> MpegFrameIndex.load(sidecar));
+	}
+
+	@Test
+	public void shouldRejectNegativeFrameCount() throws Exception {
+		Path sidecar = writeCorruptSidecar(-1);
+		assertThrows(InvalidDataException.class, () -> MpegFrameIndex.load(sidecar));
+	}
+
+	@Test
+	public void shouldRejectFrameCountBeyondSourceLength() throws Exception {
+		Path sidecar = tempDir.resolve("index.idx");
+		createFrameIndex().save(sidecar);
+		byte[] bytes = Files.readAllBytes(sidecar);
+		// claim a source of 10 bytes, which cannot hold FRAME_COUNT frames
+		ByteBuffer.wrap(bytes).putLong(16, 10);
+		Files.write(sidecar, bytes);
+		assertThrows(InvalidDataException.class, () -> MpegFrameIndex.load(sidecar));
+	}
+
+	@Test
+	public void shouldRejectOffsetBeyondSourceLength() throws Exception {
+		Path sidecar = tempDir.resolve("index.idx");
+		createFrameIndex().save(sidecar);
+		byte[] bytes = Files.readAllBytes(sidecar);
+		// the offsets fit the length of the sidecar but run past the end of a shorter source
+		ByteBuffer.wrap(bytes).putLong(16, FRAME_COUNT * 2);
+		Files.write(sidecar, bytes);
+		assertThrows(InvalidDataException.class, () -> MpegFrameIndex.load(sidecar));
+	}
+
+	private Path writeCorruptSidecar(int frameCount) throws Exception {
+		Path sidecar = tempDir.resolve("corrupt.idx");
+		createFrameIndex().save(sidecar);
+		byte[] bytes = Files.readAllBytes(sidecar);
+		ByteBuffer.wrap(bytes).putInt(FRAME_COUNT_OFFSET, frameCount);
+		Files.write(sidecar, bytes);
+		return sidecar;
+	}
+
+	private MpegFrameIndex createFrameIndex() throws Exception {
+		Path path = tempDir.resolve("frames.mp3");
+		if (!Files.exists(path)) {
+			new SyntheticMp3().frames(SyntheticMp3.LAYER_3_44100, FRAME_COUNT).write(path);
+		}
+		return new Mp3File(path, ScanMode.BUFFERED, ScanOption.FRAME_INDEX).getFrameIndex();
+	}
+}
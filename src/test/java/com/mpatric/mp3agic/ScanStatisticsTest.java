@@ -0,0 +1,80 @@
+package com.mpatric.mp3agic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScanStatisticsTest {
+
+	private static final int FRAME_HEADER = SyntheticMp3.LAYER_3_48000;
+	private static final int FRAME_LENGTH = SyntheticMp3.frameLength(FRAME_HEADER);
+	private static final int FRAME_COUNT = 5000;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldCountEveryFrameOfFullScan() throws Exception {
+		Path path = createFile(true);
+		long framesScanned = ScanStatistics.getFramesScanned();
+		Mp3File mp3File = new Mp3File(path, ScanMode.BUFFERED);
+		assertEquals(FRAME_COUNT, mp3File.getFrameCount());
+		assertEquals(FRAME_COUNT, ScanStatistics.getFramesScanned() - framesScanned);
+	}
+
+	@Test
+	public void shouldCountOnlyVisitedFramesWhenVbrHeaderIsTrusted() throws Exception {
+		Path path = createFile(true);
+		long framesScanned = ScanStatistics.getFramesScanned();
+		Mp3File mp3File = new Mp3File(path, ScanMode.VBR_HEADER);
+		assertTrue(mp3File.isVbrHeaderTrusted());
+		assertEquals(FRAME_COUNT, mp3File.getFrameCount());
+		long scanned = ScanStatistics.getFramesScanned() - framesScanned;
+		assertTrue(scanned > 0 && scanned < 10, "Scanned " + scanned + " frames");
+	}
+
+	@Test
+	public void shouldCountOnlySampledFramesWhenEstimated() throws Exception {
+		Path path = createFile(false);
+		long framesScanned = ScanStatistics.getFramesScanned();
+		Mp3File mp3File = new Mp3File(path, ScanMode.ESTIMATE);
+		assertTrue(mp3File.isLengthEstimated());
+		assertEquals(FRAME_COUNT, mp3File.getFrameCount());
+		long scanned = ScanStatistics.getFramesScanned() - framesScanned;
+		assertTrue(scanned > 0 && scanned < FRAME_COUNT / 2, "Scanned " + scanned + " frames");
+	}
+
+	@Test
+	public void shouldCountMappedBytesOnceForParallelScan() throws Exception {
+		Path path = createFile(false);
+		long mappedBytesRead = bytesRead(path, ScanMode.MAPPED);
+		long parallelBytesRead = bytesRead(path, ScanMode.PARALLEL);
+		// the file is mapped once, and besides that only the tag headers are read
+		long tagProbeLength = AbstractID3v2Tag.HEADER_LENGTH + ID3v1Tag.TAG_LENGTH;
+		assertTrue(parallelBytesRead <= Files.size(path) + tagProbeLength, "Read " + parallelBytesRead + " bytes of " + Files.size(path));
+		assertEquals(mappedBytesRead, parallelBytesRead);
+	}
+
+	private static long bytesRead(Path path, ScanMode scanMode) throws Exception {
+		long bytesRead = ScanStatistics.getBytesRead();
+		long framesScanned = ScanStatistics.getFramesScanned();
+		Mp3File mp3File = new Mp3File(path, scanMode);
+		assertEquals(FRAME_COUNT, mp3File.getFrameCount());
+		assertEquals(FRAME_COUNT, ScanStatistics.getFramesScanned() - framesScanned);
+		return ScanStatistics.getBytesRead() - bytesRead;
+	}
+
+	/**
+	 * Writes FRAME_COUNT frames, after a Xing frame holding the frame and byte counts if xing is
+	 * true.
+	 */
+	private Path createFile(boolean xing) throws Exception {
+		SyntheticMp3 mp3 = new SyntheticMp3();
+		if (xing) mp3.xingFrame(FRAME_HEADER, FRAME_COUNT, (FRAME_COUNT + 1) * FRAME_LENGTH);
+		return mp3.frames(FRAME_HEADER, FRAME_COUNT).write(Files.createTempFile(tempDir, "xing", ".mp3"));
+	}
+}
@@ -0,0 +1,118 @@
+package com.mpatric.mp3agic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Builds mpeg streams for tests. The frames have real headers and silent contents, apart from a
+ * counter in their last byte that tells them apart; junk, a Xing frame and tags can be put
+ * around them.
+ */
+final class SyntheticMp3 {
+
+	// MPEG 1 Layer III, 128 kbit/s, 44.1 kHz, stereo, no CRC: 417 bytes, or 418 when padded
+	static final int LAYER_3_44100 = 0xFFFB9000;
+	// MPEG 1 Layer III, 128 kbit/s, 48 kHz, stereo, no CRC: 384 bytes, which needs no padding
+	static final int LAYER_3_48000 = 0xFFFB9400;
+
+	static final int XING_MARKER_OFFSET = 36;
+	private static final int PADDING_BIT = 0x200;
+	private static final int BITRATE_INDEX_SHIFT = 12;
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private int frameCount;
+
+	static int frameLength(int header) {
+		return MpegFrameHeader.getFrameLength(header);
+	}
+
+	static int withBitrateIndex(int header, int bitrateIndex) {
+		return (header & ~(0xF << BITRATE_INDEX_SHIFT)) | (bitrateIndex << BITRATE_INDEX_SHIFT);
+	}
+
+	static byte[] headerBytes(int header) {
+		return ByteBuffer.allocate(4).putInt(header).array();
+	}
+
+	/**
+	 * @return a frame of the header's length holding only the header
+	 */
+	static byte[] createFrame(int header) {
+		byte[] frame = new byte[frameLength(header)];
+		System.arraycopy(headerBytes(header), 0, frame, 0, 4);
+		return frame;
+	}
+
+	/**
+	 * Appends count frames that all have the given header.
+	 */
+	SyntheticMp3 frames(int header, int count) {
+		for (int i = 0; i < count; i++) {
+			frame(createFrame(header));
+		}
+		return this;
+	}
+
+	/**
+	 * Appends count frames with the header, padded the way an encoder pads a CBR stream so that
+	 * their average length is the exact length the bitrate calls for.
+	 */
+	SyntheticMp3 cbrFrames(int header, int count) {
+		header &= ~PADDING_BIT;
+		int slotLength = frameLength(header | PADDING_BIT) - frameLength(header);
+		long slotsPerSecond = MpegFrameHeader.getBitrate(header) * 1000L / 8 * MpegFrameHeader.getSamplesPerFrame(header) / slotLength;
+		int sampleRate = MpegFrameHeader.getSampleRate(header);
+		for (long i = 0; i < count; i++) {
+			long slots = (i + 1) * slotsPerSecond / sampleRate - i * slotsPerSecond / sampleRate;
+			boolean padded = slots * slotLength > frameLength(header);
+			frame(createFrame(padded ? header | PADDING_BIT : header));
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a Xing frame holding a frame count and a byte count, which counts the Xing frame.
+	 */
+	SyntheticMp3 xingFrame(int header, int frameCount, int byteCount) {
+		ByteBuffer frame = ByteBuffer.wrap(createFrame(header));
+		frame.position(XING_MARKER_OFFSET);
+		frame.put(new byte[]{'X', 'i', 'n', 'g'});
+		frame.putInt(0x3);
+		frame.putInt(frameCount);
+		frame.putInt(byteCount);
+		bytes.write(frame.array(), 0, frame.capacity());
+		return this;
+	}
+
+	/**
+	 * Appends a frame, setting its last byte to the number of frames before it.
+	 */
+	SyntheticMp3 frame(byte[] frame) {
+		frame[frame.length - 1] = (byte) (frameCount++ & 0x7F);
+		bytes.write(frame, 0, frame.length);
+		return this;
+	}
+
+	/**
+	 * Appends bytes that are not frames, such as junk or a tag.
+	 */
+	SyntheticMp3 append(byte[] data) {
+		bytes.write(data, 0, data.length);
+		return this;
+	}
+
+	int length() {
+		return bytes.size();
+	}
+
+	byte[] toBytes() {
+		return bytes.toByteArray();
+	}
+
+	Path write(Path path) throws IOException {
+		return Files.write(path, bytes.toByteArray());
+	}
+}
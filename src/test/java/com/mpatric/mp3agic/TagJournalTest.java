@@ -0,0 +1,179 @@
+package com.mpatric.mp3agic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TagJournalTest {
+
+	private static final int MAGIC = 0x4D50544A;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_LENGTH = 8;
+	private static final byte RECORD_EDIT = 1;
+	private static final byte RECORD_DONE = 2;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldReplayEditsThatWereNotDone() throws Exception {
+		Path done = createFile("done.mp3");
+		Path unfinished = createFile("unfinished.mp3");
+		Path journalPath = tempDir.resolve("journal");
+		ByteArrayOutputStream journal = createJournal();
+		writeRecord(journal, editPayload(1, done, "Done"));
+		writeRecord(journal, editPayload(2, unfinished, "First"));
+		writeRecord(journal, editPayload(3, unfinished, "Second"));
+		writeRecord(journal, donePayload(1));
+		Files.write(journalPath, journal.toByteArray());
+
+		try (TagJournal tagJournal = new TagJournal(journalPath)) {
+			// only the latest edit of each file is saved
+			assertEquals(1, tagJournal.getReplayedCount());
+			assertTrue(tagJournal.getReplayFailures().isEmpty());
+			assertEquals(1, tagJournal.getCheckpointCount());
+			assertEquals(HEADER_LENGTH, Files.size(journalPath));
+		}
+		assertEquals("Second", new Mp3File(unfinished).getId3v2Tag().getTitle());
+		assertFalse(new Mp3File(done).hasId3v2Tag());
+	}
+
+	@Test
+	public void shouldIgnoreTornTailRecord() throws Exception {
+		Path committed = createFile("committed.mp3");
+		Path torn = createFile("torn.mp3");
+		Path journalPath = tempDir.resolve("journal");
+		ByteArrayOutputStream journal = createJournal();
+		writeRecord(journal, editPayload(1, committed, "Committed"));
+		ByteArrayOutputStream tornRecord = new ByteArrayOutputStream();
+		writeRecord(tornRecord, editPayload(2, torn, "Torn"));
+		journal.write(tornRecord.toByteArray(), 0, tornRecord.size() / 2);
+		Files.write(journalPath, journal.toByteArray());
+
+		try (TagJournal tagJournal = new TagJournal(journalPath)) {
+			assertEquals(1, tagJournal.getReplayedCount());
+			assertEquals(HEADER_LENGTH, Files.size(journalPath));
+		}
+		assertEquals("Committed", new Mp3File(committed).getId3v2Tag().getTitle());
+		assertFalse(new Mp3File(torn).hasId3v2Tag());
+	}
+
+	@Test
+	public void shouldIgnoreRecordWithBadChecksum() throws Exception {
+		Path path = createFile("corrupt.mp3");
+		Path journalPath = tempDir.resolve("journal");
+		ByteArrayOutputStream journal = createJournal();
+		writeRecord(journal, editPayload(1, path, "Corrupt"));
+		byte[] bytes = journal.toByteArray();
+		bytes[bytes.length - 1] ^= 1;
+		Files.write(journalPath, bytes);
+
+		try (TagJournal tagJournal = new TagJournal(journalPath)) {
+			assertEquals(0, tagJournal.getReplayedCount());
+			assertEquals(0, tagJournal.getCheckpointCount());
+			assertEquals(HEADER_LENGTH, Files.size(journalPath));
+		}
+		assertFalse(new Mp3File(path).hasId3v2Tag());
+	}
+
+	@Test
+	public void shouldCompactAfterCheckpointOfSavedFiles() throws Exception {
+		Path journalPath = tempDir.resolve("journal");
+		List<Path> paths = new ArrayList<>();
+		TagJournal tagJournal = new TagJournal(journalPath);
+		try {
+			for (int i = 0; i < 10; i++) {
+				Path path = createFile("file" + i + ".mp3");
+				paths.add(path);
+				tagJournal.submit(path, createId3v2Tag("Title " + i), null).applied().join();
+			}
+			// the records stay until a checkpoint has forced the saved files
+			assertEquals(0, tagJournal.getCheckpointCount());
+			assertTrue(Files.size(journalPath) > HEADER_LENGTH);
+		} finally {
+			tagJournal.close();
+		}
+		assertEquals(1, tagJournal.getCheckpointCount());
+		assertEquals(HEADER_LENGTH, Files.size(journalPath));
+		for (int i = 0; i < paths.size(); i++) {
+			assertEquals("Title " + i, new Mp3File(paths.get(i)).getId3v2Tag().getTitle());
+		}
+		try (TagJournal reopened = new TagJournal(journalPath)) {
+			assertEquals(0, reopened.getReplayedCount());
+		}
+	}
+
+	@Test
+	public void shouldKeepSavesOfSameFileInOrder() throws Exception {
+		Path path = createFile("ordered.mp3");
+		try (TagJournal tagJournal = new TagJournal(tempDir.resolve("journal"), 4)) {
+			TagJournal.Edit last = null;
+			for (int i = 0; i < 20; i++) {
+				last = tagJournal.submit(path, createId3v2Tag("Title " + i), null);
+			}
+			last.applied().join();
+		}
+		assertEquals("Title 19", new Mp3File(path).getId3v2Tag().getTitle());
+	}
+
+	private Path createFile(String filename) throws IOException {
+		return new SyntheticMp3().frames(SyntheticMp3.LAYER_3_44100, 20).write(tempDir.resolve(filename));
+	}
+
+	private static byte[] createId3v2Tag(String title) throws NotSupportedException {
+		ID3v2 id3v2Tag = new ID3v24Tag();
+		id3v2Tag.setTitle(title);
+		return id3v2Tag.toBytes();
+	}
+
+	private static ByteArrayOutputStream createJournal() throws IOException {
+		ByteArrayOutputStream journal = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(journal);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		return journal;
+	}
+
+	private static byte[] editPayload(long sequence, Path path, String title) throws IOException, NotSupportedException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeByte(RECORD_EDIT);
+		out.writeLong(sequence);
+		byte[] pathBytes = path.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+		out.writeShort(pathBytes.length);
+		out.write(pathBytes);
+		byte[] id3v2Bytes = createId3v2Tag(title);
+		out.writeInt(id3v2Bytes.length);
+		out.write(id3v2Bytes);
+		out.writeInt(-1);
+		return payload.toByteArray();
+	}
+
+	private static byte[] donePayload(long sequence) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeByte(RECORD_DONE);
+		out.writeLong(sequence);
+		return payload.toByteArray();
+	}
+
+	private static void writeRecord(ByteArrayOutputStream journal, byte[] payload) throws IOException {
+		CRC32 crc32 = new CRC32();
+		crc32.update(payload);
+		DataOutputStream out = new DataOutputStream(journal);
+		out.writeInt(payload.length);
+		out.writeInt((int) crc32.getValue());
+		out.write(payload);
+	}
+}
@@ -0,0 +1,256 @@
+package com.mpatric.mp3agic.decoder;
+
+import com.mpatric.mp3agic.Mp3File;
+import com.mpatric.mp3agic.ScanMode;
+import com.mpatric.mp3agic.ScanOption;
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.SampleBuffer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the decoded samples against JLayer, an independent Layer III decoder, on real songs and
+ * on a tone built from hand-coded frames, and checks that a seek reads the same samples as a
+ * decode from the start.
+ */
+public class Mp3PcmReaderTest {
+
+	private static final Path SONG = Paths.get("songs", "[SPOTIFY-DOWNLOADER.COM] New Tank.mp3");
+	private static final Path OTHER_SONG = Paths.get("songs", "[SPOTIFY-DOWNLOADER.COM] BURN.mp3");
+	// JLayer scales its output by 32700 rather than 32768, and clips at 32767
+	private static final double JLAYER_SCALE = 32700.0;
+	private static final double MAXIMUM_ERROR = 1.5;
+	private static final double MAXIMUM_RMS_ERROR = 0.75;
+
+	// MPEG 1 Layer III, 128 kbit/s, 44.1 kHz, mono, no CRC: 417 bytes with 17 of side information
+	private static final int TONE_HEADER = 0xFFFB90C0;
+	private static final int TONE_FRAME_COUNT = 100;
+	private static final int TONE_GLOBAL_GAIN = 210;
+	// a middle line, which the alias reduction leaves alone, of an odd subband, so that the tone
+	// only matches JLayer if the subband is inverted in frequency
+	private static final int TONE_LINE = 3 * 18 + 9;
+	private static final int GRANULE_LENGTH = 576;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldDecodeSongsLikeReferenceDecoder() throws Exception {
+		assertDecodedLikeReference(SONG);
+		assertDecodedLikeReference(OTHER_SONG);
+	}
+
+	@Test
+	public void shouldDecodeToneLikeReferenceDecoder() throws Exception {
+		assertDecodedLikeReference(createToneFile());
+	}
+
+	@Test
+	public void shouldDecodeToneAtFrequencyOfItsLine() throws Exception {
+		Mp3File mp3File = new Mp3File(createToneFile(), ScanMode.BUFFERED, ScanOption.FRAME_INDEX);
+		float[] pcm = decode(mp3File);
+		// every granule holds the same line, so once the overlap has filled the output repeats
+		// every granule, and its spectrum is made of the harmonics of the granule rate
+		float[] period = Arrays.copyOfRange(pcm, 4 * GRANULE_LENGTH, 5 * GRANULE_LENGTH);
+		for (int i = 0; i < GRANULE_LENGTH; i++) {
+			assertEquals(period[i], pcm[10 * GRANULE_LENGTH + i], 1e-6);
+		}
+		double[] energies = new double[GRANULE_LENGTH / 2 + 1];
+		double totalEnergy = 0;
+		for (int harmonic = 0; harmonic < energies.length; harmonic++) {
+			double re = 0;
+			double im = 0;
+			for (int i = 0; i < GRANULE_LENGTH; i++) {
+				double phase = 2 * Math.PI * harmonic * i / GRANULE_LENGTH;
+				re += period[i] * Math.cos(phase);
+				im -= period[i] * Math.sin(phase);
+			}
+			energies[harmonic] = re * re + im * im;
+			totalEnergy += energies[harmonic];
+		}
+		assertTrue(totalEnergy > 0);
+		// the line's centre frequency, (line + 1/2) * sample rate / 1152, falls between two harmonics
+		int lower = (TONE_LINE * 2 + 1) / 4;
+		double lineEnergy = energies[lower] + energies[lower + 1];
+		assertTrue(lineEnergy > 0.9 * totalEnergy, "Energy at the line " + lineEnergy / totalEnergy);
+	}
+
+	@Test
+	public void shouldSeekToSamplesOfSequentialDecode() throws Exception {
+		Mp3File mp3File = new Mp3File(SONG, ScanMode.MAPPED, ScanOption.FRAME_INDEX);
+		int frameCount = Math.min(mp3File.getFrameCount(), 800);
+		List<float[]> frames = new ArrayList<>();
+		try (Mp3PcmReader reader = new Mp3PcmReader(mp3File)) {
+			float[] pcm = new float[Layer3Decoder.MAXIMUM_CHANNELS * Layer3Decoder.MAXIMUM_SAMPLES_PER_FRAME];
+			for (int frame = 0; frame < frameCount; frame++) {
+				int samples = reader.readFrame(pcm, 0);
+				frames.add(Arrays.copyOf(pcm, samples * reader.getChannelCount()));
+			}
+			for (int frame : new int[]{0, 1, 2, 3, 37, 300, 301, frameCount - 1, 150, 0}) {
+				reader.seekToFrame(frame);
+				assertEquals(frame, reader.getFrame());
+				int samples = reader.readFrame(pcm, 0);
+				assertArrayEquals(frames.get(frame), Arrays.copyOf(pcm, samples * reader.getChannelCount()), "Frame " + frame);
+				if (frame + 1 < frameCount) {
+					samples = reader.readFrame(pcm, 0);
+					assertArrayEquals(frames.get(frame + 1), Arrays.copyOf(pcm, samples * reader.getChannelCount()), "Frame after " + frame);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void shouldStopAtEndFrame() throws Exception {
+		Mp3File mp3File = new Mp3File(SONG, ScanMode.MAPPED, ScanOption.FRAME_INDEX);
+		try (Mp3PcmReader reader = new Mp3PcmReader(mp3File)) {
+			float[] pcm = new float[Layer3Decoder.MAXIMUM_CHANNELS * Layer3Decoder.MAXIMUM_SAMPLES_PER_FRAME];
+			reader.seekToFrame(10);
+			reader.setEndFrame(12);
+			assertEquals(reader.getSamplesPerFrame(), reader.readFrame(pcm, 0));
+			assertEquals(reader.getSamplesPerFrame(), reader.readFrame(pcm, 0));
+			assertEquals(-1, reader.readFrame(pcm, 0));
+		}
+	}
+
+	private static void assertDecodedLikeReference(Path path) throws Exception {
+		Mp3File mp3File = new Mp3File(path, ScanMode.MAPPED, ScanOption.FRAME_INDEX);
+		List<short[]> reference = decodeWithJLayer(path);
+		// JLayer decodes the Xing frame too, as a frame of silence
+		int skippedFrames = mp3File.getXingOffset() >= 0 ? 1 : 0;
+		assertEquals(mp3File.getFrameCount() + skippedFrames, reference.size());
+		double squaredError = 0;
+		double maximumError = 0;
+		long count = 0;
+		try (Mp3PcmReader reader = new Mp3PcmReader(mp3File)) {
+			float[] pcm = new float[Layer3Decoder.MAXIMUM_CHANNELS * Layer3Decoder.MAXIMUM_SAMPLES_PER_FRAME];
+			int samples;
+			for (int frame = 0; (samples = reader.readFrame(pcm, 0)) >= 0; frame++) {
+				short[] expected = reference.get(frame + skippedFrames);
+				assertEquals(samples * reader.getChannelCount(), expected.length);
+				for (int i = 0; i < expected.length; i++) {
+					if (Math.abs(expected[i]) >= Short.MAX_VALUE) continue;
+					double error = Math.abs(pcm[i] * JLAYER_SCALE - expected[i]);
+					squaredError += error * error;
+					maximumError = Math.max(maximumError, error);
+					count++;
+				}
+			}
+		}
+		assertTrue(count > 0);
+		assertTrue(maximumError <= MAXIMUM_ERROR, path + ": maximum error " + maximumError);
+		double rmsError = Math.sqrt(squaredError / count);
+		assertTrue(rmsError <= MAXIMUM_RMS_ERROR, path + ": RMS error " + rmsError);
+	}
+
+	private static List<short[]> decodeWithJLayer(Path path) throws Exception {
+		List<short[]> frames = new ArrayList<>();
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+			Bitstream bitstream = new Bitstream(in);
+			Decoder decoder = new Decoder();
+			Header header;
+			while ((header = bitstream.readFrame()) != null) {
+				SampleBuffer output = (SampleBuffer) decoder.decodeFrame(header, bitstream);
+				frames.add(Arrays.copyOf(output.getBuffer(), output.getBufferLength()));
+				bitstream.closeFrame();
+			}
+			bitstream.close();
+		}
+		return frames;
+	}
+
+	private static float[] decode(Mp3File mp3File) throws Exception {
+		try (Mp3PcmReader reader = new Mp3PcmReader(mp3File)) {
+			float[] pcm = new float[mp3File.getFrameCount() * reader.getSamplesPerFrame() * reader.getChannelCount()];
+			int offset = 0;
+			int samples;
+			while ((samples = reader.readFrame(pcm, offset)) >= 0) {
+				offset += samples * reader.getChannelCount();
+			}
+			return pcm;
+		}
+	}
+
+	/**
+	 * Writes mono frames whose granules hold nothing but a 1 at TONE_LINE. The granules have no
+	 * scalefactors and no big values; their lines are coded as quadruples with count1 table B,
+	 * which spends 4 bits on each quadruple and a sign bit on each line that is not 0.
+	 */
+	private Path createToneFile() throws Exception {
+		int quadruples = TONE_LINE / 4 + 1;
+		int part23Length = 4 * quadruples + 1;
+		BitWriter sideInfo = new BitWriter();
+		sideInfo.write(0, 9); // main_data_begin
+		sideInfo.write(0, 5); // private bits
+		sideInfo.write(0, 4); // scfsi
+		for (int gr = 0; gr < 2; gr++) {
+			sideInfo.write(part23Length, 12);
+			sideInfo.write(0, 9); // big_values
+			sideInfo.write(TONE_GLOBAL_GAIN, 8);
+			sideInfo.write(0, 4); // scalefac_compress: no scalefactor bits
+			sideInfo.write(0, 1); // window switching
+			sideInfo.write(0, 15); // table_select
+			sideInfo.write(0, 4); // region0_count
+			sideInfo.write(0, 3); // region1_count
+			sideInfo.write(0, 1); // preflag
+			sideInfo.write(0, 1); // scalefac_scale
+			sideInfo.write(1, 1); // count1 table B
+		}
+		BitWriter mainData = new BitWriter();
+		for (int gr = 0; gr < 2; gr++) {
+			for (int quadruple = 0; quadruple < quadruples; quadruple++) {
+				boolean toneQuadruple = quadruple == TONE_LINE / 4;
+				int bits = toneQuadruple ? 1 << (3 - TONE_LINE % 4) : 0;
+				mainData.write(0xF - bits, 4);
+			}
+			mainData.write(0, 1); // positive
+		}
+		byte[] frame = new byte[417];
+		ByteBuffer.wrap(frame).putInt(TONE_HEADER).put(sideInfo.toBytes()).put(mainData.toBytes());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int i = 0; i < TONE_FRAME_COUNT; i++) {
+			bytes.write(frame);
+		}
+		return Files.write(tempDir.resolve("tone.mp3"), bytes.toByteArray());
+	}
+
+	private static final class BitWriter {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private int current;
+		private int bitCount;
+
+		void write(int value, int length) {
+			for (int bit = length - 1; bit >= 0; bit--) {
+				current = (current << 1) | ((value >>> bit) & 1);
+				if (++bitCount == 8) {
+					bytes.write(current);
+					current = 0;
+					bitCount = 0;
+				}
+			}
+		}
+
+		byte[] toBytes() {
+			if (bitCount > 0) {
+				bytes.write(current << (8 - bitCount));
+				current = 0;
+				bitCount = 0;
+			}
+			return bytes.toByteArray();
+		}
+	}
+}
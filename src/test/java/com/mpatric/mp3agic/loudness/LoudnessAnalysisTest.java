@@ -0,0 +1,59 @@
+package com.mpatric.mp3agic.loudness;
+
+import com.mpatric.mp3agic.ID3v24Tag;
+import com.mpatric.mp3agic.ID3v2;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoudnessAnalysisTest {
+
+	@Test
+	public void shouldReadWhatWasWritten() {
+		ID3v2 tag = new ID3v24Tag();
+		new LoudnessAnalysis(-11.5, 7.25, 0.9, "hash").writeTo(tag);
+		LoudnessAnalysis analysis = LoudnessAnalysis.readFrom(tag);
+		assertEquals(-11.5, analysis.getIntegratedLoudness(), 0.01);
+		assertEquals(-6.5, analysis.getTrackGain(), 0.01);
+		assertEquals(7.25, analysis.getLoudnessRange(), 0.01);
+		assertEquals(0.9, analysis.getTruePeak(), 0.000001);
+		assertEquals("hash", analysis.getAudioHash());
+	}
+
+	@Test
+	public void shouldUseReferenceInLufs() {
+		LoudnessAnalysis analysis = LoudnessAnalysis.readFrom(createTag("-5.00 dB", "-23.00 LUFS"));
+		assertEquals(-18.0, analysis.getIntegratedLoudness(), 0.01);
+		assertEquals(0.0, analysis.getTrackGain(), 0.01);
+	}
+
+	@Test
+	public void shouldTakeReplayGain1ReferenceAsDefaultReference() {
+		LoudnessAnalysis analysis = LoudnessAnalysis.readFrom(createTag("-6.00 dB", "89.0 dB"));
+		assertEquals(-12.0, analysis.getIntegratedLoudness(), 0.01);
+		assertEquals(-6.0, analysis.getTrackGain(), 0.01);
+	}
+
+	@Test
+	public void shouldTakeReferenceWithoutUnitOnlyIfItCanBeLufs() {
+		assertEquals(-10.0, LoudnessAnalysis.readFrom(createTag("-6.00 dB", "-14")).getTrackGain(), 0.01);
+		assertEquals(-6.0, LoudnessAnalysis.readFrom(createTag("-6.00 dB", "89")).getTrackGain(), 0.01);
+	}
+
+	@Test
+	public void shouldTakeMissingReferenceAsDefaultReference() {
+		assertEquals(3.5, LoudnessAnalysis.readFrom(createTag("+3.50 dB", null)).getTrackGain(), 0.01);
+	}
+
+	@Test
+	public void shouldReturnNullWithoutTrackGain() {
+		assertNull(LoudnessAnalysis.readFrom(createTag(null, "-18.00 LUFS")));
+	}
+
+	private static ID3v2 createTag(String gain, String reference) {
+		ID3v2 tag = new ID3v24Tag();
+		tag.setUserText(LoudnessAnalysis.TRACK_GAIN, gain);
+		tag.setUserText(LoudnessAnalysis.REFERENCE, reference);
+		return tag;
+	}
+}